@@ -38,6 +38,25 @@ public class Config {
     private Integer writer_allowed_over_queue_times = 2;         // Threshold to add threads when count is above this value
     private Long writer_millis_thread_scale_back = 1200000L;     // Age in milliseconds when threads can be deleted
     private Long writer_rebalance_millis = 1800000L;
+    private Long writer_latency_slo_millis = 2000L;              // Max writer queue wait, used to autoscale writers
+    private Double writer_target_utilization = 0.7;              // Target busy ratio of a writer
+    private Long writer_autoscale_interval_millis = 1000L;       // Interval to autoscale writers
+    private Integer consumer_threads = 1;                        // Number of kafka consumer threads in the group
+    private Map<String, Map<String, Integer>> writer_lanes = defaultWriterLanes();  // Writer settings by lane name
+    private Integer writer_row_shards = 0;                       // Shards of rib rows by hash_id, 0 is disabled
+    private Double writer_queue_high_watermark = 0.75;           // Queue fill to pause the partitions of a lane
+    private Double writer_queue_low_watermark = 0.25;            // Queue fill to resume the partitions of a lane
+    private Integer writer_bulk_batch_records = 5000;            // Max messages in a batch while bulk loading
+    private Integer writer_bulk_batch_time_millis = 1000;        // Max time to batch messages while bulk loading
+    private Boolean rib_dump_detection = true;                   // Bulk load the rib dump after a peer up
+    private Integer rib_dump_settle_rate = 100;                  // Prefixes per second of a peer that ends the dump
+    private Long rib_dump_min_millis = 30000L;                   // Min time in dump mode after a peer up
+    private Long rib_dump_max_millis = 1800000L;                 // Max time in dump mode after a peer up
+    private Long catchup_lag = 1000000L;                         // Consumer lag to start catch-up mode, 0 is disabled
+    private Long catchup_exit_lag = 1000L;                       // Consumer lag to end catch-up mode
+    private Integer catchup_max_deferred_as_paths = 200000;      // AS paths deferred before backfilling as_path_analysis
+    private Integer as_path_cache_size = 500000;                 // as_path_analysis tuples cached, 0 is disabled
+    private Long as_path_cache_refresh_millis = 86400000L;       // Time a cached as_path_analysis tuple isn't sent again
 
     private String cfg_file = null;
     private Integer expected_heartbeat_interval = 330000;
@@ -50,9 +69,21 @@ public class Config {
     private Integer db_batch_time_millis = 75;
     private Integer db_batch_records = 200;
     private Integer db_retries = 10;
+    private Boolean db_load_data = false;                       // Use LOAD DATA for bulk tables
+    private Integer db_load_data_min_rows = 1000;               // Min rows in a batch to use LOAD DATA
+    private String db_writer_engine = "text";                   // Writer engine, text or prepared
+    private Integer db_transaction_flushes = 0;                 // Flushes per transaction, 0 is auto commit
+    private Boolean db_pipelined_writer = true;                 // Build next batch while previous executes
+    private Boolean db_sort_batches = true;                     // Sort and dedup batch rows by primary key
+    private Set<String> db_coalesce_tables = new HashSet<>();   // Tables to coalesce batch rows by primary key
+    private Set<String> db_bulk_coalesce_tables = new HashSet<>();  // Also coalesced while bulk loading
+    private Boolean db_partition_routing = false;               // Route rows of partitioned tables by partition
+    private Map<String, Integer> db_partitions = new HashMap<>();   // Number of partitions by table
     private Properties kafka_consumer_props;
     private Set<Pattern> kafka_topic_patterns;
     private Integer topic_subscribe_delay_millis = 10000;       // topic subscription interval delay
+    private Boolean kafka_commit_after_flush = true;            // Commit offsets once written to MySQL
+    private Long topic_subscribe_max_lag = 1000L;               // Lag to subscribe to the next topic, -1 to only use the delay
 
 
     //Turns this class to a singleton
@@ -76,6 +107,7 @@ public class Config {
         options.addOption("du", "db_user", true, "Database username (default is openbmp)");
         options.addOption("dp", "db_pw", true, "Database password (default is openbmp)");
         options.addOption("dn", "db_name", true, "Database name (default is openBMP)");
+        options.addOption("t", "consumer_threads", true, "Number of consumer threads (default is 1)");
         options.addOption("h", "help", false, "Usage help");
 
 
@@ -137,6 +169,9 @@ public class Config {
             if (cmd.hasOption("dn"))
                 db_name = cmd.getOptionValue("dn");
 
+            if (cmd.hasOption("t"))
+                consumer_threads = Integer.valueOf(cmd.getOptionValue("t"));
+
         } catch (ParseException e) {
             //e.printStackTrace();
 
@@ -202,6 +237,82 @@ public class Config {
                         else if (subEntry.getKey().equalsIgnoreCase("writer_rebalance_seconds"))
                             writer_rebalance_millis = Long.valueOf(subEntry.getValue().toString()) * 1000;
 
+                        else if (subEntry.getKey().equalsIgnoreCase("writer_latency_slo_millis"))
+                            writer_latency_slo_millis = Long.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("writer_target_utilization"))
+                            writer_target_utilization = Double.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("writer_autoscale_interval_millis"))
+                            writer_autoscale_interval_millis = Long.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("consumer_threads"))
+                            consumer_threads = Integer.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("writer_queue_high_watermark"))
+                            writer_queue_high_watermark = Double.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("writer_queue_low_watermark"))
+                            writer_queue_low_watermark = Double.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("writer_row_shards"))
+                            writer_row_shards = Integer.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("writer_bulk_batch_records"))
+                            writer_bulk_batch_records = Integer.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("writer_bulk_batch_time_millis"))
+                            writer_bulk_batch_time_millis = Integer.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("rib_dump_detection"))
+                            rib_dump_detection = Boolean.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("rib_dump_settle_rate"))
+                            rib_dump_settle_rate = Integer.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("rib_dump_min_seconds"))
+                            rib_dump_min_millis = Long.valueOf(subEntry.getValue().toString()) * 1000;
+
+                        else if (subEntry.getKey().equalsIgnoreCase("rib_dump_max_seconds"))
+                            rib_dump_max_millis = Long.valueOf(subEntry.getValue().toString()) * 1000;
+
+                        else if (subEntry.getKey().equalsIgnoreCase("catchup_lag"))
+                            catchup_lag = Long.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("catchup_exit_lag"))
+                            catchup_exit_lag = Long.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("catchup_max_deferred_as_paths"))
+                            catchup_max_deferred_as_paths = Integer.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("as_path_cache_size"))
+                            as_path_cache_size = Integer.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("as_path_cache_refresh_hours"))
+                            as_path_cache_refresh_millis = Long.valueOf(subEntry.getValue().toString()) * 3600000;
+
+                        else if (subEntry.getKey().equalsIgnoreCase("writer_lanes")) {
+                            /*
+                             * Writer lane settings, by lane name
+                             */
+                            Map<String, Object> map = ((Map<String, Object>) subEntry.getValue());
+
+                            for (Map.Entry<String, Object> lEntry : map.entrySet()) {
+                                Map<String, Integer> lane = writer_lanes.get(lEntry.getKey().toLowerCase());
+
+                                if (lane == null)
+                                    lane = new HashMap<>();
+
+                                for (Map.Entry<String, Object> sEntry : ((Map<String, Object>) lEntry.getValue()).entrySet()) {
+                                    logger.debug("writer lane %s - key: %s value: %s", lEntry.getKey(),
+                                                 sEntry.getKey(), sEntry.getValue());
+                                    lane.put(sEntry.getKey().toLowerCase(), Integer.valueOf(sEntry.getValue().toString()));
+                                }
+
+                                writer_lanes.put(lEntry.getKey().toLowerCase(), lane);
+                            }
+                        }
+
 
                         else if (subEntry.getKey().equalsIgnoreCase("disable_as_path_indexing"))
                             disable_as_path_indexing = Boolean.valueOf(subEntry.getValue().toString());
@@ -233,6 +344,61 @@ public class Config {
 
                         else if (subEntry.getKey().equalsIgnoreCase("batch_time_millis"))
                             db_batch_time_millis = Integer.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("load_data"))
+                            db_load_data = Boolean.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("load_data_min_rows"))
+                            db_load_data_min_rows = Integer.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("pipelined_writer"))
+                            db_pipelined_writer = Boolean.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("sort_batches"))
+                            db_sort_batches = Boolean.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("coalesce_tables")) {
+                            List<String> tables = ((List<String>) subEntry.getValue());
+
+                            for (String table : tables) {
+                                logger.debug("mysql coalesce table: %s", table);
+                                db_coalesce_tables.add(table.trim().toLowerCase());
+                            }
+                        }
+
+                        else if (subEntry.getKey().equalsIgnoreCase("bulk_coalesce_tables")) {
+                            List<String> tables = ((List<String>) subEntry.getValue());
+                            db_bulk_coalesce_tables.clear();
+
+                            for (String table : tables) {
+                                logger.debug("mysql bulk coalesce table: %s", table);
+                                db_bulk_coalesce_tables.add(table.trim().toLowerCase());
+                            }
+                        }
+
+                        else if (subEntry.getKey().equalsIgnoreCase("partition_routing"))
+                            db_partition_routing = Boolean.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("partitions")) {
+                            Map<String, Object> map = ((Map<String, Object>) subEntry.getValue());
+
+                            for (Map.Entry<String, Object> pEntry : map.entrySet()) {
+                                logger.debug("mysql partitions - table: %s value: %s", pEntry.getKey(), pEntry.getValue());
+                                db_partitions.put(pEntry.getKey(), Integer.valueOf(pEntry.getValue().toString()));
+                            }
+                        }
+
+                        else if (subEntry.getKey().equalsIgnoreCase("transaction_flushes"))
+                            db_transaction_flushes = Integer.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("writer_engine")) {
+                            db_writer_engine = subEntry.getValue().toString().toLowerCase();
+
+                            if (!db_writer_engine.equals("text") && !db_writer_engine.equals("prepared")) {
+                                logger.error("Invalid writer_engine '%s', must be text or prepared", db_writer_engine);
+                                return false;
+                            }
+                        }
                     }
                 }
 
@@ -245,6 +411,12 @@ public class Config {
                         if (subEntry.getKey().equalsIgnoreCase("topic_subscribe_delay_millis"))
                             topic_subscribe_delay_millis = Integer.valueOf(subEntry.getValue().toString());
 
+                        else if (subEntry.getKey().equalsIgnoreCase("commit_after_flush"))
+                            kafka_commit_after_flush = Boolean.valueOf(subEntry.getValue().toString());
+
+                        else if (subEntry.getKey().equalsIgnoreCase("topic_subscribe_max_lag"))
+                            topic_subscribe_max_lag = Long.valueOf(subEntry.getValue().toString());
+
                         else if (subEntry.getKey().equalsIgnoreCase("consumer_config")) {
                             /*
                              * Consumer Config
@@ -324,6 +496,22 @@ public class Config {
         return writer_rebalance_millis;
     }
 
+    Long getWriter_latency_slo_millis() {
+        return writer_latency_slo_millis;
+    }
+
+    Double getWriter_target_utilization() {
+        return writer_target_utilization;
+    }
+
+    Long getWriter_autoscale_interval_millis() {
+        return writer_autoscale_interval_millis;
+    }
+
+    Integer getConsumer_threads() {
+        return consumer_threads;
+    }
+
     Properties getKafka_consumer_props() {
         return kafka_consumer_props;
     }
@@ -336,6 +524,14 @@ public class Config {
         return topic_subscribe_delay_millis;
     }
 
+    Boolean getKafka_commit_after_flush() {
+        return kafka_commit_after_flush;
+    }
+
+    Long getTopic_subscribe_max_lag() {
+        return topic_subscribe_max_lag;
+    }
+
     String getDbHost() { return db_host; }
 
     String getDbUser() { return db_user; }
@@ -352,10 +548,149 @@ public class Config {
         return db_batch_records;
     }
 
+    /*
+     * Writer lane settings, the global setting is used if the lane doesn't set it
+     */
+    Double getWriter_queue_high_watermark() {
+        return writer_queue_high_watermark;
+    }
+
+    Double getWriter_queue_low_watermark() {
+        return writer_queue_low_watermark;
+    }
+
+    Integer getWriter_row_shards() {
+        return writer_row_shards;
+    }
+
+    Boolean getRib_dump_detection() {
+        return rib_dump_detection;
+    }
+
+    Integer getRib_dump_settle_rate() {
+        return rib_dump_settle_rate;
+    }
+
+    Long getRib_dump_min_millis() {
+        return rib_dump_min_millis;
+    }
+
+    Long getRib_dump_max_millis() {
+        return rib_dump_max_millis;
+    }
+
+    Long getCatchup_lag() {
+        return catchup_lag;
+    }
+
+    Long getCatchup_exit_lag() {
+        return catchup_exit_lag;
+    }
+
+    Integer getCatchup_max_deferred_as_paths() {
+        return catchup_max_deferred_as_paths;
+    }
+
+    Integer getAs_path_cache_size() {
+        return as_path_cache_size;
+    }
+
+    Long getAs_path_cache_refresh_millis() {
+        return as_path_cache_refresh_millis;
+    }
+
+    Integer getWriter_lane_batch_records(String lane) {
+        return getWriter_lane_value(lane, "batch_records", db_batch_records);
+    }
+
+    Integer getWriter_lane_batch_time_millis(String lane) {
+        return getWriter_lane_value(lane, "batch_time_millis", db_batch_time_millis);
+    }
+
+    Integer getWriter_lane_bulk_batch_records(String lane) {
+        return getWriter_lane_value(lane, "bulk_batch_records", writer_bulk_batch_records);
+    }
+
+    Integer getWriter_lane_bulk_batch_time_millis(String lane) {
+        return getWriter_lane_value(lane, "bulk_batch_time_millis", writer_bulk_batch_time_millis);
+    }
+
+    Integer getWriter_lane_max_threads(String lane) {
+        return getWriter_lane_value(lane, "max_threads", writer_max_threads_per_type);
+    }
+
+    Integer getWriter_lane_transaction_flushes(String lane) {
+        return getWriter_lane_value(lane, "transaction_flushes", db_transaction_flushes);
+    }
+
+    /*
+     * Default writer lane settings.  The control plane lane (collectors, routers and peers) flushes
+     *   right away and doesn't delay commits, so that state is current during bulk loads.
+     */
+    private static Map<String, Map<String, Integer>> defaultWriterLanes() {
+        Map<String, Map<String, Integer>> lanes = new HashMap<>();
+        Map<String, Integer> control = new HashMap<>();
+
+        control.put("batch_time_millis", 1);
+        control.put("transaction_flushes", 0);
+        lanes.put("default", control);
+
+        return lanes;
+    }
+
+    private Integer getWriter_lane_value(String lane, String key, Integer defaultValue) {
+        Map<String, Integer> settings = lane != null ? writer_lanes.get(lane.toLowerCase()) : null;
+
+        if (settings != null && settings.get(key) != null)
+            return settings.get(key);
+
+        return defaultValue;
+    }
+
     Integer getDb_retries() {
         return db_retries;
     }
 
+    Boolean getDb_load_data() {
+        return db_load_data;
+    }
+
+    Integer getDb_load_data_min_rows() {
+        return db_load_data_min_rows;
+    }
+
+    String getDb_writer_engine() {
+        return db_writer_engine;
+    }
+
+    Boolean getDb_pipelined_writer() {
+        return db_pipelined_writer;
+    }
+
+    Boolean getDb_sort_batches() {
+        return db_sort_batches;
+    }
+
+    Boolean getDb_partition_routing() {
+        return db_partition_routing;
+    }
+
+    Set<String> getDb_coalesce_tables() {
+        return db_coalesce_tables;
+    }
+
+    Set<String> getDb_bulk_coalesce_tables() {
+        return db_bulk_coalesce_tables;
+    }
+
+    Map<String, Integer> getDb_partitions() {
+        return db_partitions;
+    }
+
+    Integer getDb_transaction_flushes() {
+        return db_transaction_flushes;
+    }
+
     public Integer getHeartbeatInterval() { return expected_heartbeat_interval; }
 
     Boolean getDisable_as_path_indexing() {
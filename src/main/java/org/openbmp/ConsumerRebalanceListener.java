@@ -21,6 +21,7 @@ public class ConsumerRebalanceListener implements org.apache.kafka.clients.consu
     private static final Logger logger = LogManager.getFormatterLogger(ConsumerRebalanceListener.class.getName());
 
     private org.apache.kafka.clients.consumer.Consumer<?,?> consumer;
+    private long assignedCount;                         // Number of completed rebalances
 
     public ConsumerRebalanceListener(org.apache.kafka.clients.consumer.Consumer<?,?> consumer) {
 
@@ -39,5 +40,15 @@ public class ConsumerRebalanceListener implements org.apache.kafka.clients.consu
         // read the offsets from an external store using some custom code not described here
         for(TopicPartition partition: partitions)
             logger.info("Assign partition %s [ %d ] ", partition.topic(), partition.partition());
+
+        assignedCount++;
+    }
+
+    /**
+     * @return Number of times partitions have been assigned, incremented by every rebalance even
+     *      if no partitions are assigned
+     */
+    public long getAssignedCount() {
+        return assignedCount;
     }
 }
@@ -0,0 +1,225 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cache of the as_path_analysis tuples recently sent to the writers
+ *
+ * \details as_path_analysis holds a few hundred thousand distinct (asn, asn_left, asn_right,
+ *      asn_left_is_peering) tuples, yet every base_attribute message generates all the tuples of its
+ *      AS paths.  Tuples in the cache are not sent again until their refresh time, which keeps the
+ *      as_path_analysis timestamp from aging out (db-maint deletes tuples not updated for 30 days) and
+ *      re-inserts tuples that were deleted while cached.
+ *
+ *      The cache is bounded to max tuples by two generations of primitive open addressing hash sets.
+ *      Tuples are added to the current generation.  When it's full, it becomes the previous
+ *      generation and the old previous generation is evicted.  Tuples found in the previous
+ *      generation are moved to the current one, so recently seen tuples stay cached.
+ *
+ *      Used only by the consumer thread, so it's not thread safe.
+ */
+public class MySQLAsPathCache {
+
+    private static final long MAX_ASN = 0xFFFFFFFFL;
+
+    /**
+     * Generation of cached tuples, linear probing.  A slot is used if its time is not zero.
+     */
+    private static class Generation {
+        final long[] high;                          // asn << 32 | asn_left
+        final long[] low;                           // asn_right << 1 | asn_left_is_peering
+        final long[] time;                          // Time the tuple was sent, zero if slot is not used
+        int size;
+
+        Generation(int capacity) {
+            high = new long[capacity];
+            low = new long[capacity];
+            time = new long[capacity];
+        }
+
+        /*
+         * Find the slot of the tuple, or the free slot to add it
+         */
+        int find(long h, long l) {
+            final int mask = time.length - 1;
+            int slot = hash(h, l) & mask;
+
+            while (time[slot] != 0 && (high[slot] != h || low[slot] != l))
+                slot = (slot + 1) & mask;
+
+            return slot;
+        }
+
+        void clear() {
+            Arrays.fill(time, 0);
+            size = 0;
+        }
+    }
+
+    private final long refreshMillis;
+    private final int maxGenerationSize;            // Tuples per generation
+
+    private Generation current;
+    private Generation previous;
+
+    private volatile long hitCount;                 // Tuples not sent, already cached
+    private volatile long missCount;                // Tuples sent, not cached
+    private volatile long refreshCount;             // Tuples sent, cached but due for refresh
+
+    /**
+     * Constructor
+     *
+     * @param maxTuples         Max tuples cached
+     * @param refreshMillis     Time in milliseconds a cached tuple isn't sent again
+     */
+    public MySQLAsPathCache(int maxTuples, long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+        maxGenerationSize = Math.max(1, maxTuples / 2);
+
+        // At most half full
+        int capacity = Integer.highestOneBit(maxGenerationSize) << 2;
+
+        current = new Generation(capacity);
+        previous = new Generation(capacity);
+    }
+
+    /**
+     * Check if the tuple should be sent, caching it if so
+     *
+     * @param asn           ASN
+     * @param left          Left ASN
+     * @param right         Right ASN
+     * @param peering       1 if the left ASN is the peer, otherwise 0
+     * @param now           Current time in milliseconds, greater than zero
+     *
+     * @return True if the tuple is not cached or due for refresh and should be sent
+     */
+    public boolean add(long asn, long left, long right, int peering, long now) {
+        final long h = asn << 32 | (left & MAX_ASN);
+        final long l = right << 1 | (peering & 1);
+
+        int slot = current.find(h, l);
+
+        if (current.time[slot] != 0) {
+            if (now - current.time[slot] < refreshMillis) {
+                ++hitCount;
+                return false;
+            }
+
+            ++refreshCount;
+            current.time[slot] = now;
+            return true;
+        }
+
+        long time = now;
+        boolean send = true;
+
+        int prevSlot = previous.find(h, l);
+        if (previous.time[prevSlot] != 0 && now - previous.time[prevSlot] < refreshMillis) {
+            time = previous.time[prevSlot];
+            send = false;
+        }
+
+        if (current.size >= maxGenerationSize) {
+            rotate();
+            slot = current.find(h, l);
+        }
+
+        current.high[slot] = h;
+        current.low[slot] = l;
+        current.time[slot] = time;
+        ++current.size;
+
+        if (send)
+            ++missCount;
+        else
+            ++hitCount;
+
+        return send;
+    }
+
+    /**
+     * Remove the rows that should not be sent
+     *
+     * @param rows          Rows of (asn, asn_left, asn_right, asn_left_is_peering), random access
+     *                      such as an ArrayList.  Order of the rows kept is unchanged.
+     * @param now           Current time in milliseconds
+     *
+     * @return Number of rows removed
+     */
+    public int filter(List<Object[]> rows, long now) {
+        final int size = rows.size();
+        int kept = 0;
+
+        // Compact in place, removing each row from an ArrayList would be quadratic
+        for (int i = 0; i < size; i++) {
+            Object[] row = rows.get(i);
+
+            if (add(((Number) row[0]).longValue(), ((Number) row[1]).longValue(),
+                    ((Number) row[2]).longValue(), ((Number) row[3]).intValue(), now)) {
+                if (kept != i)
+                    rows.set(kept, row);
+                ++kept;
+            }
+        }
+
+        rows.subList(kept, size).clear();
+
+        return size - kept;
+    }
+
+    /*
+     * Evict the previous generation, the current generation becomes the previous
+     */
+    private void rotate() {
+        Generation evicted = previous;
+        evicted.clear();
+
+        previous = current;
+        current = evicted;
+    }
+
+    /**
+     * @return Number of tuples cached
+     */
+    public int getSize() {
+        return current.size + previous.size;
+    }
+
+    /**
+     * @return Number of tuples not sent, already cached
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return Number of tuples sent, not cached
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return Number of tuples sent again for refresh
+     */
+    public long getRefreshCount() {
+        return refreshCount;
+    }
+
+    private static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L + low;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+
+        return (int) (h ^ h >>> 32);
+    }
+}
@@ -0,0 +1,138 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lag aware catch-up mode
+ *
+ * \details When the consumer is far behind, such as after a restart, it replays history.  Catch-up
+ *      mode starts once the consumer lag is at or above the enter lag and ends once the lag is at or
+ *      below the exit lag, which is near the head.  While catching up, the consumer bulk loads and
+ *      defers secondary work:
+ *
+ *          - Writers use the bulk batch settings and coalesce the bulk_coalesce_tables
+ *          - as_path_analysis indexing is deferred.  The distinct AS paths are kept and backfilled
+ *            when the max deferred paths is reached and when catch-up ends.
+ *
+ *      as_path_analysis is derived from the AS paths.  Rows are inserted, or only refresh the
+ *      timestamp of existing tuples when the as_path_analysis cache is enabled (ON DUPLICATE KEY
+ *      UPDATE timestamp), so the backfill is the same as indexing each path when it was received,
+ *      except that the timestamps are those of the backfill.  Each distinct path is indexed once.  The kafka offsets of the records are not committed while there are
+ *      deferred paths, so paths deferred at a crash are consumed again on restart.
+ *
+ *      Used only by the consumer thread, so it's not thread safe.
+ */
+public class MySQLCatchUpMode {
+    private static final Logger logger = LogManager.getFormatterLogger(MySQLCatchUpMode.class.getName());
+
+    private final long enterLag;
+    private final long exitLag;
+    private final int maxDeferredPaths;
+
+    private boolean active;
+    private long startTime;
+    private long catchUpCount;                      // Number of times catch-up started
+
+    private Set<String> deferredPaths = new LinkedHashSet<>();  // Distinct AS paths not indexed yet
+    private long deferredCount;                     // AS paths deferred, including duplicates
+
+    /**
+     * Constructor
+     *
+     * @param enterLag          Consumer lag (messages) to start catch-up mode
+     * @param exitLag           Consumer lag (messages) to end catch-up mode
+     * @param maxDeferredPaths  Max distinct AS paths deferred before they are backfilled
+     */
+    public MySQLCatchUpMode(long enterLag, long exitLag, int maxDeferredPaths) {
+        this.enterLag = enterLag;
+        this.exitLag = Math.min(exitLag, enterLag);
+        this.maxDeferredPaths = Math.max(1, maxDeferredPaths);
+    }
+
+    /**
+     * Update with the current consumer lag
+     *
+     * @param lag           Number of messages in the assigned partitions not consumed yet
+     * @param now           Current time in milliseconds
+     *
+     * @return True if in catch-up mode
+     */
+    public boolean update(long lag, long now) {
+        if (!active && lag >= enterLag) {
+            active = true;
+            startTime = now;
+            ++catchUpCount;
+
+            logger.info("Catch-up mode started, lag %d", lag);
+
+        } else if (active && lag <= exitLag) {
+            active = false;
+
+            logger.info("Catch-up mode ended, lag %d after %d ms, deferred AS paths %d (distinct %d)",
+                        lag, now - startTime, deferredCount, deferredPaths.size());
+        }
+
+        return active;
+    }
+
+    /**
+     * @return True if in catch-up mode
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Defer the as_path_analysis indexing of the AS paths
+     *
+     * @param asPaths       AS paths of the path attributes
+     *
+     * @return True if the max deferred paths is reached and they should be backfilled
+     */
+    public boolean defer(Collection<String> asPaths) {
+        deferredCount += asPaths.size();
+        deferredPaths.addAll(asPaths);
+
+        return deferredPaths.size() >= maxDeferredPaths;
+    }
+
+    /**
+     * Take the deferred AS paths to backfill
+     *
+     * @return Distinct AS paths deferred so far, empty if none
+     */
+    public List<String> takeDeferred() {
+        List<String> paths = new ArrayList<>(deferredPaths);
+        deferredPaths = new LinkedHashSet<>();
+
+        return paths;
+    }
+
+    /**
+     * @return True if there are deferred AS paths
+     */
+    public boolean hasDeferred() {
+        return !deferredPaths.isEmpty();
+    }
+
+    /**
+     * @return Number of times catch-up mode started
+     */
+    public long getCatchUpCount() {
+        return catchUpCount;
+    }
+}
@@ -44,6 +44,12 @@ public class MySQLConsumerApp
      */
     private Map<String,Map<String, Integer>> routerConMap;
 
+    /**
+     * RIB dumps of peers, shared since the peer and its rows can be consumed by different threads.
+     *      Null if dump detection is disabled.
+     */
+    private final MySQLRibDumpDetector ribDumpDetector;
+
     /**
      *
      * @param cfg       Configuration - e.g. DB credentials
@@ -54,6 +60,10 @@ public class MySQLConsumerApp
         consumerThreads = new ArrayList<>();
         routerConMap = new ConcurrentHashMap<String, Map<String, Integer>>();
 
+        ribDumpDetector = cfg.getRib_dump_detection()
+                ? new MySQLRibDumpDetector(cfg.getRib_dump_settle_rate(), cfg.getRib_dump_min_millis(),
+                                           cfg.getRib_dump_max_millis()) : null;
+
     }
 
     public void shutdown() {
@@ -73,12 +83,22 @@ public class MySQLConsumerApp
         }
     }
 
+    /**
+     * Start the consumer threads
+     *
+     * \details Each consumer thread joins the same consumer group, so Kafka spreads the
+     *      openbmp.parsed.* partitions over the threads.  Each thread owns its own writer
+     *      threads/queues, which keeps the writer queues single producer.  Only routerConMap
+     *      and the RIB dump detector are shared between the consumer threads.
+     */
     public void run() {
-        int numConsumerThreads = 1;
+        int numConsumerThreads = Math.max(1, cfg.getConsumer_threads());
         executor = Executors.newFixedThreadPool(numConsumerThreads);
 
+        logger.info("Starting %d consumer threads", numConsumerThreads);
+
         for (int i=0; i < numConsumerThreads; i++) {
-            MySQLConsumerRunnable consumer = new MySQLConsumerRunnable(cfg, routerConMap);
+            MySQLConsumerRunnable consumer = new MySQLConsumerRunnable(cfg, routerConMap, ribDumpDetector, i);
             executor.submit(consumer);
             consumerThreads.add(consumer);
         }
@@ -156,6 +176,26 @@ public class MySQLConsumerApp
                                 mysqlApp.consumerThreads.get(i).getLs_link_msg_count());
                         logger.info("           LS prefix messages: %d",
                                 mysqlApp.consumerThreads.get(i).getLs_prefix_msg_count());
+
+                        long[] writerStats = mysqlApp.consumerThreads.get(i).getWriterStats();
+                        logger.info("               writer flushes: %d  execute_ms: %d  blocked_ms: %d  overlap: %d%%",
+                                writerStats[0], writerStats[1], writerStats[2],
+                                writerStats[1] > 0 ? (writerStats[1] - Math.min(writerStats[1], writerStats[2])) * 100 / writerStats[1] : 0);
+                        logger.info("              writer deadlocks: %d  retries: %d  dedup_rows: %d  skipped: %d",
+                                writerStats[3], writerStats[4], writerStats[5], writerStats[6]);
+
+                        long[] asPathStats = mysqlApp.consumerThreads.get(i).getAsPathCacheStats();
+                        if (asPathStats != null) {
+                            logger.info("       as_path_analysis cache: %d  hits: %d  misses: %d  refreshes: %d",
+                                    asPathStats[0], asPathStats[1], asPathStats[2], asPathStats[3]);
+                        }
+
+                        for (MySQLWriterAutoscaler autoscaler : mysqlApp.consumerThreads.get(i).getWriterAutoscalers()) {
+                            logger.info("     writer autoscale %s: writers: %d  target: %d  arrival/s: %.0f  service_ms: %.3f  wait_ms: %d  grow: %d  shrink: %d  rebalance: %d",
+                                    autoscaler.getName(), autoscaler.getWriters(), autoscaler.getTarget(),
+                                    autoscaler.getArrivalRate(), autoscaler.getServiceMillis(), autoscaler.getWaitMillis(),
+                                    autoscaler.getGrowCount(), autoscaler.getShrinkCount(), autoscaler.getRebalanceCount());
+                        }
                     }
 
                 } else {
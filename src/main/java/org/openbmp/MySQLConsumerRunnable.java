@@ -11,6 +11,7 @@ package org.openbmp;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.config.ConfigException;
@@ -31,39 +32,73 @@ import java.util.regex.Pattern;
  */
 public class MySQLConsumerRunnable implements Runnable {
 
+    /**
+     * Writer lanes.  Each destination table, or group of tables, has its own writers with their own
+     *      batching and thread limits, so a flood of one table doesn't delay the others.  The lane
+     *      name is the key in the writer_lanes config.
+     */
     private enum ThreadType {
-        THREAD_DEFAULT(0),
-        THREAD_ATTRIBUTES(1),
-        THRAED_AS_PATH_ANALYSIS(2);
+        THREAD_DEFAULT(0, "default"),                   // Control plane: collectors, routers and bgp_peers
+        THREAD_ATTRIBUTES(1, "path_attrs"),
+        THRAED_AS_PATH_ANALYSIS(2, "as_path_analysis"),
+        THREAD_RIB(3, "rib"),
+        THREAD_L3VPN_RIB(4, "l3vpn_rib"),
+        THREAD_LS(5, "ls"),                             // ls_nodes, ls_links and ls_prefixes
+        THREAD_STATS(6, "stat_reports");
 
         private final int value;
+        private final String laneName;
 
-        private ThreadType(int value) {
+        private ThreadType(int value, String laneName) {
             this.value = value;
+            this.laneName = laneName;
         }
 
         public int getValue() {
             return this.value;
         }
+
+        public String getLaneName() {
+            return this.laneName;
+        }
     }
 
     private static final Logger logger = LogManager.getFormatterLogger(MySQLConsumerRunnable.class.getName());
+    private static final long HEARTBEAT_MILLIS = 1000;         // Interval to poll kafka while waiting on a writer
+    private static final int WRITER_RING_BUCKETS = 4096;       // Number of key buckets in the writer ring
+    private static final long TOPIC_LAG_CHECK_MILLIS = 1000;    // Interval to check the lag of subscribed topics
+    private static final long OFFSET_COMMIT_MILLIS = 1000;      // Interval to commit the flushed offsets
+    private static final long CATCH_UP_CHECK_MILLIS = 5000;     // Interval to check the lag for catch-up mode
+    private static final int BACKFILL_CHUNK_PATHS = 500;        // AS paths per as_path_analysis backfill message
+
+    /**
+     * Control plane topics, dispatched before the bulk topics
+     */
+    private static final Pattern CONTROL_TOPICS = Pattern.compile("openbmp[.]parsed[.](collector|router|peer)");
+
+    /**
+     * Topics never paused by backpressure, they only feed the default lane.  Peer is paused with the
+     *      lanes it feeds, see updateBackpressure().
+     */
+    private static final Pattern UNPAUSED_TOPICS = Pattern.compile("openbmp[.]parsed[.](collector|router)");
     private Boolean running;
 
     private ExecutorService executor;
     private Long last_collector_msg_time;
-    private Long last_writer_thread_chg_time;
 
 
     private KafkaConsumer<String, String> consumer;
     private ConsumerRebalanceListener rebalanceListener;
     private Config cfg;
     private Map<String,Map<String, Integer>> routerConMap;
+    private final int consumer_thread_id;
 
     private int topics_subscribed_count;
     private boolean topics_all_subscribed;
     private List<Pattern> topic_patterns;
     private StringBuilder topic_regex_pattern;
+    private long subscribe_assigned_count;                      // Rebalance count when last subscribed
+    private long last_lag_check_time;
 
     private BigInteger messageCount;
     private long collector_msg_count;
@@ -77,8 +112,34 @@ public class MySQLConsumerRunnable implements Runnable {
     private long ls_prefix_msg_count;
     private long stat_msg_count;
 
-    private Collection<TopicPartition> pausedTopics;
-    private long last_paused_time;
+    /*
+     * Backpressure, partitions that feed congested writer lanes are paused
+     */
+    private Set<TopicPartition> pausedTopics;                   // Partitions paused due to congestion
+    private final boolean[] lane_congested;                     // Congested writer lanes by type
+    private final Map<String, Integer> topic_lanes;             // Writer lanes (bit per type) fed by topic
+    private String current_topic;                               // Topic of the record being dispatched
+
+    /*
+     * RIB dumps of peers after peer up, null if dump detection is disabled.  Rows of peers in the
+     *    dump are sent as bulk, which switches their writers to the bulk batch settings.  Shared by
+     *    all consumer threads, the peer up can be consumed by another thread than the peer rows.
+     */
+    private final MySQLRibDumpDetector ribDumpDetector;
+    private boolean sending_bulk;                               // Rows being sent are bulk
+
+    /*
+     * Catch-up mode when the consumer is far behind, null if disabled.  Rows are sent as bulk and
+     *    as_path_analysis indexing is deferred to a backfill.
+     */
+    private final MySQLCatchUpMode catchUp;
+    private long last_catchup_check_time;
+
+    /*
+     * as_path_analysis tuples recently sent, null if disabled.  Cached tuples are only sent again
+     *    to refresh their timestamp.
+     */
+    private final MySQLAsPathCache asPathCache;
 
     /*
      * Writers thread map
@@ -88,32 +149,181 @@ public class MySQLConsumerRunnable implements Runnable {
      * Each writer object has the following:
      *      Connection to MySQL
      *      FIFO msg queue
-     *      Map of assigned record keys to the writer
      */
     private final Map<ThreadType, List<MySQLWriterObject>> writer_thread_map;
 
+    /*
+     * Writers ring map, assigns record keys to the writers
+     *      Key = Type of thread
+     *      Value = Consistent hash ring of the writers
+     */
+    private final Map<ThreadType, MySQLWriterRing<MySQLWriterObject>> writer_ring_map;
+
+    /*
+     * Writers migration map, moves record keys between writers when the ring changes
+     *      Key = Type of thread
+     *      Value = Migration of the writer ring keys
+     */
+    private final Map<ThreadType, MySQLWriterMigration<MySQLWriterObject>> writer_migration_map;
+
+    /*
+     * Writers autoscaler map
+     *      Key = Type of thread
+     *      Value = Autoscaler of the writers
+     */
+    private final Map<ThreadType, MySQLWriterAutoscaler> writer_autoscaler_map;
+    private final long[] writer_sent_count;                     // Messages sent to the writers by type
+
+    /*
+     * Kafka offsets written to MySQL, null if offsets are auto committed by the kafka consumer
+     */
+    private final MySQLOffsetTracker<MySQLWriterObject> offsetTracker;
+    private long last_offset_commit_time;
+
+    /*
+     * Routes rows of partitioned tables by partition, null if partition routing is disabled
+     */
+    private final MySQLWriterPartitioner partitioner;
+    private final MySQLPartitionResolver partitionResolver;    // MySQL partitions of the values, null if not routed
+
+    /*
+     * Queue sequences and lifecycle of the writers, for the migrations
+     */
+    private static final MySQLWriterMigration.Writers<MySQLWriterObject> WRITERS =
+            new MySQLWriterMigration.Writers<MySQLWriterObject>() {
+        @Override
+        public int id(MySQLWriterObject writer) {
+            return writer.id;
+        }
+
+        @Override
+        public long writeSequence(MySQLWriterObject writer) {
+            return writer.writerQueue.writeSequence();
+        }
+
+        @Override
+        public long committedSequence(MySQLWriterObject writer) {
+            return writer.writerThread.getCommittedSequence();
+        }
+
+        @Override
+        public boolean isFailed(MySQLWriterObject writer) {
+            return writer.writerThread.isFailed();
+        }
+
+        @Override
+        public void shutdown(MySQLWriterObject writer) {
+            writer.writerThread.shutdown();
+        }
+    };
+
+    /*
+     * Sends messages to the writer queues
+     */
+    private final MySQLWriterMigration.Sender<MySQLWriterObject> writerSender =
+            new MySQLWriterMigration.Sender<MySQLWriterObject>() {
+        @Override
+        public void send(MySQLWriterObject writer, StatementTemplate template, List<Object[]> rows, String query) {
+            offerToWriter(writer, template, rows, query);
+        }
+
+        @Override
+        public void idle() {
+            drainParked();
+
+            long now = System.currentTimeMillis();
+            if (now - last_heartbeat_time >= HEARTBEAT_MILLIS) {
+                last_heartbeat_time = now;
+                heartbeat();
+            }
+        }
+    };
+
+    /**
+     * Message parked for a writer whose queue is full
+     */
+    private static class ParkedMessage {
+        final StatementTemplate template;
+        final List<Object[]> rows;
+        final String query;
+        final boolean bulk;
+
+        ParkedMessage(StatementTemplate template, List<Object[]> rows, String query, boolean bulk) {
+            this.template = template;
+            this.rows = rows;
+            this.query = query;
+            this.bulk = bulk;
+        }
+    }
+
+    /*
+     * Messages parked by writer, in order, while the writer queue is full.  Dispatch doesn't wait for
+     *    queue space, the parked messages are offered again by drainParked().  The partitions of the
+     *    congested lane are paused by updateBackpressure(), other lanes keep flowing.
+     */
+    private final Map<MySQLWriterObject, ArrayDeque<ParkedMessage>> parked = new HashMap<>();
+    private int parked_count;                                   // Number of parked messages
+    private long last_heartbeat_time;
+
 
     /**
      * Constructor
      *
      * @param cfg                  Configuration from cli/config file
-     * @param routerConMap         Persistent router state tracking
+     * @param routerConMap         Persistent router state tracking, shared by all consumer threads
+     * @param ribDumpDetector      RIB dump detector shared by all consumer threads, null if disabled
+     * @param consumer_thread_id   Consumer thread number, starting at zero
      */
     public MySQLConsumerRunnable(Config cfg,
-                                 Map<String,Map<String, Integer>> routerConMap) {
+                                 Map<String,Map<String, Integer>> routerConMap,
+                                 MySQLRibDumpDetector ribDumpDetector,
+                                 int consumer_thread_id) {
 
 
         writer_thread_map = new HashMap<>();
-        last_writer_thread_chg_time = 0L;
+        writer_ring_map = new HashMap<>();
+        writer_migration_map = new HashMap<>();
+        writer_autoscaler_map = new HashMap<>();
+        writer_sent_count = new long[ThreadType.values().length];
+        offsetTracker = cfg.getKafka_commit_after_flush()
+                ? new MySQLOffsetTracker<MySQLWriterObject>(w -> w.writerThread.getCommittedSequence()) : null;
+
+        MySQLWriterPartitioner p = new MySQLWriterPartitioner();
+
+        partitionResolver = cfg.getDb_partition_routing() ? new MySQLPartitionResolver(cfg) : null;
+
+        if (partitionResolver != null) {
+            p.addKeyPartitionedTables(cfg.getDb_partitions());
+            p.setResolver(partitionResolver);
+        }
+
+        if (cfg.getWriter_row_shards() > 0) {
+            // Shard the rows of a peer over the writers, the rows of a prefix stay in order
+            p.addTable("rib", "hash_id", cfg.getWriter_row_shards());
+            p.addTable("l3vpn_rib", "hash_id", cfg.getWriter_row_shards());
+        }
+
+        partitioner = p.isEmpty() ? null : p;
+
+        this.ribDumpDetector = ribDumpDetector;
+
+        catchUp = cfg.getCatchup_lag() > 0
+                ? new MySQLCatchUpMode(cfg.getCatchup_lag(), cfg.getCatchup_exit_lag(),
+                                       cfg.getCatchup_max_deferred_as_paths()) : null;
+
+        asPathCache = cfg.getAs_path_cache_size() > 0
+                ? new MySQLAsPathCache(cfg.getAs_path_cache_size(), cfg.getAs_path_cache_refresh_millis()) : null;
 
         messageCount = BigInteger.valueOf(0);
         this.cfg = cfg;
         this.routerConMap = routerConMap;
+        this.consumer_thread_id = consumer_thread_id;
 
         this.running = true;
 
         pausedTopics = new HashSet<>();
-        last_paused_time = 0L;
+        lane_congested = new boolean[ThreadType.values().length];
+        topic_lanes = new HashMap<>();
 
         /*
          * It's imperative to first process messages from some topics before subscribing to others.
@@ -136,15 +346,26 @@ public class MySQLConsumerRunnable implements Runnable {
         /*
          * Start MySQL Writer thread - one thread per type
          */
-        executor = Executors.newFixedThreadPool(cfg.getWriter_max_threads_per_type() * ThreadType.values().length);
+        int max_threads = 0;
+        for (ThreadType t: ThreadType.values())
+            max_threads += cfg.getWriter_lane_max_threads(t.getLaneName());
+
+        executor = Executors.newFixedThreadPool(max_threads);
 
         // Init the list of threads for each thread type
         for (ThreadType t: ThreadType.values()) {
-            MySQLWriterObject obj = new MySQLWriterObject(cfg);
+            MySQLWriterObject obj = new MySQLWriterObject(cfg, t.getLaneName());
 
             writer_thread_map.put(t, new ArrayList<MySQLWriterObject>());
+            writer_ring_map.put(t, new MySQLWriterRing<MySQLWriterObject>(WRITER_RING_BUCKETS));
+            writer_migration_map.put(t, new MySQLWriterMigration<>(writer_ring_map.get(t), WRITERS));
+            writer_autoscaler_map.put(t, new MySQLWriterAutoscaler(t.getLaneName(),
+                    cfg.getWriter_latency_slo_millis(), cfg.getWriter_target_utilization(),
+                    cfg.getWriter_lane_max_threads(t.getLaneName()), cfg.getWriter_allowed_over_queue_times(),
+                    cfg.getWriter_millis_thread_scale_back(), cfg.getWriter_rebalance_millis()));
 
             writer_thread_map.get(t).add(obj);
+            writer_ring_map.get(t).add(obj, obj.id);
             executor.submit(obj.writerThread);
         }
     }
@@ -160,10 +381,15 @@ public class MySQLConsumerRunnable implements Runnable {
             for (MySQLWriterObject obj: writers) {
                 obj.writerThread.shutdown();
             }
+
+            writer_migration_map.get(t).shutdown();
         }
 
         if (executor != null) executor.shutdown();
 
+        if (partitionResolver != null)
+            partitionResolver.close();
+
         try {
             if (!executor.awaitTermination(5000, TimeUnit.MILLISECONDS)) {
                 logger.warn("Timed out waiting for writer thread to shut down, exiting uncleanly");
@@ -181,6 +407,14 @@ public class MySQLConsumerRunnable implements Runnable {
 
     private void close_consumer() {
         if (consumer != null) {
+            if (offsetTracker != null) {
+                try {
+                    commitFlushedOffsets(true);
+                } catch (KafkaException ex) {
+                    logger.warn("Failed to commit flushed offsets: %s", ex.getMessage());
+                }
+            }
+
             consumer.close();
             consumer = null;
         }
@@ -198,7 +432,22 @@ public class MySQLConsumerRunnable implements Runnable {
         try {
             close_consumer();
 
-            consumer = new KafkaConsumer<>(cfg.getKafka_consumer_props());
+            /*
+             * All consumer threads share the same group.id, but each needs a unique client.id
+             */
+            Properties props = new Properties();
+            props.putAll(cfg.getKafka_consumer_props());
+
+            if (consumer_thread_id > 0) {
+                props.setProperty("client.id", props.getProperty("client.id") + "-" + consumer_thread_id);
+            }
+
+            // Offsets are committed once the writers have flushed the records to MySQL
+            if (offsetTracker != null) {
+                props.setProperty("enable.auto.commit", "false");
+            }
+
+            consumer = new KafkaConsumer<>(props);
             logger.info("Connected to kafka, subscribing to topics");
 
             org.apache.kafka.clients.consumer.ConsumerRebalanceListener rebalanceListener =
@@ -218,35 +467,80 @@ public class MySQLConsumerRunnable implements Runnable {
 
     }
 
-    private void pause() {
+    /**
+     * Poll kafka with all partitions paused
+     *
+     * \details Used while the consumer thread waits on a writer to commit moving keys, when too many
+     *      messages of a key are held, so that the consumer stays in the group.  No records are
+     *      returned since all partitions are paused.  Partitions that are not congested are resumed
+     *      by {@link #updateBackpressure()}.  Dispatch doesn't wait for queue space, see
+     *      {@link #offerToWriter}.
+     */
+    private void heartbeat() {
         consumer.pause(consumer.assignment());
+        consumer.poll(0);
     }
 
-    private void resume() {
-        consumer.resume(consumer.paused());
-    }
+    /**
+     * Pause the partitions that feed congested writer lanes and resume the others
+     *
+     * \details A writer lane is congested when a writer queue is above the high watermark, and is no
+     *      longer congested once all of its queues are below the low watermark.  Partitions are
+     *      paused by the topic, using the lanes the topic records were sent to.  Other partitions
+     *      keep flowing.  Collector and router are never paused.  Peer is paused with the rib lane
+     *      it feeds, otherwise a peer withdraw could run before the peer's earlier rows that are still
+     *      in the paused partitions, which would then be written as active.
+     */
+    private void updateBackpressure() {
+        int congested = 0;
 
-    private void resumePausedTopics() {
-        if (pausedTopics.size() > 0) {
-            logger.info("Resumed %d paused topics", pausedTopics.size());
-            consumer.resume(pausedTopics);
-            pausedTopics.clear();
-        }
-    }
+        for (ThreadType t: ThreadType.values()) {
+            List<MySQLWriterObject> writers = writer_thread_map.get(t);
+            int max_size = 0;
+            int capacity = 0;
 
-    private void pauseUnicastPrefix() {
-        Set<TopicPartition> topics = consumer.assignment();
-        last_paused_time = System.currentTimeMillis();
+            for (MySQLWriterObject obj: writers) {
+                max_size = Math.max(max_size, obj.writerQueue.size());
+                capacity = obj.writerQueue.getCapacity();
+            }
 
-        for (TopicPartition topic: topics) {
-            if (topic.topic().equalsIgnoreCase("openbmp.parsed.unicast_prefix")) {
-                if (! pausedTopics.contains(topic)) {
-                    logger.info("Paused openbmp.parsed.unicast_prefix");
-                    pausedTopics.add(topic);
-                    consumer.pause(pausedTopics);
+            if (lane_congested[t.ordinal()]) {
+                if (max_size <= capacity * cfg.getWriter_queue_low_watermark()) {
+                    lane_congested[t.ordinal()] = false;
+                    logger.info("Writer lane %s is no longer congested, queue size %d", t.getLaneName(), max_size);
                 }
-                break;
+
+            } else if (max_size >= capacity * cfg.getWriter_queue_high_watermark()) {
+                lane_congested[t.ordinal()] = true;
+                logger.info("Writer lane %s is congested, queue size %d", t.getLaneName(), max_size);
             }
+
+            if (lane_congested[t.ordinal()])
+                congested |= 1 << t.ordinal();
+        }
+
+        Set<TopicPartition> pause = new HashSet<>();
+        Set<TopicPartition> resume = new HashSet<>();
+
+        for (TopicPartition topic: consumer.assignment()) {
+            Integer lanes = topic_lanes.get(topic.topic());
+
+            if (lanes != null && (lanes & congested) != 0 && !UNPAUSED_TOPICS.matcher(topic.topic()).matches())
+                pause.add(topic);
+            else
+                resume.add(topic);
+        }
+
+        consumer.pause(pause);
+        consumer.resume(resume);
+
+        if (!pause.equals(pausedTopics)) {
+            if (pause.isEmpty())
+                logger.info("Resumed all partitions, writer lanes are no longer congested");
+            else
+                logger.info("Paused %d partitions of congested writer lanes: %s", pause.size(), pause);
+
+            pausedTopics = pause;
         }
     }
 
@@ -254,8 +548,6 @@ public class MySQLConsumerRunnable implements Runnable {
      * Run the thread
      */
     public void run() {
-        boolean unicast_prefix_paused = false;
-
         logger.info("Consumer started");
 
         for (ThreadType t: ThreadType.values()) {
@@ -288,7 +580,6 @@ public class MySQLConsumerRunnable implements Runnable {
         /*
          * Continuously read from Kafka stream and parse messages
          */
-        Map<String, String> query;
         long prev_time = System.currentTimeMillis();
         long subscribe_prev_timestamp = 0L;
 
@@ -298,26 +589,30 @@ public class MySQLConsumerRunnable implements Runnable {
             if (!topics_all_subscribed) {
                 subscribe_prev_timestamp = subscribe_topics(subscribe_prev_timestamp);
 
-            } /* else if (pausedTopics.size() > 0 && (System.currentTimeMillis() - last_paused_time) > 90000) {
-                logger.info("Resumed paused %d topics", pausedTopics.size());
-                consumer.resume(pausedTopics);
-                pausedTopics.clear();
-            } */
+            }
 
             try {
+                // Offer the parked messages of full writer queues again
+                drainParked();
+
                 ConsumerRecords<String, String> records = consumer.poll(100);
 
-                if (records == null || records.count() <= 0)
+                if (records == null || records.count() <= 0) {
+                    releaseMovedKeys();
+                    prev_time = checkWriterThreads(prev_time);
+                    updateBackpressure();
+                    updateCatchUp();
+                    commitFlushedOffsets(false);
                     continue;
-
-                /*
-                 * Pause collection so that consumer.poll() doesn't fetch but will send heartbeats
-                 */
-                pause();
+                }
 
                 ThreadType thread_type;
-                for (ConsumerRecord<String, String> record : records) {
+                for (ConsumerRecord<String, String> record : prioritize(records)) {
                     messageCount = messageCount.add(BigInteger.ONE);
+                    current_topic = record.topic();
+
+                    // Bulk load while catching up, control plane state stays low latency
+                    sending_bulk = catchUp != null && catchUp.isActive() && !isControlTopic(record.topic());
 
                     //Extract the Headers and Content from the message.
                     Message message = new Message(record.value());
@@ -329,7 +624,6 @@ public class MySQLConsumerRunnable implements Runnable {
                     /*
                      * Parse the data based on topic
                      */
-                    query = new HashMap<String, String>();
                     if ((message.getType() != null && message.getType().equalsIgnoreCase("collector")) || record.topic().equals("openbmp.parsed.collector")) {
                         logger.trace("Parsing collector message");
                         collector_msg_count++;
@@ -347,10 +641,7 @@ public class MySQLConsumerRunnable implements Runnable {
                         if (sql != null && !sql.isEmpty()) {
                             logger.debug("collectorUpdate: %s", sql);
 
-                            Map<String, String> router_update = new HashMap<>();
-                            router_update.put("query", sql);
-
-                            sendToWriter(record.key(), router_update, ThreadType.THREAD_DEFAULT);
+                            addQuerytoWriter(record.key(), sql, ThreadType.THREAD_DEFAULT);
 
                         }
 
@@ -363,18 +654,13 @@ public class MySQLConsumerRunnable implements Runnable {
                         obj = router;
                         dbQuery = routerQuery;
 
-                        //pauseUnicastPrefix();
-
                         // Disconnect the peers
                         String sql = routerQuery.genPeerRouterUpdate(routerConMap);
 
                         if (sql != null && !sql.isEmpty()) {
                             logger.debug("RouterUpdate = %s", sql);
 
-                            Map<String, String> peer_update = new HashMap<>();
-                            peer_update.put("query", sql);
-
-                            sendToWriter(record.key(), peer_update, ThreadType.THREAD_DEFAULT);
+                            addQuerytoWriter(record.key(), sql, ThreadType.THREAD_DEFAULT);
                         }
 
                     } else if ((message.getType() != null && message.getType().equalsIgnoreCase("peer")) || record.topic().equals("openbmp.parsed.peer")) {
@@ -386,14 +672,38 @@ public class MySQLConsumerRunnable implements Runnable {
                         obj = peer;
                         dbQuery = peerQuery;
 
-                        //pauseUnicastPrefix();
+                        // Add the withdrawn, in the lanes of the tables so they are in order with their updates
+                        String rib_update = peerQuery.genRibPeerUpdate("rib");
+                        String ls_update = peerQuery.genRibPeerUpdate("ls_nodes", "ls_links", "ls_prefixes");
 
-                        // Add the withdrawn
-                        Map<String, String> rib_update = new HashMap<String, String>();
-                        rib_update.put("query", peerQuery.genRibPeerUpdate());
+                        logger.debug("Processed peer %s / %s / %s", peerQuery.genValuesStatement(), rib_update, ls_update);
 
-                        logger.debug("Processed peer %s / %s", peerQuery.genValuesStatement(), peerQuery.genRibPeerUpdate());
-                        sendToWriter(record.key(), rib_update, ThreadType.THREAD_DEFAULT);
+                        // The RIB dump of the peer follows a peer up
+                        if (ribDumpDetector != null) {
+                            for (int i = 0; i < peer.getRowMap().size(); i++) {
+                                if (peerQuery.isPeerUp(i))
+                                    ribDumpDetector.peerUp(peerQuery.getPeerHashId(i), System.currentTimeMillis());
+                                else
+                                    ribDumpDetector.peerDown(peerQuery.getPeerHashId(i));
+                            }
+                        }
+                        if (partitioner != null && partitioner.isPartitioned("rib")) {
+                            /*
+                             * Withdraw each peer in order with the rib rows of its partition.  If the rows
+                             *    of the peer are sharded, the withdraw is run once by each writer of the
+                             *    shards, after the rows of the shards it owns.
+                             */
+                            for (int i = 0; i < peer.getRowMap().size(); i++) {
+                                String peer_update = peerQuery.genRibPeerUpdate(i, "rib");
+
+                                addQuerytoWriters(partitioner.keys("rib", "peer_hash_id", peerQuery.getPeerHashId(i)),
+                                                  peer_update, ThreadType.THREAD_RIB);
+                            }
+                        } else {
+                            addQuerytoWriter(record.key(), rib_update, ThreadType.THREAD_RIB);
+                        }
+
+                        addQuerytoWriter(record.key(), ls_update, ThreadType.THREAD_LS);
 
                     } else if ((message.getType() != null && message.getType().equalsIgnoreCase("base_attribute")) || record.topic().equals("openbmp.parsed.base_attribute")) {
                         logger.trace("Parsing base_attribute message");
@@ -407,16 +717,23 @@ public class MySQLConsumerRunnable implements Runnable {
                         dbQuery = baseAttrQuery;
 
                         if (!cfg.getDisable_as_path_indexing()) {
-                            addBulkQuerytoWriter(record.key(),
-                                    ((BaseAttributeQuery) dbQuery).genAsPathAnalysisStatement(),
-                                    ((BaseAttributeQuery) dbQuery).genAsPathAnalysisValuesStatement(),
-                                    ThreadType.THRAED_AS_PATH_ANALYSIS);
+                            if (catchUp != null && catchUp.isActive()) {
+                                // Indexed by the backfill
+                                if (catchUp.defer(baseAttrQuery.getAsPaths()))
+                                    backfillAsPaths();
+
+                            } else {
+                                addAsPathAnalysisToWriter(record.key(),
+                                        ((BaseAttributeQuery) dbQuery).genAsPathAnalysisRows());
+                            }
                         }
 
                     } else if ((message.getType() != null && message.getType().equalsIgnoreCase("unicast_prefix")) || record.topic().equals("openbmp.parsed.unicast_prefix")) {
                         logger.trace("Parsing unicast_prefix message");
                         unicast_prefix_msg_count++;
 
+                        thread_type = ThreadType.THREAD_RIB;
+
                         obj = new UnicastPrefix(message.getVersion(), message.getContent());
                         dbQuery = new UnicastPrefixQuery(obj.getRowMap());
 
@@ -439,6 +756,8 @@ public class MySQLConsumerRunnable implements Runnable {
                         logger.trace("Parsing L3VPN prefix message");
                         l3vpn_prefix_msg_count++;
 
+                        thread_type = ThreadType.THREAD_L3VPN_RIB;
+
                         obj = new L3VpnPrefix(message.getVersion(), message.getContent());
                         dbQuery = new L3VpnPrefixQuery(obj.getRowMap());
 
@@ -446,6 +765,8 @@ public class MySQLConsumerRunnable implements Runnable {
                         logger.trace("Parsing bmp_stat message");
                         stat_msg_count++;
 
+                        thread_type = ThreadType.THREAD_STATS;
+
                         obj = new BmpStat(message.getContent());
                         dbQuery = new BmpStatQuery(obj.getRowMap());
 
@@ -453,6 +774,8 @@ public class MySQLConsumerRunnable implements Runnable {
                         logger.trace("Parsing ls_node message");
                         ls_node_msg_count++;
 
+                        thread_type = ThreadType.THREAD_LS;
+
                         obj = new LsNode(message.getVersion(), message.getContent());
                         dbQuery = new LsNodeQuery(obj.getRowMap());
 
@@ -460,6 +783,8 @@ public class MySQLConsumerRunnable implements Runnable {
                         logger.trace("Parsing ls_link message");
                         ls_link_msg_count++;
 
+                        thread_type = ThreadType.THREAD_LS;
+
                         obj = new LsLink(message.getVersion(), message.getContent());
                         dbQuery = new LsLinkQuery(obj.getRowMap());
 
@@ -467,6 +792,8 @@ public class MySQLConsumerRunnable implements Runnable {
                         logger.trace("Parsing ls_prefix message");
                         ls_prefix_msg_count++;
 
+                        thread_type = ThreadType.THREAD_LS;
+
                         obj = new LsPrefix(message.getVersion(), message.getContent());
                         dbQuery = new LsPrefixQuery(obj.getRowMap());
 
@@ -479,15 +806,37 @@ public class MySQLConsumerRunnable implements Runnable {
                      * Add query to writer queue
                      */
                     if (obj != null) {
-                        addBulkQuerytoWriter(record.key(), dbQuery.genInsertStatement(),
-                                dbQuery.genValuesStatement(), thread_type);
+                        List<Object[]> rows = dbQuery.genRows();
+
+                        // Bulk load the rows of peers that are dumping their RIB
+                        if ((thread_type == ThreadType.THREAD_RIB || thread_type == ThreadType.THREAD_L3VPN_RIB)
+                                && isRibDump(dbQuery.getTemplate(), rows))
+                            sending_bulk = true;
+
+                        addBulkQuerytoWriter(record.key(), dbQuery.getTemplate(), rows, thread_type);
                     }
                 }
 
+                current_topic = null;
+                sending_bulk = false;
+
+                // Records are in the writer queues, their offsets are committed once flushed
+                if (offsetTracker != null)
+                    checkpointOffsets(polledOffsets(records));
+
+                // Move keys that the old writers are done with
+                releaseMovedKeys();
+
                 // Check writer threads
                 prev_time = checkWriterThreads(prev_time);
 
-                resume();
+                // Pause/resume partitions by writer lane congestion
+                updateBackpressure();
+
+                // Start or end catch-up mode by the lag
+                updateCatchUp();
+
+                commitFlushedOffsets(false);
 
 
             } catch (NullPointerException ex1 ) {
@@ -507,104 +856,186 @@ public class MySQLConsumerRunnable implements Runnable {
         logger.debug("MySQL consumer thread finished");
     }
 
-    private void resetWriters(ThreadType thread_type) {
-        List<MySQLWriterObject> writers = writer_thread_map.get(thread_type);
+    /**
+     * Get the next offset to consume of each polled partition
+     */
+    private static Map<TopicPartition, Long> polledOffsets(ConsumerRecords<String, String> records) {
+        Map<TopicPartition, Long> offsets = new HashMap<>();
 
-        if (writers != null) {
+        for (TopicPartition topic: records.partitions()) {
+            List<ConsumerRecord<String, String>> list = records.records(topic);
 
-            logger.info("Thread type " + thread_type + ", draining queues to reset writers");
-            for (MySQLWriterObject obj : writers) {
-                int i = 0;
-                while (obj.writerQueue.size() > 0) {
-                    if (i >= 5000) {
-                        i = 0;
-                        consumer.poll(0);           // NOTE: consumer is paused already.
+            offsets.put(topic, list.get(list.size() - 1).offset() + 1);
+        }
 
-                        logger.info("drain queue writer size is " + obj.writerQueue.size());
-                    }
-                    ++i;
+        return offsets;
+    }
 
-                    try {
-                        Thread.sleep(1);
-                    } catch (Exception ex) {
-                        break;
-                    }
-                }
+    /**
+     * Add an offset checkpoint with the current write sequence of every writer
+     *
+     * \details If keys are moving between writers, the held messages are not in the writer queues
+     *      yet, so the offsets are deferred until the migration is done.  See {@link MySQLOffsetTracker}.
+     *      Offsets are also deferred while catch-up mode has deferred AS paths, which are only in memory,
+     *      until their backfill is in the writer queues, and while messages are parked.
+     *
+     * @param offsets       Next offset to consume by partition
+     */
+    private void checkpointOffsets(Map<TopicPartition, Long> offsets) {
+        if (parked_count > 0 || (catchUp != null && catchUp.hasDeferred())) {
+            offsetTracker.defer(offsets);
+            return;
+        }
 
-                obj.assigned.clear();
-                obj.above_count = 0;
+        for (MySQLWriterMigration<MySQLWriterObject> migration : writer_migration_map.values()) {
+            if (migration.isMigrating()) {
+                offsetTracker.defer(offsets);
+                return;
             }
         }
+
+        List<MySQLWriterObject> writers = new ArrayList<>();
+        for (ThreadType t: ThreadType.values())
+            writers.addAll(writer_thread_map.get(t));
+
+        long[] sequences = new long[writers.size()];
+        for (int i = 0; i < sequences.length; i++)
+            sequences[i] = writers.get(i).writerQueue.writeSequence();
+
+        offsetTracker.checkpoint(offsets, writers, sequences);
     }
 
-    private void addWriterThread(ThreadType thread_type) {
-        List<MySQLWriterObject> writers = writer_thread_map.get(thread_type);
+    /**
+     * Commit the offsets that have been flushed to MySQL
+     *
+     * \details Offsets of partitions that are no longer assigned are not committed, their records
+     *      will be consumed again by the new owner.
+     *
+     * @param sync      Commit now and wait for the commit, otherwise commit async at the commit interval
+     */
+    private void commitFlushedOffsets(boolean sync) {
+        if (offsetTracker == null)
+            return;
 
-        if (writers != null) {
-            logger.info("Adding new writer thread for type " + thread_type);
-            resetWriters(thread_type);
+        long now = System.currentTimeMillis();
 
-            MySQLWriterObject obj = new MySQLWriterObject(cfg);
-            writers.add(obj);
-            executor.submit(obj.writerThread);
+        if (!sync && now - last_offset_commit_time < OFFSET_COMMIT_MILLIS)
+            return;
 
-            last_writer_thread_chg_time = System.currentTimeMillis();
+        last_offset_commit_time = now;
 
-            logger.info("Done adding new writer thread for type " + thread_type);
+        if (offsetTracker.hasDeferred())
+            checkpointOffsets(Collections.<TopicPartition, Long>emptyMap());
+
+        Set<TopicPartition> assigned = consumer.assignment();
+        Map<TopicPartition, OffsetAndMetadata> commit = new HashMap<>();
 
+        for (Map.Entry<TopicPartition, Long> entry : offsetTracker.takeFlushed().entrySet()) {
+            if (assigned.contains(entry.getKey()))
+                commit.put(entry.getKey(), new OffsetAndMetadata(entry.getValue()));
         }
-    }
 
-    private boolean rebalanceWriterThreads(ThreadType thread_type) {
+        if (commit.isEmpty())
+            return;
 
-        if ((System.currentTimeMillis() - last_writer_thread_chg_time) < cfg.getWriter_rebalance_millis()) {
-            return false;
-        }
+        if (sync) {
+            consumer.commitSync(commit);
 
-        List<MySQLWriterObject> writers = writer_thread_map.get(thread_type);
+        } else {
+            consumer.commitAsync(commit, (offsets, ex) -> {
+                if (ex != null)
+                    logger.warn("Failed to commit offsets: %s", ex.getMessage());
+            });
+        }
 
-        boolean lowThreads = false;
-        boolean congestedThreads = false;
+        logger.debug("Committed flushed offsets of %d partitions, %d checkpoints pending", commit.size(),
+                     offsetTracker.getPendingCount());
+    }
 
-        for (MySQLWriterObject obj: writers) {
+    /**
+     * @return True if the topic is a control plane topic
+     */
+    private static boolean isControlTopic(String topic) {
+        return CONTROL_TOPICS.matcher(topic).matches();
+    }
 
-            if (obj.above_count > cfg.getWriter_allowed_over_queue_times() && obj.assigned.size() > 1) {
-                congestedThreads = true;
-            }
-            else if (obj.above_count <= 0 && obj.writerQueue.size() <= 200) {
-                lowThreads = true;
-            }
+    /**
+     * Order the polled records by priority
+     *
+     * \details Records of the control plane topics (collector, router and peer) are dispatched before
+     *      the bulk topics, so that state changes are not queued behind a large poll of NLRI.  The
+     *      control plane lane flushes right away (see writer_lanes).  Order within a partition is kept.
+     *
+     * @param records       Polled records
+     *
+     * @return Records in dispatch order
+     */
+    private Iterable<ConsumerRecord<String, String>> prioritize(ConsumerRecords<String, String> records) {
+        boolean control = false;
+        boolean bulk = false;
+
+        for (TopicPartition topic: records.partitions()) {
+            if (isControlTopic(topic.topic()))
+                control = true;
+            else
+                bulk = true;
         }
 
-        if (congestedThreads && lowThreads) {
-            logger.info("Rebalancing threads for type " + thread_type);
-            resetWriters(thread_type);
+        if (!control || !bulk)
+            return records;
 
-            logger.info("DONE rebalancing threads for type " + thread_type);
+        List<ConsumerRecord<String, String>> ordered = new ArrayList<>(records.count());
 
-            last_writer_thread_chg_time = System.currentTimeMillis();
-            return true;
+        for (TopicPartition topic: records.partitions()) {
+            if (isControlTopic(topic.topic()))
+                ordered.addAll(records.records(topic));
         }
 
-        return false;
+        for (TopicPartition topic: records.partitions()) {
+            if (!isControlTopic(topic.topic()))
+                ordered.addAll(records.records(topic));
+        }
+
+        return ordered;
     }
 
-    private void delWriterThread(ThreadType thread_type) {
+    /**
+     * Release the moved keys that the old writers are done with, for all thread types
+     */
+    private void releaseMovedKeys() {
+        for (MySQLWriterMigration<MySQLWriterObject> migration : writer_migration_map.values()) {
+            if (migration.isMigrating())
+                migration.release(writerSender);
+        }
+    }
+
+    private void addWriterThread(ThreadType thread_type) {
+        List<MySQLWriterObject> writers = writer_thread_map.get(thread_type);
+
+        if (writers != null) {
+            logger.info("Adding new writer thread for type " + thread_type);
+
+            MySQLWriterObject obj = new MySQLWriterObject(cfg, thread_type.getLaneName());
+            writers.add(obj);
+            executor.submit(obj.writerThread);
+
+            // Keys moving to the new writer are held until the old writers are done with them
+            writer_migration_map.get(thread_type).add(obj);
+
+            logger.info("Done adding new writer thread for type " + thread_type);
 
-        if ((System.currentTimeMillis() - last_writer_thread_chg_time) < cfg.getWriter_millis_thread_scale_back()) {
-            return;
         }
+    }
 
+    private void delWriterThread(ThreadType thread_type) {
         List<MySQLWriterObject> writers = writer_thread_map.get(thread_type);
 
         if (writers != null && writers.size() > 1) {
-            last_writer_thread_chg_time = System.currentTimeMillis();
-
             logger.info("Deleting writer thread for type = " + thread_type);
-            resetWriters(thread_type);
 
-            writers.get(1).writerThread.shutdown();
-            writers.remove(1);
+            // Writer is shutdown once it's done with its keys
+            MySQLWriterObject obj = writers.remove(writers.size() - 1);
+            writer_migration_map.get(thread_type).remove(obj);
 
             logger.info("Done deleting writer thread for type = " + thread_type);
 
@@ -612,159 +1043,244 @@ public class MySQLConsumerRunnable implements Runnable {
 
     }
 
+    /**
+     * Autoscale the writer threads of each type
+     *
+     * \details Runs at the autoscale interval.  Types that are still moving keys from the previous
+     *      change are skipped.  See {@link MySQLWriterAutoscaler}.
+     *
+     * @param prev_time     Time in milliseconds of the previous check
+     *
+     * @return Time in milliseconds of the last check
+     */
     private long checkWriterThreads(long prev_time) {
+        long now = System.currentTimeMillis();
 
-        if (System.currentTimeMillis() - prev_time > 10000) {
-
-            for (ThreadType t: ThreadType.values()) {
-                List<MySQLWriterObject> writers = writer_thread_map.get(t);
-                int i = 0;
-                int threadsBelowThreshold = 0;
+        if (now - prev_time < cfg.getWriter_autoscale_interval_millis())
+            return prev_time;
 
-                if ( (rebalanceWriterThreads(t)) == true) {
-                    continue;
+        // Stop before the offsets of messages that failed on a transient error are committed, consumed again on restart
+        for (ThreadType t: ThreadType.values()) {
+            for (MySQLWriterObject obj: writer_thread_map.get(t)) {
+                if (obj.writerThread.isFailed()) {
+                    logger.error("Writer %s failed to write messages to MySQL, stopping consumer", t.toString());
+                    running = false;
+                    return now;
                 }
-                else {
+            }
+        }
 
-                    for (MySQLWriterObject obj : writers) {
+        // End the RIB dumps of peers that went quiet
+        if (ribDumpDetector != null)
+            ribDumpDetector.expire(now);
 
-                        if (obj.writerQueue.size() > 10000) {
+        for (ThreadType t: ThreadType.values()) {
+            List<MySQLWriterObject> writers = writer_thread_map.get(t);
 
-                            if (obj.above_count > cfg.getWriter_allowed_over_queue_times()) {
+            // Wait for the previous change to complete
+            if (writer_migration_map.get(t).isMigrating()) {
+                logger.debug("Writer %s: moving %d buckets", t.toString(),
+                             writer_migration_map.get(t).getMovingCount());
+                continue;
+            }
 
-                                if (writers.size() < cfg.getWriter_max_threads_per_type()) {
-                                    // Add new thread
-                                    logger.info("Writer %s %d: assigned = %d, queue = %d, above_count = %d, threads = %d : adding new thread",
-                                            t.toString(), i,
-                                            obj.assigned.size(),
-                                            obj.writerQueue.size(),
-                                            obj.above_count,
-                                            writers.size());
+            // Parked messages are not in the queues, keys can't move until they are
+            if (hasParked(writers))
+                continue;
 
-                                    obj.above_count = 0;
+            int[] queueSizes = new int[writers.size()];
+            double service = 0;
+            int serviceCount = 0;
 
-                                    addWriterThread(t);
-                                    break;
+            for (int i = 0; i < writers.size(); i++) {
+                MySQLWriterObject obj = writers.get(i);
 
-                                } else {
-                                    // At max threads
-                                    //obj.above_count++;
+                queueSizes[i] = obj.writerQueue.size();
 
-                                    logger.info("Writer %s %d: assigned = %d, queue = %d, above_count = %d, threads = %d, running max threads",
-                                            t.toString(), i,
-                                            obj.assigned.size(),
-                                            obj.writerQueue.size(),
-                                            obj.above_count,
-                                            writers.size());
-                                }
-                            } else {
-                                obj.above_count++;
-
-                                // under above threshold
-                                logger.info("Writer %s %d: assigned = %d, queue = %d, above_count = %d, threads = %d",
-                                        t.toString(), i,
-                                        obj.assigned.size(),
-                                        obj.writerQueue.size(),
-                                        obj.above_count,
-                                        writers.size());
-                            }
+                if (obj.writerThread.getServiceNanosPerMessage() > 0) {
+                    service += obj.writerThread.getServiceNanosPerMessage();
+                    serviceCount++;
+                }
+            }
 
-                        } else if (obj.writerQueue.size() < 100) {
-                            obj.above_count = 0;
-                            threadsBelowThreshold++;
-                        }
+            MySQLWriterAutoscaler autoscaler = writer_autoscaler_map.get(t);
 
-                        i++;
-                    }
+            switch (autoscaler.update(now, writer_sent_count[t.ordinal()], queueSizes,
+                                      serviceCount > 0 ? service / serviceCount : 0)) {
+                case GROW:
+                    for (int i = writers.size(); i < autoscaler.getTarget(); i++)
+                        addWriterThread(t);
+                    break;
 
-                    if (threadsBelowThreshold >= writers.size()) {
-                        delWriterThread(t);
-                        break;
-                    }
-                }
+                case SHRINK:
+                    delWriterThread(t);
+                    break;
+
+                case REBALANCE:
+                    // Move keys off the congested writers based on the recent load
+                    writer_migration_map.get(t).rebalance();
+                    break;
+
+                default:
+                    break;
             }
+        }
+
+        return now;
+    }
 
-            return System.currentTimeMillis();
+    /**
+     * Send message to writer queue
+     *
+     * \details The writer is selected by the key using the writer ring, so messages of the same
+     *      key are written in order by the same writer.  Messages of keys that are moving to another
+     *      writer are held until the old writer is done with the key.
+     *
+     * @param key           Message key in kafka, such as the hash id
+     * @param template      Bulk statement template, or null if query should be run now
+     * @param rows          Rows for the template
+     * @param query         Query to run when template is null
+     * @param thread_type   Type of thread to use
+     */
+    private void sendToWriter(String key, StatementTemplate template, List<Object[]> rows, String query,
+                              ThreadType thread_type) {
+        MySQLWriterMigration<MySQLWriterObject> migration = writer_migration_map.get(thread_type);
+
+        if (migration != null) {
+            countSent(thread_type);
+            migration.send(key, template, rows, query, writerSender);
         }
-        else {
-            return prev_time;
+    }
+
+    /**
+     * Add query to the writers of the keys, once per writer
+     *
+     * @param keys          Message keys, such as the shard keys of a peer
+     * @param query         Query to run
+     * @param thread_type   Type of thread to use
+     */
+    private void addQuerytoWriters(String[] keys, String query, ThreadType thread_type) {
+        MySQLWriterMigration<MySQLWriterObject> migration = writer_migration_map.get(thread_type);
+
+        if (migration != null) {
+            countSent(thread_type);
+            migration.sendToOwners(keys, query, writerSender);
         }
     }
 
-    private void sendToWriter(String key, Map<String, String> query, ThreadType thread_type) {
-        List<MySQLWriterObject> writers = writer_thread_map.get(thread_type);
+    /*
+     * Count the message sent and track the lanes of the topic for backpressure
+     */
+    private void countSent(ThreadType thread_type) {
+        writer_sent_count[thread_type.ordinal()]++;
 
-        if (writers != null) {
-            boolean newly_assigned = true;
+        if (current_topic != null) {
+            Integer lanes = topic_lanes.get(current_topic);
+            int lane = 1 << thread_type.ordinal();
 
-            MySQLWriterObject found_obj= null;
+            if (lanes == null || (lanes & lane) == 0)
+                topic_lanes.put(current_topic, (lanes != null ? lanes : 0) | lane);
+        }
+    }
 
-            for (MySQLWriterObject obj: writers) {
-                if (!obj.assigned.containsKey(key)) {
-                    if (found_obj == null) {
-                        found_obj = obj;
-                    }
-                    else if ((found_obj.writerQueue.size() > obj.writerQueue.size()
-                            && obj.writerQueue.size() < 2000)
-                            || (found_obj.assigned.size() > obj.assigned.size())) {
-                        found_obj = obj;
-                    }
-                }
-                else {
-                    newly_assigned = false;
-                    found_obj = obj;
-                    break;
-                }
+    /**
+     * Offer message to the writer queue
+     *
+     * \details Doesn't block.  If the writer queue is full, or the writer has parked messages, the
+     *      message is parked and offered again by {@link #drainParked()}.  Partitions of congested
+     *      lanes are normally paused before the queue is full, see {@link #updateBackpressure()},
+     *      so only the records already polled are parked.
+     */
+    private void offerToWriter(MySQLWriterObject writer, StatementTemplate template, List<Object[]> rows,
+                               String query) {
+        if (sending_bulk)
+            writer.writerThread.markBulk(System.currentTimeMillis());
 
+        ArrayDeque<ParkedMessage> waiting = parked.get(writer);
 
-            }
+        // Parked messages of the writer go first
+        if ((waiting == null || drainParked(writer, waiting)) && writer.writerQueue.offer(template, rows, query))
+            return;
 
-            if (newly_assigned) {
-                found_obj.assigned.put(key, 1);
-            }
+        if (waiting == null) {
+            waiting = new ArrayDeque<>();
+            parked.put(writer, waiting);
+        }
 
-            int i = 0;
-            while (found_obj.writerQueue.offer(query) == false) {
-                if (i >= 1000) {
-//                    logger.info("send to writer congested, waiting. queue size: " + found_obj.writerQueue.size());
-                    i = 0;
-                    consumer.poll(0);           // NOTE: consumer is paused already.
-                }
-                ++i;
+        waiting.add(new ParkedMessage(template, rows, query, sending_bulk));
+        ++parked_count;
+    }
 
-                try {
-                    Thread.sleep(1);
-                } catch (Exception ex) {
-                    break;
-                }
-            }
+    /**
+     * Offer the parked messages to the writer queues, in order, while there is space
+     */
+    private void drainParked() {
+        if (parked_count == 0)
+            return;
 
+        for (Map.Entry<MySQLWriterObject, ArrayDeque<ParkedMessage>> entry : new ArrayList<>(parked.entrySet()))
+            drainParked(entry.getKey(), entry.getValue());
+    }
+
+    /*
+     * Offer the parked messages of the writer while there is space
+     *
+     * @return True if all parked messages of the writer were offered
+     */
+    private boolean drainParked(MySQLWriterObject writer, ArrayDeque<ParkedMessage> waiting) {
+        while (!waiting.isEmpty()) {
+            ParkedMessage msg = waiting.peek();
+
+            if (!writer.writerQueue.offer(msg.template, msg.rows, msg.query))
+                return false;
+
+            if (msg.bulk)
+                writer.writerThread.markBulk(System.currentTimeMillis());
+
+            waiting.poll();
+            --parked_count;
         }
 
+        parked.remove(writer);
+        return true;
+    }
+
+    /*
+     * @return True if any of the writers has parked messages
+     */
+    private boolean hasParked(List<MySQLWriterObject> writers) {
+        if (parked_count > 0) {
+            for (MySQLWriterObject writer : writers) {
+                if (parked.containsKey(writer))
+                    return true;
+            }
+        }
+
+        return false;
     }
 
     /**
      * Add bulk query to writer
      *
-     * \details This method will add the bulk object to the writer.
+     * \details This method will add the bulk object to the writer.  Rows of partitioned tables are
+     *      sent to the writers by partition instead of by key, see {@link MySQLWriterPartitioner}.
      *
      * @param key           Message key in kafka, such as the hash id
-     * @param statement     String array statement from Query.getInsertStatement()
-     * @param values        Values string from Query.getValuesStatement()
+     * @param template      Statement template from Query.getTemplate()
+     * @param rows          Rows from Query.genRows()
      * @param thread_type   Type of thread to use
      */
-    private void addBulkQuerytoWriter(String key, String [] statement, String values, ThreadType thread_type) {
-        Map<String, String> query = new HashMap<>();
-
+    private void addBulkQuerytoWriter(String key, StatementTemplate template, List<Object[]> rows, ThreadType thread_type) {
         try {
-            if (values.length() > 0) {
-                // Add statement and value to query map
-                query.put("prefix", statement[0]);
-                query.put("suffix", statement[1]);
-                query.put("value", values);
-
-                // block if space is not available
-                sendToWriter(key, query, thread_type);
+            if (rows.size() > 0) {
+                Map<String, List<Object[]>> partitions = partitioner != null ? partitioner.split(template, rows) : null;
+
+                if (partitions != null) {
+                    for (Map.Entry<String, List<Object[]>> entry : partitions.entrySet())
+                        sendToWriter(entry.getKey(), template, entry.getValue(), null, thread_type);
+                } else {
+                    sendToWriter(key, template, rows, null, thread_type);
+                }
             }
         } catch (Exception ex) {
             logger.info("Get values Exception: ", ex);
@@ -772,9 +1288,137 @@ public class MySQLConsumerRunnable implements Runnable {
 
     }
 
+    /**
+     * Check if the rows are of a peer that is dumping its RIB
+     *
+     * \details The rows of a message are of a single peer, which is the peer of the first row.
+     *
+     * @param template      Statement template of the rows
+     * @param rows          Rows from Query.genRows()
+     *
+     * @return True if the rows should be bulk loaded
+     */
+    private boolean isRibDump(StatementTemplate template, List<Object[]> rows) {
+        if (ribDumpDetector == null || rows.isEmpty())
+            return false;
+
+        int peer_column = template.getColumnIndex("peer_hash_id");
+        if (peer_column < 0 || rows.get(0)[peer_column] == null)
+            return false;
+
+        return ribDumpDetector.update(rows.get(0)[peer_column].toString(), rows.size(),
+                                      System.currentTimeMillis());
+    }
+
+    /**
+     * Add query to writer
+     *
+     * \details The query is run by the writer as is, not in bulk.
+     *
+     * @param key           Message key in kafka, such as the hash id
+     * @param query         Query to run
+     * @param thread_type   Type of thread to use
+     */
+    private void addQuerytoWriter(String key, String query, ThreadType thread_type) {
+        sendToWriter(key, null, null, query, thread_type);
+    }
+
+    /**
+     * Get the lag of the assigned partitions
+     *
+     * @return Number of messages in the assigned partitions that have not been consumed yet
+     */
+    private long subscribedLag() {
+        Set<TopicPartition> assigned = consumer.assignment();
+        long lag = 0;
+
+        if (assigned.isEmpty())
+            return 0;
+
+        Map<TopicPartition, Long> endOffsets = consumer.endOffsets(assigned);
+
+        for (TopicPartition topic: assigned) {
+            Long end = endOffsets.get(topic);
+
+            if (end != null)
+                lag += Math.max(0, end - consumer.position(topic));
+        }
+
+        return lag;
+    }
+
+    /**
+     * Start or end catch-up mode by the consumer lag
+     *
+     * \details The lag is checked at most every CATCH_UP_CHECK_MILLIS.  The deferred AS paths are
+     *      backfilled once catch-up ends.
+     */
+    private void updateCatchUp() {
+        long now = System.currentTimeMillis();
+
+        if (catchUp == null || now - last_catchup_check_time < CATCH_UP_CHECK_MILLIS)
+            return;
+
+        last_catchup_check_time = now;
+
+        try {
+            if (!catchUp.update(subscribedLag(), now) && catchUp.hasDeferred())
+                backfillAsPaths();
+
+        } catch (KafkaException ex) {
+            logger.debug("Unable to get the consumer lag: %s", ex.getMessage());
+        }
+    }
+
+    /**
+     * Index the AS paths deferred by catch-up mode
+     *
+     * \details The paths are sent in chunks with their own keys, so the backfill is spread over
+     *      the as_path_analysis writers.
+     */
+    private void backfillAsPaths() {
+        List<String> paths = catchUp.takeDeferred();
+
+        logger.info("Backfilling as_path_analysis of %d AS paths", paths.size());
+
+        for (int i = 0; i < paths.size(); i += BACKFILL_CHUNK_PATHS) {
+            List<String> chunk = paths.subList(i, Math.min(paths.size(), i + BACKFILL_CHUNK_PATHS));
+
+            addAsPathAnalysisToWriter("as_path_backfill-" + i, BaseAttributeQuery.genAsPathAnalysisRows(chunk));
+        }
+
+        // Offsets held for the deferred paths are flushed with the backfill
+        if (offsetTracker != null)
+            checkpointOffsets(Collections.<TopicPartition, Long>emptyMap());
+    }
+
+    /**
+     * Add as_path_analysis rows to the writer, except the tuples already cached
+     *
+     * @param key           Message key
+     * @param rows          Rows of (asn, asn_left, asn_right, asn_left_is_peering)
+     */
+    private void addAsPathAnalysisToWriter(String key, List<Object[]> rows) {
+        if (asPathCache == null) {
+            addBulkQuerytoWriter(key, BaseAttributeQuery.AS_PATH_ANALYSIS_TEMPLATE, rows,
+                                 ThreadType.THRAED_AS_PATH_ANALYSIS);
+
+        } else {
+            asPathCache.filter(rows, System.currentTimeMillis());
+
+            if (!rows.isEmpty())
+                addBulkQuerytoWriter(key, BaseAttributeQuery.AS_PATH_ANALYSIS_REFRESH_TEMPLATE, rows,
+                                     ThreadType.THRAED_AS_PATH_ANALYSIS);
+        }
+    }
+
     /**
      * Method will subscribe to pending topics
      *
+     * \details The next topic pattern is subscribed once the topics subscribed so far have caught up,
+     *      which is when the partitions have been assigned and their lag is at or below
+     *      topic_subscribe_max_lag.  The topic_subscribe_delay_millis is the max time to wait.
+     *
      * @param prev_timestamp        Previous timestamp that topics were subscribed.
      *
      * @return Time in milliseconds that the topic was last subscribed
@@ -783,10 +1427,40 @@ public class MySQLConsumerRunnable implements Runnable {
         long sub_timestamp = prev_timestamp;
 
         if (topics_subscribed_count < topic_patterns.size()) {
+            long now = System.currentTimeMillis();
+            boolean subscribe = false;
+
+            if ((now - prev_timestamp) >= cfg.getTopic_subscribe_delay_millis()) {
+                subscribe = true;
+
+            } else if (cfg.getTopic_subscribe_max_lag() >= 0
+                    && rebalanceListener.getAssignedCount() > subscribe_assigned_count
+                    && now - last_lag_check_time >= TOPIC_LAG_CHECK_MILLIS) {
+
+                // Partitions of the previous subscription are assigned, check if they have caught up
+                last_lag_check_time = now;
+
+                try {
+                    long lag = subscribedLag();
+
+                    if (lag <= cfg.getTopic_subscribe_max_lag()) {
+                        logger.info("Subscribed topics caught up, lag %d after %d ms", lag, now - prev_timestamp);
+                        subscribe = true;
+                    } else {
+                        logger.debug("Subscribed topics lag %d", lag);
+                    }
 
-            if ((System.currentTimeMillis() - prev_timestamp) >= cfg.getTopic_subscribe_delay_millis()) {
+                } catch (KafkaException ex) {
+                    logger.debug("Unable to get the lag of subscribed topics: %s", ex.getMessage());
+                }
+            }
 
-                consumer.commitSync();
+            if (subscribe) {
+
+                if (offsetTracker != null)
+                    commitFlushedOffsets(true);
+                else
+                    consumer.commitSync();
 
                 if (topics_subscribed_count > 0)
                     topic_regex_pattern.append('|');
@@ -802,6 +1476,7 @@ public class MySQLConsumerRunnable implements Runnable {
 
                 topics_subscribed_count++;
 
+                subscribe_assigned_count = rebalanceListener.getAssignedCount();
                 sub_timestamp = System.currentTimeMillis();
             }
         } else {
@@ -827,6 +1502,49 @@ public class MySQLConsumerRunnable implements Runnable {
 
         return qSize;
     }
+
+    /**
+     * Get writer stats, summed over all current writers
+     *
+     * @return Array of flush count, execute milliseconds, blocked milliseconds, deadlocks, retries,
+     *      duplicate rows removed and updates skipped
+     */
+    public synchronized long[] getWriterStats() {
+        long[] stats = new long[7];
+
+        for (ThreadType t: ThreadType.values()) {
+            for (MySQLWriterObject obj: writer_thread_map.get(t)) {
+                stats[0] += obj.writerThread.getFlushCount();
+                stats[1] += obj.writerThread.getExecuteMillis();
+                stats[2] += obj.writerThread.getBlockedMillis();
+                stats[3] += obj.writerThread.getDeadlockCount();
+                stats[4] += obj.writerThread.getRetryCount();
+                stats[5] += obj.writerThread.getDedupCount();
+                stats[6] += obj.writerThread.getSkippedCount();
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * @return as_path_analysis cache stats: tuples cached, hits, misses and refreshes, null if disabled
+     */
+    public long[] getAsPathCacheStats() {
+        if (asPathCache == null)
+            return null;
+
+        return new long[] { asPathCache.getSize(), asPathCache.getHitCount(), asPathCache.getMissCount(),
+                            asPathCache.getRefreshCount() };
+    }
+
+    /**
+     * @return Writer autoscalers, one per thread type
+     */
+    public Collection<MySQLWriterAutoscaler> getWriterAutoscalers() {
+        return writer_autoscaler_map.values();
+    }
+
     public synchronized Long getLast_collector_msg_time() { return last_collector_msg_time; }
 
     public long getCollector_msg_count() {
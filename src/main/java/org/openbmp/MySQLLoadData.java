@@ -0,0 +1,247 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.mariadb.jdbc.MariaDbStatement;
+import org.openbmp.mysqlquery.StatementTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * LOAD DATA LOCAL INFILE bulk loader
+ *
+ * \details Streams rows as tab delimited lines through the MariaDB local infile input stream into
+ *      a per connection staging table, then merges the staging table into the target table with a
+ *      single INSERT ... SELECT using the template verb and ON DUPLICATE KEY UPDATE suffix.
+ *
+ *      Staging tables are TEMPORARY, created as SELECT of the target columns LIMIT 0, which copies
+ *      the column types without keys or partitioning.  They are only visible to the connection that
+ *      created them, so each writer has its own loader.  {@link #reset()} must be called after
+ *      reconnecting.
+ *
+ *      Only the high volume tables are loaded this way; see {@link #isSupported(StatementTemplate)}.
+ */
+public class MySQLLoadData {
+
+    /**
+     * Tables that support LOAD DATA
+     */
+    private static final Set<String> TABLES = new HashSet<>(Arrays.asList(
+            "rib", "path_attrs", "as_path_analysis", "l3vpn_rib"));
+
+    private static final String STAGING_PREFIX = "load_";
+
+    private final Set<StatementTemplate> staged = new HashSet<>();      // Staging tables created
+
+    /**
+     * Indicates if the template can be loaded using LOAD DATA
+     *
+     * @param template      Statement template
+     *
+     * @return True if LOAD DATA is supported for the template table
+     */
+    public static boolean isSupported(StatementTemplate template) {
+        return TABLES.contains(template.getTable());
+    }
+
+    /**
+     * Reset the loader state, such as after reconnecting to MySQL.  Staging tables are recreated on next load.
+     */
+    public void reset() {
+        staged.clear();
+    }
+
+    /**
+     * Load rows into the template table
+     *
+     * @param con           MySQL connection
+     * @param template      Statement template of the rows
+     * @param chunks        Row lists to load
+     * @param chunkCount    Number of valid entries in chunks
+     *
+     * @throws SQLException on failure, the staging table is recreated on the next load
+     */
+    public void load(Connection con, StatementTemplate template, List<Object[]>[] chunks, int chunkCount)
+            throws SQLException {
+
+        String staging = STAGING_PREFIX + template.getTable();
+
+        try (Statement stmt = con.createStatement()) {
+
+            if (!staged.contains(template)) {
+                stmt.executeUpdate("DROP TEMPORARY TABLE IF EXISTS " + staging);
+                stmt.executeUpdate("CREATE TEMPORARY TABLE " + staging + " SELECT " + genColumnList(template) +
+                                   " FROM " + template.getTable() + " LIMIT 0");
+                staged.add(template);
+            }
+
+            try {
+                stmt.unwrap(MariaDbStatement.class).setLocalInfileInputStream(
+                        new RowInputStream(template, chunks, chunkCount));
+
+                stmt.executeUpdate(genLoadStatement(template, staging));
+
+                stmt.executeUpdate(genMergeStatement(template, staging));
+
+                // DELETE instead of TRUNCATE, which would implicitly commit a transaction
+                stmt.executeUpdate("DELETE FROM " + staging);
+
+            } catch (SQLException e) {
+                staged.remove(template);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Generate the LOAD DATA statement
+     *
+     * \details Columns that are not loaded as is are read into user variables and converted
+     *      by the SET clause, such as UNHEX() for HEX_BINARY.
+     *
+     * @param template      Statement template
+     * @param staging       Staging table name
+     *
+     * @return LOAD DATA statement
+     */
+    static String genLoadStatement(StatementTemplate template, String staging) {
+        StringBuilder cols = new StringBuilder();
+        StringBuilder set = new StringBuilder();
+        String[] columns = template.getColumns();
+
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0)
+                cols.append(',');
+
+            String func = null;
+
+            switch (template.getColumnType(i)) {
+                case HEX_BINARY: func = "UNHEX(@c" + i + ")"; break;
+                case HEX_NUMBER: func = "CONV(@c" + i + ",16,10)"; break;
+                case UNIX_TIME:  func = "FROM_UNIXTIME(@c" + i + ")"; break;
+                default:
+                    break;
+            }
+
+            if (func == null) {
+                cols.append(columns[i]);
+            } else {
+                cols.append("@c").append(i);
+
+                set.append(set.length() > 0 ? "," : " SET ");
+                set.append(columns[i]).append('=').append(func);
+            }
+        }
+
+        return "LOAD DATA LOCAL INFILE '" + staging + ".tsv' INTO TABLE " + staging +
+               " CHARACTER SET utf8 FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' (" +
+               cols + ")" + set;
+    }
+
+    /**
+     * Generate the set based merge of the staging table into the target table
+     *
+     * @param template      Statement template
+     * @param staging       Staging table name
+     *
+     * @return INSERT ... SELECT statement
+     */
+    static String genMergeStatement(StatementTemplate template, String staging) {
+        String cols = genColumnList(template);
+
+        return template.getVerb() + " " + template.getTable() + " (" + cols + ") SELECT " + cols +
+               " FROM " + staging + " " + template.getSuffix();
+    }
+
+    private static String genColumnList(StatementTemplate template) {
+        return String.join(",", template.getColumns());
+    }
+
+    /**
+     * Input stream of tab delimited rows, rendered as read
+     */
+    static class RowInputStream extends InputStream {
+        private static final int FILL_SIZE = 65536;
+
+        private final StatementTemplate template;
+        private final List<Object[]>[] chunks;
+        private final int chunkCount;
+
+        private final StringBuilder sb = new StringBuilder(FILL_SIZE + 4096);
+        private int chunk;
+        private int row;
+
+        private byte[] buf = new byte[0];
+        private int pos;
+
+        RowInputStream(StatementTemplate template, List<Object[]>[] chunks, int chunkCount) {
+            this.template = template;
+            this.chunks = chunks;
+            this.chunkCount = chunkCount;
+        }
+
+        /*
+         * Render the next set of rows into the buffer
+         *
+         * @return False if there are no more rows
+         */
+        private boolean fill() {
+            sb.setLength(0);
+
+            while (sb.length() < FILL_SIZE && chunk < chunkCount) {
+                List<Object[]> rows = chunks[chunk];
+
+                if (row >= rows.size()) {
+                    ++chunk;
+                    row = 0;
+                    continue;
+                }
+
+                template.appendTsvRow(sb, rows.get(row++));
+                sb.append('\n');
+            }
+
+            buf = sb.toString().getBytes(StandardCharsets.UTF_8);
+            pos = 0;
+
+            return buf.length > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= buf.length && !fill())
+                return -1;
+
+            return buf[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            if (pos >= buf.length && !fill())
+                return -1;
+
+            int n = Math.min(len, buf.length - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+
+            return n;
+        }
+    }
+}
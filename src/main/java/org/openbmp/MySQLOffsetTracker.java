@@ -0,0 +1,125 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Tracks the kafka offsets that have been written to MySQL
+ *
+ * \details After the records of a poll are sent to the writers, a checkpoint is added with the next
+ *      offset of each polled partition and the write sequence of every writer queue.  The checkpoint
+ *      is flushed once every writer has committed its messages up to the sequence, meaning all
+ *      messages of the records before the offsets are in MySQL.  Only flushed offsets are committed
+ *      to kafka, so a crash replays the records that were not written instead of losing them.
+ *
+ *      Messages held while keys move between writers are not in a writer queue yet, so offsets of
+ *      polls during a migration are deferred to the next checkpoint.
+ *
+ *      Used only by the consumer thread, so it's not thread safe.
+ *
+ * @param <W>       Writer type
+ */
+public class MySQLOffsetTracker<W> {
+
+    /**
+     * Checkpoint of the offsets and writer sequences after a poll
+     */
+    private static class Checkpoint<W> {
+        final Map<TopicPartition, Long> offsets;
+        final List<W> writers;
+        final long[] sequences;
+
+        Checkpoint(Map<TopicPartition, Long> offsets, List<W> writers, long[] sequences) {
+            this.offsets = offsets;
+            this.writers = writers;
+            this.sequences = sequences;
+        }
+    }
+
+    private final ToLongFunction<W> committedSequence;         // Committed queue sequence of a writer
+
+    private final ArrayDeque<Checkpoint<W>> pending = new ArrayDeque<>();
+    private Map<TopicPartition, Long> deferred = new HashMap<>();  // Offsets not in a checkpoint yet
+
+    /**
+     * Constructor
+     *
+     * @param committedSequence     Returns the queue sequence the writer has committed to MySQL
+     */
+    public MySQLOffsetTracker(ToLongFunction<W> committedSequence) {
+        this.committedSequence = committedSequence;
+    }
+
+    /**
+     * Defer the offsets to the next checkpoint, such as while keys are moving between writers
+     *
+     * @param offsets       Next offset to consume by partition
+     */
+    public void defer(Map<TopicPartition, Long> offsets) {
+        deferred.putAll(offsets);
+    }
+
+    /**
+     * Add a checkpoint
+     *
+     * @param offsets       Next offset to consume by partition, all records before are in the writer queues
+     * @param writers       Writers
+     * @param sequences     Write sequence of each writer queue
+     */
+    public void checkpoint(Map<TopicPartition, Long> offsets, List<W> writers, long[] sequences) {
+        deferred.putAll(offsets);
+
+        pending.add(new Checkpoint<>(deferred, writers, sequences));
+        deferred = new HashMap<>();
+    }
+
+    /**
+     * Take the offsets of the checkpoints that have been flushed to MySQL
+     *
+     * @return Next offset to consume by partition, empty if nothing more has been flushed
+     */
+    public Map<TopicPartition, Long> takeFlushed() {
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+
+        while (!pending.isEmpty() && isFlushed(pending.peek())) {
+            offsets.putAll(pending.poll().offsets);
+        }
+
+        return offsets;
+    }
+
+    /**
+     * @return True if there are deferred offsets that are not in a checkpoint yet
+     */
+    public boolean hasDeferred() {
+        return !deferred.isEmpty();
+    }
+
+    /**
+     * @return Number of checkpoints waiting for the writers
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private boolean isFlushed(Checkpoint<W> checkpoint) {
+        for (int i = 0; i < checkpoint.sequences.length; i++) {
+            if (committedSequence.applyAsLong(checkpoint.writers.get(i)) < checkpoint.sequences[i])
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,130 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolves the MySQL KEY partition of a partition column value
+ *
+ * \details Uses EXPLAIN PARTITIONS SELECT 1 FROM table WHERE column = value, which prunes to the
+ *      single partition of the value.  The partitions are named p0 to pN-1 by MySQL when the table
+ *      is created with PARTITIONS N, so the partition number is the name without the p.
+ *
+ *      The resolver has its own connection.  If MySQL can't be reached, values are not resolved
+ *      until the retry time has passed.  Partitions are cached by {@link MySQLWriterPartitioner},
+ *      so each value is resolved once.
+ *
+ *      Used only by the consumer thread, so it's not thread safe.
+ */
+public class MySQLPartitionResolver implements MySQLWriterPartitioner.Resolver {
+    private static final Logger logger = LogManager.getFormatterLogger(MySQLPartitionResolver.class.getName());
+
+    /**
+     * Time in milliseconds to wait before connecting again after a failure
+     */
+    private static final long RETRY_MILLIS = 60000;
+
+    private final Config cfg;
+    private Connection con;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();    // EXPLAIN by table
+    private long failedTime;
+
+    /**
+     * Constructor
+     *
+     * @param cfg       Configuration - e.g. DB credentials
+     */
+    public MySQLPartitionResolver(Config cfg) {
+        this.cfg = cfg;
+    }
+
+    @Override
+    public int resolve(String table, String column, Object value) {
+        long now = System.currentTimeMillis();
+
+        if (failedTime > 0 && now - failedTime < RETRY_MILLIS)
+            return -1;
+
+        try {
+            PreparedStatement stmt = statements.get(table);
+
+            if (stmt == null) {
+                if (con == null) {
+                    con = DriverManager.getConnection(
+                            "jdbc:mariadb://" + cfg.getDbHost() + "/" + cfg.getDbName() +
+                                    "?tcpKeepAlive=true&connectTimeout=5000&socketTimeout=30000",
+                            cfg.getDbUser(), cfg.getDbPw());
+                }
+
+                stmt = con.prepareStatement("EXPLAIN PARTITIONS SELECT 1 FROM " + table + " WHERE " + column + " = ?");
+                statements.put(table, stmt);
+            }
+
+            stmt.setObject(1, value);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                failedTime = 0;
+
+                if (rs.next())
+                    return parsePartition(rs.getString("partitions"));
+            }
+
+        } catch (SQLException e) {
+            logger.warn("Failed to resolve the partition of %s %s=%s: %s", table, column, value, e.getMessage());
+
+            failedTime = now;
+            close();
+        }
+
+        return -1;
+    }
+
+    /**
+     * Parse the partition number of the EXPLAIN partitions column
+     *
+     * @param partitions    Partitions of the EXPLAIN, such as p7
+     *
+     * @return Partition number, or -1 if not a single partition named pN
+     */
+    static int parsePartition(String partitions) {
+        if (partitions == null || partitions.length() < 2 || partitions.charAt(0) != 'p')
+            return -1;
+
+        try {
+            return Integer.parseInt(partitions.substring(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Close the connection, it's opened again on the next resolve
+     */
+    public void close() {
+        statements.clear();
+
+        try {
+            if (con != null)
+                con.close();
+        } catch (SQLException e) {
+            // ignore
+        }
+
+        con = null;
+    }
+}
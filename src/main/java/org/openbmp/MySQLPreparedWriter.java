@@ -0,0 +1,163 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbmp.mysqlquery.StatementTemplate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prepared statement bulk writer
+ *
+ * \details Alternative to the text multi-statement engine.  Each template is prepared once per
+ *      connection as a single row statement and rows are bound as typed parameters, then sent
+ *      using addBatch/executeBatch.  The connection is expected to use server side prepared
+ *      statements with batch pipelining (useServerPrepStmts, useBatchMultiSend).
+ *
+ *      Prepared statements belong to the connection, so each writer has its own instance.
+ *      {@link #reset()} must be called after reconnecting.
+ */
+public class MySQLPreparedWriter {
+    private static final Logger logger = LogManager.getFormatterLogger(MySQLPreparedWriter.class.getName());
+
+    private final Map<StatementTemplate, PreparedStatement> prepared = new HashMap<>();
+
+    /**
+     * Reset, closing all prepared statements, such as after reconnecting to MySQL
+     */
+    public void reset() {
+        for (PreparedStatement stmt : prepared.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                logger.debug("Failed to close prepared statement: %s", e.getMessage());
+            }
+        }
+
+        prepared.clear();
+    }
+
+    /**
+     * Execute rows using the prepared statement of the template
+     *
+     * @param con           MySQL connection
+     * @param template      Statement template of the rows
+     * @param chunks        Row lists to execute
+     * @param chunkCount    Number of valid entries in chunks
+     *
+     * @throws SQLException on failure, the statement is prepared again on the next execute
+     */
+    public void execute(Connection con, StatementTemplate template, List<Object[]>[] chunks, int chunkCount)
+            throws SQLException {
+
+        PreparedStatement stmt = prepared.get(template);
+
+        if (stmt == null) {
+            stmt = con.prepareStatement(genPreparedStatement(template));
+            prepared.put(template, stmt);
+        }
+
+        try {
+            for (int c = 0; c < chunkCount; c++) {
+                List<Object[]> rows = chunks[c];
+
+                for (int r = 0; r < rows.size(); r++) {
+                    bindRow(stmt, template, rows.get(r));
+                    stmt.addBatch();
+                }
+            }
+
+            stmt.executeBatch();
+
+        } catch (SQLException e) {
+            prepared.remove(template);
+
+            try {
+                stmt.close();
+            } catch (SQLException e2) {
+                // ignore
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Generate the single row prepared statement for the template
+     *
+     * \details Placeholders of columns that are rendered using a function in the text statement
+     *      use the same function, such as UNHEX(?) for HEX_BINARY.
+     *
+     * @param template      Statement template
+     *
+     * @return Statement with ? placeholders
+     */
+    static String genPreparedStatement(StatementTemplate template) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(template.getPrefix());
+        sb.append(" (");
+
+        for (int i = 0; i < template.getColumnCount(); i++) {
+            if (i > 0)
+                sb.append(',');
+
+            switch (template.getColumnType(i)) {
+                case HEX_BINARY: sb.append("UNHEX(?)"); break;
+                case HEX_NUMBER: sb.append("CONV(?,16,10)"); break;
+                case UNIX_TIME:  sb.append("FROM_UNIXTIME(?)"); break;
+                default:         sb.append('?'); break;
+            }
+        }
+
+        sb.append(") ");
+        sb.append(template.getSuffix());
+
+        return sb.toString();
+    }
+
+    /*
+     * Bind row values to the statement parameters
+     */
+    private static void bindRow(PreparedStatement stmt, StatementTemplate template, Object[] row)
+            throws SQLException {
+
+        for (int i = 0; i < row.length; i++) {
+            Object value = row[i];
+
+            switch (template.getColumnType(i)) {
+                case STRING:
+                    // Same as the text statement, which renders null as 'null'
+                    stmt.setString(i + 1, String.valueOf(value));
+                    break;
+
+                case NUMBER:
+                    if (value == null)
+                        stmt.setNull(i + 1, Types.BIGINT);
+                    else
+                        stmt.setObject(i + 1, value);
+                    break;
+
+                default:
+                    if (value == null)
+                        stmt.setNull(i + 1, Types.VARCHAR);
+                    else
+                        stmt.setString(i + 1, value.toString());
+                    break;
+            }
+        }
+    }
+}
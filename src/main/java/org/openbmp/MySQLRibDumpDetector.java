@@ -0,0 +1,194 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Per peer RIB dump detector
+ *
+ * \details After a peer comes up, the router sends the whole RIB of the peer (the dump) as fast
+ *      as it can, followed by the steady state updates.  A peer is in the dump phase from the
+ *      peer up until its prefix rate, measured per interval, settles below the settle rate.
+ *      The dump lasts at least the min time, so a slow start doesn't end it, and at most the
+ *      max time.
+ *
+ *      Rows of peers in the dump phase are bulk loaded, see {@link MySQLWriterRunnable#markBulk(long)}.
+ *
+ *      Shared by the consumer threads, since the peer topic partition of a peer and the partitions
+ *      of its rows can be assigned to different consumer threads.  Methods are synchronized.
+ */
+public class MySQLRibDumpDetector {
+    private static final Logger logger = LogManager.getFormatterLogger(MySQLRibDumpDetector.class.getName());
+
+    /**
+     * Interval in milliseconds to measure the prefix rate of a peer
+     */
+    static final long RATE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Dump phase of a peer
+     */
+    private static class Dump {
+        final long startTime;
+        long intervalTime;                          // Start of the rate interval
+        long intervalRows;                          // Rows in the rate interval
+        long lastTime;                              // Time of the last rows
+        long rows;
+
+        Dump(long now) {
+            startTime = now;
+            intervalTime = now;
+            lastTime = now;
+        }
+    }
+
+    private final double settleRate;                // Prefixes per second that end the dump
+    private final long minMillis;
+    private final long maxMillis;
+
+    private final Map<String, Dump> dumps = new HashMap<>();   // Peers in the dump phase by peer hash id
+
+    private long dumpCount;                         // Number of dumps detected
+
+    /**
+     * Constructor
+     *
+     * @param settleRate    Prefixes per second of a peer that end the dump
+     * @param minMillis     Min time in milliseconds of a dump
+     * @param maxMillis     Max time in milliseconds of a dump
+     */
+    public MySQLRibDumpDetector(double settleRate, long minMillis, long maxMillis) {
+        this.settleRate = settleRate;
+        this.minMillis = minMillis;
+        this.maxMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * Peer is up, its RIB dump follows
+     *
+     * @param peerHashId    Peer hash id
+     * @param now           Current time in milliseconds
+     */
+    public synchronized void peerUp(String peerHashId, long now) {
+        if (dumps.put(peerHashId, new Dump(now)) == null)
+            ++dumpCount;
+
+        logger.info("RIB dump of peer %s started", peerHashId);
+    }
+
+    /**
+     * Peer is down, its dump (if any) is over
+     *
+     * @param peerHashId    Peer hash id
+     */
+    public synchronized void peerDown(String peerHashId) {
+        if (dumps.remove(peerHashId) != null)
+            logger.info("RIB dump of peer %s ended, peer is down", peerHashId);
+    }
+
+    /**
+     * Count the rows of a peer and check if the peer is in the dump phase
+     *
+     * @param peerHashId    Peer hash id of the rows
+     * @param rows          Number of rows (prefixes)
+     * @param now           Current time in milliseconds
+     *
+     * @return True if the peer is in the dump phase
+     */
+    public synchronized boolean update(String peerHashId, int rows, long now) {
+        Dump dump = dumps.get(peerHashId);
+
+        if (dump == null)
+            return false;
+
+        if (isDone(dump, now)) {
+            end(peerHashId, dump);
+            return false;
+        }
+
+        dump.rows += rows;
+        dump.intervalRows += rows;
+        dump.lastTime = now;
+
+        return true;
+    }
+
+    /**
+     * End the dumps of peers that have settled without sending more rows
+     *
+     * @param now           Current time in milliseconds
+     */
+    public synchronized void expire(long now) {
+        Iterator<Map.Entry<String, Dump>> it = dumps.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<String, Dump> entry = it.next();
+
+            if (isDone(entry.getValue(), now)) {
+                log(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * Check if the dump is done, measuring the rate at the end of each interval
+     */
+    private boolean isDone(Dump dump, long now) {
+        if (now - dump.startTime >= maxMillis)
+            return true;
+
+        long elapsed = now - dump.intervalTime;
+
+        if (elapsed < RATE_INTERVAL_MILLIS)
+            return false;
+
+        double rate = dump.intervalRows * 1000.0 / elapsed;
+        dump.intervalTime = now;
+        dump.intervalRows = 0;
+
+        return now - dump.startTime >= minMillis && rate < settleRate;
+    }
+
+    private void end(String peerHashId, Dump dump) {
+        dumps.remove(peerHashId);
+        log(peerHashId, dump);
+    }
+
+    private void log(String peerHashId, Dump dump) {
+        logger.info("RIB dump of peer %s ended: prefixes=%d duration=%dms", peerHashId, dump.rows,
+                    dump.lastTime - dump.startTime);
+    }
+
+    /**
+     * @return True if the peer is in the dump phase
+     */
+    public synchronized boolean isDump(String peerHashId) {
+        return dumps.containsKey(peerHashId);
+    }
+
+    /**
+     * @return Number of peers in the dump phase
+     */
+    public synchronized int getActiveCount() {
+        return dumps.size();
+    }
+
+    /**
+     * @return Number of dumps detected
+     */
+    public synchronized long getDumpCount() {
+        return dumpCount;
+    }
+}
@@ -0,0 +1,232 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writer pool autoscaler, one per writer type
+ *
+ * \details Sizes the writer pool from the measured arrival rate, the SQL service time per message
+ *      and the queue backlog.  By Little's law a writer that takes S seconds per message is busy
+ *      rate * S of the time at an arrival rate of rate messages per second.  The target number of writers
+ *      keeps each writer at the target utilization, with enough spare capacity to drain the current
+ *      backlog within the latency SLO:
+ *
+ *          target = ceil((rate + backlog / SLO) * S / utilization)
+ *
+ *      The queue wait (age) of a writer is estimated as its queue size times S.  The pool grows to the
+ *      target, possibly by more than one writer, after it's above the current size for
+ *      allowed_over times in a row.  It shrinks by one writer after the target has been below the
+ *      current size for the scale back time.  Writers are rebalanced when one is over the SLO while
+ *      another is mostly idle.
+ */
+public class MySQLWriterAutoscaler {
+    private static final Logger logger = LogManager.getFormatterLogger(MySQLWriterAutoscaler.class.getName());
+
+    /**
+     * Scaling action
+     */
+    public enum Action {
+        NONE,
+        GROW,               // Add writers up to the target
+        SHRINK,             // Remove one writer
+        REBALANCE           // Move keys off congested writers
+    }
+
+    private final String name;
+    private final long sloMillis;                   // Max queue wait
+    private final double utilization;               // Target writer utilization, 0 to 1
+    private final int maxWriters;
+    private final int allowedOver;                  // Updates above the current size before growing
+    private final long scaleBackMillis;             // Time below the current size before shrinking
+    private final long rebalanceMillis;             // Min time between rebalances
+
+    private long prevTime = -1;
+    private long prevArrived;
+
+    private int overCount;                          // Updates in a row the target is above the writers
+    private long belowSince = -1;                   // Time the target went below the writers, -1 if not below
+    private long lastRebalance;
+    private long overMaxCount;                      // Updates over the SLO at max writers
+
+    /*
+     * Metrics of the last update
+     */
+    private double arrivalRate;                     // Messages per second
+    private double serviceMillis;                   // Service time per message
+    private long waitMillis;                        // Max estimated queue wait of a writer
+    private int writers;
+    private int target;
+
+    private long growCount;
+    private long shrinkCount;
+    private long rebalanceCount;
+
+    /**
+     * Constructor
+     *
+     * @param name              Name for logging, such as the writer type
+     * @param sloMillis         Max queue wait (latency SLO) in milliseconds
+     * @param utilization       Target writer utilization, 0 to 1
+     * @param maxWriters        Max number of writers
+     * @param allowedOver       Number of updates in a row above the current size before growing
+     * @param scaleBackMillis   Time in milliseconds below the current size before shrinking
+     * @param rebalanceMillis   Min time in milliseconds between rebalances
+     */
+    public MySQLWriterAutoscaler(String name, long sloMillis, double utilization, int maxWriters,
+                                 int allowedOver, long scaleBackMillis, long rebalanceMillis) {
+        this.name = name;
+        this.sloMillis = Math.max(1, sloMillis);
+        this.utilization = utilization > 0 && utilization <= 1 ? utilization : 0.7;
+        this.maxWriters = Math.max(1, maxWriters);
+        this.allowedOver = Math.max(1, allowedOver);
+        this.scaleBackMillis = scaleBackMillis;
+        this.rebalanceMillis = rebalanceMillis;
+    }
+
+    /**
+     * Update with the current measurements and decide the scaling action
+     *
+     * @param now                       Current time in milliseconds
+     * @param arrived                   Total number of messages sent to the writers so far
+     * @param queueSizes                Queue size of each writer
+     * @param serviceNanosPerMessage    Average SQL service time per message, zero if not known yet
+     *
+     * @return Action to take.  For GROW, add {@link #getTarget()} minus the current writers.
+     */
+    public Action update(long now, long arrived, int[] queueSizes, double serviceNanosPerMessage) {
+        writers = queueSizes.length;
+
+        if (prevTime < 0 || now <= prevTime) {
+            prevTime = now;
+            prevArrived = arrived;
+            target = writers;
+            return Action.NONE;
+        }
+
+        arrivalRate = (arrived - prevArrived) * 1000.0 / (now - prevTime);
+        prevTime = now;
+        prevArrived = arrived;
+
+        serviceMillis = serviceNanosPerMessage / 1e6;
+
+        long backlog = 0;
+        int maxQueue = 0;
+        int minQueue = Integer.MAX_VALUE;
+
+        for (int size : queueSizes) {
+            backlog += size;
+            maxQueue = Math.max(maxQueue, size);
+            minQueue = Math.min(minQueue, size);
+        }
+
+        waitMillis = (long) (maxQueue * serviceMillis);
+
+        if (serviceNanosPerMessage <= 0) {
+            target = writers;               // Service time not known yet
+        } else {
+            double demand = (arrivalRate + backlog * 1000.0 / sloMillis) * serviceMillis / 1000.0;
+            target = (int) Math.ceil(demand / utilization);
+            target = Math.max(1, Math.min(maxWriters, target));
+        }
+
+        if (target > writers) {
+            belowSince = -1;
+
+            if (++overCount >= allowedOver) {
+                overCount = 0;
+                ++growCount;
+
+                log("adding %d writers", target - writers);
+                return Action.GROW;
+            }
+
+        } else if (target < writers) {
+            overCount = 0;
+
+            if (belowSince < 0) {
+                belowSince = now;
+
+            } else if (now - belowSince >= scaleBackMillis) {
+                belowSince = now;           // Shrink one at a time
+                ++shrinkCount;
+
+                log("removing 1 writer");
+                return Action.SHRINK;
+            }
+
+        } else {
+            overCount = 0;
+            belowSince = -1;
+        }
+
+        // Rebalance if a writer is over the SLO while another is mostly idle
+        if (writers > 1 && waitMillis > sloMillis && minQueue * serviceMillis < sloMillis / 4.0
+                && now - lastRebalance >= rebalanceMillis) {
+            lastRebalance = now;
+            ++rebalanceCount;
+
+            log("rebalancing");
+            return Action.REBALANCE;
+        }
+
+        if (waitMillis > sloMillis && writers >= maxWriters) {
+            if (overMaxCount++ % 10 == 0)
+                log("over SLO at max writers");
+        }
+        else
+            logger.debug("Autoscale %s: writers=%d target=%d arrival=%.0f/s service=%.3fms wait=%dms",
+                         name, writers, target, arrivalRate, serviceMillis, waitMillis);
+
+        return Action.NONE;
+    }
+
+    private void log(String decision, Object... args) {
+        logger.info("Autoscale %s: writers=%d target=%d arrival=%.0f/s service=%.3fms wait=%dms slo=%dms: %s",
+                    name, writers, target, arrivalRate, serviceMillis, waitMillis, sloMillis,
+                    String.format(decision, args));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getArrivalRate() {
+        return arrivalRate;
+    }
+
+    public double getServiceMillis() {
+        return serviceMillis;
+    }
+
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    public int getWriters() {
+        return writers;
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    public long getGrowCount() {
+        return growCount;
+    }
+
+    public long getShrinkCount() {
+        return shrinkCount;
+    }
+
+    public long getRebalanceCount() {
+        return rebalanceCount;
+    }
+}
@@ -0,0 +1,474 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.openbmp.mysqlquery.StatementTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Writer bulk batch
+ *
+ * \details Append-only per template buffer of pending rows.  Messages are added as chunks
+ *      (the row lists from the queue) without copying or rendering.  On flush the whole
+ *      batch is rendered once into a reused buffer as a multi-statement, one bulk
+ *      statement per template in the order the templates were first added.  The
+ *      multi-statement is split on row boundaries to fit the MySQL max packet size.
+ *
+ *      Non bulk queries received while the batch is built are kept in order and are run
+ *      after the batch rows.  A query closes the batch, so the rows were queued before it.
+ *
+ *      Chunks are indexed by template id, so adding a message is an array lookup
+ *      and a list append.
+ *
+ *      Rows can be ordered by primary key and coalesced before rendering, see {@link #sortByKey(Set)}.
+ */
+public class MySQLWriterBatch {
+
+    private List<Object[]>[][] chunks;                  // Chunks by template id
+    private int[] chunkCounts;                          // Number of chunks by template id
+    private int[] rowCounts;                            // Number of rows by template id
+    private int[] order;                                // Template ids in the order first added
+    private StatementTemplate[] templates;              // Templates by template id
+
+    private int templateCount;                          // Number of templates in the batch
+    private int messageCount;                           // Number of messages (chunks) in the batch
+    private int rowCount;                               // Number of rows in the batch
+
+    private final StringBuilder query = new StringBuilder(65536);
+
+    private final List<String> queries = new ArrayList<>();    // Non bulk queries to run after the rows
+    private final List<String> statements = new ArrayList<>(); // Prepared (rendered) statements
+    private long endSequence;                                   // Queue sequence after the last message
+    private boolean bulk;                                       // Built while bulk loading
+
+    /**
+     * Constructor
+     */
+    @SuppressWarnings("unchecked")
+    public MySQLWriterBatch() {
+        int size = Math.max(16, StatementTemplate.count());
+
+        chunks = (List<Object[]>[][]) new List[size][];
+        chunkCounts = new int[size];
+        rowCounts = new int[size];
+        order = new int[size];
+        templates = new StatementTemplate[size];
+    }
+
+    /**
+     * Add rows to the batch
+     *
+     * @param template      Statement template for the rows
+     * @param rows          Rows to add, the list is kept as is (not copied) until cleared
+     */
+    public void add(StatementTemplate template, List<Object[]> rows) {
+        final int id = template.getId();
+
+        if (id >= templates.length)
+            grow(id + 1);
+
+        if (chunkCounts[id] == 0) {
+            order[templateCount++] = id;
+            templates[id] = template;
+
+            if (chunks[id] == null)
+                chunks[id] = newChunkArray(16);
+        }
+        else if (chunkCounts[id] == chunks[id].length) {
+            chunks[id] = Arrays.copyOf(chunks[id], chunks[id].length * 2);
+        }
+
+        chunks[id][chunkCounts[id]++] = rows;
+        rowCounts[id] += rows.size();
+
+        ++messageCount;
+        rowCount += rows.size();
+    }
+
+    /**
+     * Render the batch as a multi-statement, such as INSERT ... VALUES (..),(..) ON DUPLICATE ...;INSERT ...
+     *
+     * @return Query string, empty if the batch is empty
+     */
+    public String render() {
+        return render(null);
+    }
+
+    /**
+     * Render the batch as a multi-statement, only including the selected templates
+     *
+     * @param include       Templates to include, null to include all
+     *
+     * @return Query string, empty if there is nothing to render
+     */
+    public String render(Predicate<StatementTemplate> include) {
+        List<String> out = new ArrayList<>(1);
+        render(include, Integer.MAX_VALUE, out);
+
+        return out.isEmpty() ? "" : out.get(0);
+    }
+
+    /**
+     * Render the batch as multi-statements of at most maxBytes each, only including the selected templates
+     *
+     * \details Templates are combined into the same multi-statement while they fit.  A template
+     *      statement that doesn't fit is split on row boundaries into more statements.  The size is
+     *      the UTF-8 encoded size, which is what is sent to MySQL.  A single row larger than
+     *      maxBytes is rendered as its own statement.
+     *
+     * @param include       Templates to include, null to include all
+     * @param maxBytes      Max size in bytes of each multi-statement, such as the max_allowed_packet
+     * @param out           List to add the rendered multi-statements to
+     */
+    public void render(Predicate<StatementTemplate> include, int maxBytes, List<String> out) {
+        query.setLength(0);
+        long bytes = 0;                                 // UTF-8 size of query
+
+        for (int t = 0; t < templateCount; t++) {
+            final int id = order[t];
+            final StatementTemplate template = templates[id];
+
+            if (include != null && !include.test(template))
+                continue;
+            final List<Object[]>[] tchunks = chunks[id];
+            final int count = chunkCounts[id];
+            final int tailBytes = utf8Length(template.getSuffix(), 0) + 1;
+
+            boolean first = true;
+            for (int c = 0; c < count; c++) {
+                List<Object[]> rows = tchunks[c];
+
+                for (int r = 0; r < rows.size(); r++) {
+                    int mark = query.length();
+                    long markBytes = bytes;
+
+                    bytes += appendRow(template, rows.get(r), first);
+
+                    if (bytes + tailBytes > maxBytes && mark > 0) {
+                        // Doesn't fit, end the statement before the row and start a new one with the row
+                        query.setLength(mark);
+
+                        if (!first)
+                            appendTail(template);
+
+                        out.add(query.toString());
+
+                        query.setLength(0);
+                        bytes = appendRow(template, rows.get(r), true);
+                    }
+
+                    first = false;
+                }
+            }
+
+            if (!first)
+                bytes += appendTail(template);
+        }
+
+        if (query.length() > 0)
+            out.add(query.toString());
+    }
+
+    /*
+     * Append the row to the query, starting a new template statement if first
+     *
+     * @return UTF-8 size in bytes of what was appended
+     */
+    private int appendRow(StatementTemplate template, Object[] row, boolean first) {
+        int start = query.length();
+
+        if (first) {
+            if (start > 0)
+                query.append(';');
+
+            query.append(template.getPrefix());
+            query.append(' ');
+        }
+        else {
+            query.append(',');
+        }
+
+        template.appendRow(query, row);
+
+        return utf8Length(query, start);
+    }
+
+    /*
+     * Append the end of the template statement
+     *
+     * @return UTF-8 size in bytes of what was appended
+     */
+    private int appendTail(StatementTemplate template) {
+        int start = query.length();
+
+        query.append(' ');
+        query.append(template.getSuffix());
+
+        return utf8Length(query, start);
+    }
+
+    /*
+     * UTF-8 encoded size of the chars from start to the end
+     */
+    private static int utf8Length(CharSequence s, int start) {
+        int bytes = s.length() - start;
+
+        for (int i = start; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c >= 0x800 && !Character.isSurrogate(c))
+                bytes += 2;
+            else if (c >= 0x80)
+                bytes += 1;             // Two bytes, or a surrogate which is half of a four byte pair
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Sort the rows of each template by primary key and remove duplicate rows
+     *
+     * \details Concurrent writers that lock the same rows in different order deadlock each other.
+     *      Sorting makes every statement lock rows in primary key order.  The sort is stable, so rows
+     *      with the same key are kept in the order they were added.
+     *
+     *      Duplicate rows are removed based on the template duplicate policy, which keeps the result
+     *      the same as running all of the rows.  Templates without a key are not changed.
+     *
+     * @return Number of duplicate rows removed
+     */
+    public int sortByKey() {
+        return sortByKey(Collections.emptySet());
+    }
+
+    /**
+     * Sort the rows of each template by primary key, coalescing the rows of the selected tables
+     *
+     * \details Same as {@link #sortByKey()}, but rows with the same key of the selected tables are
+     *      coalesced into the last state of the key, see {@link StatementTemplate#coalesce}.  A route that
+     *      flaps within the batch is then written once instead of once per update.  Tables with
+     *      templates that can't be coalesced use the duplicate policy.
+     *
+     * @param coalesceTables    Tables to coalesce
+     *
+     * @return Number of duplicate and coalesced rows removed
+     */
+    public int sortByKey(Set<String> coalesceTables) {
+        int removed = 0;
+
+        for (int t = 0; t < templateCount; t++) {
+            final int id = order[t];
+            final StatementTemplate template = templates[id];
+
+            if (!template.hasKey() || rowCounts[id] < 2)
+                continue;
+
+            List<Object[]> sorted = new ArrayList<>(rowCounts[id]);
+            for (int c = 0; c < chunkCounts[id]; c++)
+                sorted.addAll(chunks[id][c]);
+
+            Collections.sort(sorted, template::compareKey);
+
+            List<Object[]> rows = template.canCoalesce() && coalesceTables.contains(template.getTable())
+                    ? coalesce(template, sorted) : dedup(template, sorted);
+
+            Arrays.fill(chunks[id], 0, chunkCounts[id], null);
+            chunks[id][0] = rows;
+            chunkCounts[id] = 1;
+
+            removed += rowCounts[id] - rows.size();
+            rowCount -= rowCounts[id] - rows.size();
+            rowCounts[id] = rows.size();
+        }
+
+        return removed;
+    }
+
+    /*
+     * Remove duplicate rows from rows sorted by key
+     */
+    private static List<Object[]> dedup(StatementTemplate template, List<Object[]> sorted) {
+        final StatementTemplate.DuplicatePolicy policy = template.getDuplicatePolicy();
+        List<Object[]> rows = new ArrayList<>(sorted.size());
+
+        for (Object[] row : sorted) {
+            Object[] prev = rows.isEmpty() ? null : rows.get(rows.size() - 1);
+
+            if (prev == null || template.compareKey(prev, row) != 0) {
+                rows.add(row);
+                continue;
+            }
+
+            switch (policy) {
+                case KEEP_FIRST:
+                    break;
+
+                case KEEP_LAST:
+                    rows.set(rows.size() - 1, row);
+                    break;
+
+                case KEEP_CHANGED:
+                    if (!Arrays.equals(prev, row))
+                        rows.add(row);
+                    break;
+            }
+        }
+
+        return rows;
+    }
+
+    /*
+     * Coalesce rows with the same key from rows sorted by key
+     */
+    private static List<Object[]> coalesce(StatementTemplate template, List<Object[]> sorted) {
+        List<Object[]> rows = new ArrayList<>(sorted.size());
+        int start = 0;
+
+        for (int i = 1; i <= sorted.size(); i++) {
+            if (i == sorted.size() || template.compareKey(sorted.get(start), sorted.get(i)) != 0) {
+                template.coalesce(sorted, start, i, rows);
+                start = i;
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * Add a non bulk query, which is run after the batch rows
+     *
+     * @param query         Query to run
+     */
+    public void addQuery(String query) {
+        queries.add(query);
+    }
+
+    public List<String> getQueries() {
+        return queries;
+    }
+
+    /**
+     * Get the statements rendered for the batch to be executed, such as by
+     *      {@link #render(Predicate, int, List)}.  The list is cleared with the batch.
+     */
+    public List<String> getStatements() {
+        return statements;
+    }
+
+    /**
+     * Clear the batch, buffers are kept for reuse
+     */
+    public void clear() {
+        for (int t = 0; t < templateCount; t++) {
+            final int id = order[t];
+
+            Arrays.fill(chunks[id], 0, chunkCounts[id], null);
+            chunkCounts[id] = 0;
+            rowCounts[id] = 0;
+        }
+
+        templateCount = 0;
+        messageCount = 0;
+        rowCount = 0;
+
+        queries.clear();
+        statements.clear();
+        endSequence = 0;
+        bulk = false;
+    }
+
+    /**
+     * Set the writer queue sequence after the last message added to the batch
+     */
+    public void setEndSequence(long endSequence) {
+        this.endSequence = endSequence;
+    }
+
+    public long getEndSequence() {
+        return endSequence;
+    }
+
+    /**
+     * Set if the batch was built while bulk loading, such as a RIB dump or catch-up
+     */
+    public void setBulk(boolean bulk) {
+        this.bulk = bulk;
+    }
+
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    /**
+     * @return Number of templates in the batch
+     */
+    public int size() {
+        return templateCount;
+    }
+
+    /**
+     * @param index     Index of the template in the batch, 0 to size() - 1
+     *
+     * @return Template at index, in the order first added
+     */
+    public StatementTemplate template(int index) {
+        return templates[order[index]];
+    }
+
+    /**
+     * Get the chunks (row lists) of the template at index.  Only the first chunkCount(index)
+     *      entries are valid.
+     */
+    public List<Object[]>[] chunks(int index) {
+        return chunks[order[index]];
+    }
+
+    public int chunkCount(int index) {
+        return chunkCounts[order[index]];
+    }
+
+    public int rowCount(int index) {
+        return rowCounts[order[index]];
+    }
+
+    public boolean isEmpty() {
+        return messageCount == 0 && queries.isEmpty();
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /*
+     * Grow the template indexed arrays, templates can be interned after the batch is created
+     */
+    private void grow(int min) {
+        int size = Math.max(min, templates.length * 2);
+
+        chunks = Arrays.copyOf(chunks, size);
+        chunkCounts = Arrays.copyOf(chunkCounts, size);
+        rowCounts = Arrays.copyOf(rowCounts, size);
+        order = Arrays.copyOf(order, size);
+        templates = Arrays.copyOf(templates, size);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object[]>[] newChunkArray(int size) {
+        return (List<Object[]>[]) new List[size];
+    }
+}
@@ -0,0 +1,692 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.openbmp.mysqlquery.StatementTemplate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * MySQL writer connection
+ *
+ * \details Owns the writer MySQL connection and runs the writer batches using the configured
+ *      engine (text multi-statement or prepared statements), LOAD DATA and transaction grouping.
+ *      Handles retries, deadlocks and reconnects.
+ *
+ *      The connection is used by a single thread at a time.  {@link #prepare(MySQLWriterBatch)}
+ *      does not use the connection, so it can run on the thread that builds the next batch while
+ *      another batch is executing.
+ */
+public class MySQLWriterConnection {
+    private static final Logger logger = LogManager.getFormatterLogger(MySQLWriterConnection.class.getName());
+
+    /**
+     * Packet size used if max_allowed_packet can't be read, which is the smallest MySQL default
+     */
+    private static final int DEFAULT_MAX_PACKET = 1048576;
+
+    /**
+     * Bytes of the max packet reserved for the protocol header and command
+     */
+    private static final int PACKET_OVERHEAD = 1024;
+
+    private Connection con;                                     // MySQL connection
+    private Boolean dbConnected;                                // Indicates if DB is connected or not
+    private final Config cfg;
+    private final MySQLLoadData loadData = new MySQLLoadData(); // LOAD DATA loader for this connection
+    private final MySQLPreparedWriter preparedWriter = new MySQLPreparedWriter();  // Prepared statement engine
+    private final boolean usePrepared;                          // Use the prepared statement engine
+    private final int transactionFlushes;                       // Flushes per transaction, 0 is auto commit
+    private final Set<String> bulkCoalesceTables;               // Tables coalesced in bulk batches
+    private volatile int maxPacket = DEFAULT_MAX_PACKET;        // Server max_allowed_packet
+
+    private final List<TxUpdate> txUpdates = new ArrayList<>();    // Updates pending in the transaction
+    private int txFlushes;                                      // Number of flushes in the transaction
+
+    /*
+     * Stats
+     */
+    private volatile long deadlockCount;                        // Number of updates failed by deadlock
+    private volatile long retryCount;                           // Number of updates retried, including split transactions
+    private volatile long dedupCount;                           // Number of duplicate rows removed from batches
+    private volatile long skippedCount;                         // Number of updates skipped due to a permanent error
+
+    private SQLException lastError;                             // Error of the last failed update
+
+    private final Object lock = new Object();                   // Lock for dbConnected
+
+    /**
+     * Constructor
+     *
+     * @param cfg       Configuration - e.g. DB credentials
+     */
+    public MySQLWriterConnection(Config cfg) {
+        this(cfg, cfg.getDb_transaction_flushes());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cfg                   Configuration - e.g. DB credentials
+     * @param transactionFlushes    Number of flushes per transaction, 0 is auto commit
+     */
+    public MySQLWriterConnection(Config cfg, int transactionFlushes) {
+        this(cfg, transactionFlushes, null);
+
+        connectMySQL();
+    }
+
+    /**
+     * Constructor using a connection that is already open, such as a test connection
+     *
+     * @param cfg                   Configuration - e.g. DB credentials
+     * @param transactionFlushes    Number of flushes per transaction, 0 is auto commit
+     * @param con                   Open connection, null if not connected
+     */
+    MySQLWriterConnection(Config cfg, int transactionFlushes, Connection con) {
+        this.cfg = cfg;
+        this.transactionFlushes = transactionFlushes;
+        usePrepared = cfg.getDb_writer_engine().equals("prepared");
+
+        bulkCoalesceTables = new HashSet<>(cfg.getDb_coalesce_tables());
+        bulkCoalesceTables.addAll(cfg.getDb_bulk_coalesce_tables());
+
+        this.con = con;
+        dbConnected = con != null;
+    }
+
+    boolean connectMySQL() {
+        synchronized (this.lock) {
+            dbConnected = false;
+        }
+
+        loadData.reset();
+        preparedWriter.reset();
+
+        if (con != null) {
+            try {
+                con.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            con = null;
+        }
+
+
+        logger.info("Writer connecting to MySQL");
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e1) {
+            // ignore
+        }
+
+        /*
+         * Establish connection to MySQL
+         */
+        try {
+            con = DriverManager.getConnection(
+                    "jdbc:mariadb://" + cfg.getDbHost() + "/" + cfg.getDbName() +
+                            "?tcpKeepAlive=true&connectTimeout=30000&socketTimeout=350000&useCompression=true" +
+                            "&autoReconnect=true&allowMultiQueries=true" +
+                            (usePrepared ? "&useServerPrepStmts=true&useBatchMultiSend=true" : "&useBatchMultiSend=false") +
+                            "&enableQueryTimeouts=false" +
+                            (cfg.getDb_load_data() ? "&allowLocalInfile=true" : ""),
+                    cfg.getDbUser(), cfg.getDbPw());
+
+            con.setAutoCommit(true);
+
+            maxPacket = readMaxPacket();
+
+            logger.info("Writer connected to MySQL, max_allowed_packet=%d", maxPacket);
+
+            synchronized (this.lock) {
+                dbConnected = true;
+            }
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            logger.warn("Writer thread failed to connect to mysql", e);
+        }
+
+        return dbConnected;
+    }
+
+    /*
+     * Read the server max_allowed_packet
+     */
+    private int readMaxPacket() {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT @@max_allowed_packet")) {
+
+            if (rs.next())
+                return (int) Math.min(Integer.MAX_VALUE, rs.getLong(1));
+
+        } catch (SQLException e) {
+            logger.warn("Failed to read max_allowed_packet, using %d: %s", DEFAULT_MAX_PACKET, e.getMessage());
+        }
+
+        return DEFAULT_MAX_PACKET;
+    }
+
+    /**
+     * @return Max size in bytes of a rendered statement, based on the server max_allowed_packet
+     */
+    int getMaxStatementBytes() {
+        return Math.max(PACKET_OVERHEAD, maxPacket - PACKET_OVERHEAD);
+    }
+
+    /**
+     * Close the connection
+     */
+    public void close() {
+        try {
+            if (con != null)
+                con.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Indicates if the DB is connected or not.
+     *
+     * @return True if DB is connected, False otherwise
+     */
+    public boolean isDbConnected() {
+        boolean status;
+
+        synchronized (lock) {
+            status = dbConnected;
+        }
+
+        return status;
+    }
+
+
+    /**
+     * MySQL update to run with retries
+     */
+    private interface MySQLUpdate {
+        void run() throws SQLException;
+    }
+
+    /**
+     * Update pending in the transaction
+     */
+    private static class TxUpdate {
+        final MySQLUpdate update;
+        final MySQLUpdate fallback;         // Run if the update fails on its own, null if none
+        final String query;
+        final int retries;
+
+        TxUpdate(MySQLUpdate update, MySQLUpdate fallback, String query, int retries) {
+            this.update = update;
+            this.fallback = fallback;
+            this.query = query;
+            this.retries = retries;
+        }
+    }
+
+    /**
+     * Run MySQL update query
+     *
+     * @param query         Query string to run
+     * @param retries       Number of times to retry, zero means no retries
+     *
+     * @return True if the query was successful or skipped due to a permanent error
+     */
+    boolean mysqlQueryUpdate(final String query, int retries) {
+        return runUpdate(() -> executeUpdate(query), null, query, retries);
+    }
+
+    /*
+     * Execute the query using the current connection
+     */
+    private void executeUpdate(String query) throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate(query);
+        }
+    }
+
+    /**
+     * Run MySQL update
+     *
+     * @param update        Update to run, uses the current connection
+     * @param query         Query string or description of the update, for logging
+     * @param retries       Number of times to retry, zero means no retries
+     *
+     * @return True if the update was successful
+     */
+    private boolean mysqlUpdate(MySQLUpdate update, String query, int retries) {
+        Boolean success = Boolean.FALSE;
+        lastError = null;
+
+        // Loop the request if broken pipe, connection timed out, or deadlock
+         for (int i = 0; i < retries; i++) {
+            try {
+                logger.trace("SQL Query retry = %d: %s", i, query);
+
+                update.run();
+
+                i = retries;
+                success = Boolean.TRUE;
+                break;
+
+            } catch (SQLException e) {
+                lastError = e;
+
+                if (isDeadlock(e))
+                    ++deadlockCount;
+
+                if (i < retries - 1)
+                    ++retryCount;
+
+                if (!"40001".equals(e.getSQLState()) && i >= (retries - 1)) {
+                    logger.info("SQL exception state " + i + " : " + e.getSQLState());
+                    logger.info("SQL exception: " + e.getMessage());
+                }
+
+                if (isConnectionError(e)) {
+                    reconnect(e);
+
+                } else if (isDeadlock(e)) {
+                    try {
+                        Thread.sleep(2000);
+                    } catch (InterruptedException e2) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        if (!success) {
+            logger.warn("Failed to insert/update after %d max retires", retries);
+            logger.debug("query: " + query);
+        }
+
+        return success;
+    }
+
+    /**
+     * Indicates if the exception is due to the connection being lost
+     */
+    private static boolean isConnectionError(SQLException e) {
+        return e.getMessage().contains("Connection refused") ||
+                e.getMessage().contains("Broken pipe") ||
+                e.getMessage().contains("Connection timed out");
+    }
+
+    /**
+     * Indicates if the exception is due to a deadlock
+     */
+    private static boolean isDeadlock(SQLException e) {
+        return "40001".equals(e.getSQLState()) ||
+                (e.getMessage() != null && e.getMessage().contains("Deadlock found when trying"));
+    }
+
+    /**
+     * Indicates if the exception is transient, such that the update can succeed when run again
+     *
+     * \details Other errors, such as data or constraint errors, are permanent.  They fail again
+     *      when the same messages are consumed again.
+     */
+    static boolean isTransient(SQLException e) {
+        if (e == null)
+            return false;
+
+        String state = e.getSQLState();
+
+        return isDeadlock(e) ||
+                (state != null && state.startsWith("08")) ||
+                (e.getMessage() != null && (isConnectionError(e) || e.getMessage().contains("Lock wait timeout")));
+    }
+
+    /*
+     * Update failed after retries.  An update that failed due to a permanent error is skipped, it
+     *    would fail again when the messages are consumed again.
+     *
+     * @return True if the update is skipped, false if it failed due to a transient error
+     */
+    private boolean skipFailed(String query) {
+        if (isTransient(lastError))
+            return false;
+
+        ++skippedCount;
+
+        logger.error("Skipping update that failed with a permanent error, state=%s: %s",
+                     lastError != null ? lastError.getSQLState() : null,
+                     lastError != null ? lastError.getMessage() : null);
+        logger.debug("skipped query: " + query);
+
+        return true;
+    }
+
+    /**
+     * Reconnect to MySQL, waiting until connected
+     */
+    private void reconnect(SQLException e) {
+        logger.error("Not connected to mysql: " + e.getMessage());
+
+        while (!connectMySQL()) {
+            try {
+                Thread.sleep(4000);
+            } catch (InterruptedException e1) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Submit an update to run
+     *
+     * \details Updates are run now if transactions are not used.  Otherwise they are added to the
+     *      pending transaction, which is run and committed by {@link #commitTransaction()}.
+     *
+     * @param update        Update to run, must not depend on state that changes before the commit
+     * @param query         Query string or description of the update, for logging
+     * @param retries       Number of times to retry, zero means no retries
+     *
+     * @return True if the update was run successfully, skipped due to a permanent error, or added
+     *      to the pending transaction
+     */
+    private boolean submit(MySQLUpdate update, String query, int retries) {
+        return submit(update, null, query, retries);
+    }
+
+    /**
+     * Submit an update to run, with a fallback if it fails
+     *
+     * \details The fallback is run if the update fails after retries, such as insert statements
+     *      for a LOAD DATA.  In a transaction, the fallback is run if the update fails on its own
+     *      after the transaction is split.
+     *
+     * @param update        Update to run, must not depend on state that changes before the commit
+     * @param fallback      Update to run instead if the update fails, null if none
+     * @param query         Query string or description of the update, for logging
+     * @param retries       Number of times to retry, zero means no retries
+     *
+     * @return True if the update or fallback was run successfully, skipped due to a permanent error,
+     *      or added to the pending transaction
+     */
+    private boolean submit(MySQLUpdate update, MySQLUpdate fallback, String query, int retries) {
+        if (transactionFlushes <= 0)
+            return runUpdate(update, fallback, query, retries);
+
+        txUpdates.add(new TxUpdate(update, fallback, query, retries));
+        return true;
+    }
+
+    /*
+     * Run the update in auto commit mode, then the fallback if the update failed.  Returns false only
+     *    if the update failed due to a transient error, see skipFailed().
+     */
+    private boolean runUpdate(MySQLUpdate update, MySQLUpdate fallback, String query, int retries) {
+        if (mysqlUpdate(update, query, retries))
+            return true;
+
+        if (fallback != null) {
+            logger.info("Falling back to insert statements: %s", query);
+
+            if (mysqlUpdate(fallback, "FALLBACK " + query, retries))
+                return true;
+        }
+
+        return skipFailed(query);
+    }
+
+    /**
+     * Run and commit the pending transaction updates, if any
+     *
+     * @return True if all the updates were committed or skipped, false if any failed after retries
+     *      due to a transient error
+     */
+    boolean commitTransaction() {
+        if (txUpdates.isEmpty())
+            return true;
+
+        boolean success = runTransaction(0, txUpdates.size());
+
+        txUpdates.clear();
+        txFlushes = 0;
+
+        return success;
+    }
+
+    /**
+     * Run the pending transaction updates in the range as a single transaction
+     *
+     * \details On failure, such as a deadlock, the transaction is rolled back and split in half.
+     *      Each half is run as its own transaction.  A single update is run in auto commit mode
+     *      with the normal retries, and is skipped if it fails due to a permanent error.
+     *
+     * @param from          First update index, inclusive
+     * @param to            Last update index, exclusive
+     *
+     * @return True if all the updates in the range were committed or skipped
+     */
+    private boolean runTransaction(int from, int to) {
+        if (to - from == 1) {
+            TxUpdate u = txUpdates.get(from);
+            return runUpdate(u.update, u.fallback, u.query, u.retries);
+        }
+
+        try {
+            con.setAutoCommit(false);
+
+            for (int i = from; i < to; i++) {
+                logger.trace("SQL Query in transaction: %s", txUpdates.get(i).query);
+                txUpdates.get(i).update.run();
+            }
+
+            con.commit();
+            con.setAutoCommit(true);
+
+            logger.trace("Committed transaction of %d updates", to - from);
+            return true;
+
+        } catch (SQLException e) {
+            logger.info("Transaction of %d updates failed, rollback and split: %s", to - from, e.getMessage());
+
+            if (isDeadlock(e))
+                ++deadlockCount;
+            ++retryCount;
+
+            if (isConnectionError(e)) {
+                reconnect(e);
+
+            } else {
+                try {
+                    con.rollback();
+                    con.setAutoCommit(true);
+                } catch (SQLException e2) {
+                    logger.warn("Failed to rollback transaction: %s", e2.getMessage());
+                }
+            }
+        }
+
+        int mid = (from + to) >>> 1;
+        boolean first = runTransaction(from, mid);
+
+        return runTransaction(mid, to) && first;
+    }
+
+    /**
+     * Indicates if there are updates pending in the transaction
+     */
+    boolean isTransactionPending() {
+        return !txUpdates.isEmpty();
+    }
+
+    /**
+     * Indicates if the template rows at the batch index are loaded using LOAD DATA
+     */
+    private boolean isLoadData(MySQLWriterBatch batch, int index) {
+        return cfg.getDb_load_data() && MySQLLoadData.isSupported(batch.template(index))
+                && batch.rowCount(index) >= cfg.getDb_load_data_min_rows();
+    }
+
+    /**
+     * Prepare the batch to be executed
+     *
+     * \details Sorts and coalesces the rows by primary key, if enabled, and renders the text
+     *      multi-statements for the batch rows that are not loaded using LOAD DATA.  The rows are split
+     *      into multi-statements that fit in the server max_allowed_packet.  Bulk batches also coalesce
+     *      the bulk_coalesce_tables.  This does not use the connection.
+     *
+     * @param batch         Batch to prepare
+     */
+    public void prepare(MySQLWriterBatch batch) {
+        if (batch.getRowCount() == 0)
+            return;
+
+        if (cfg.getDb_sort_batches())
+            dedupCount += batch.sortByKey(batch.isBulk() ? bulkCoalesceTables : cfg.getDb_coalesce_tables());
+
+        if (usePrepared)
+            return;
+
+        final Set<StatementTemplate> loaded = new HashSet<>();
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (isLoadData(batch, i))
+                loaded.add(batch.template(i));
+        }
+
+        batch.render(loaded.isEmpty() ? null : t -> !loaded.contains(t), getMaxStatementBytes(),
+                     batch.getStatements());
+    }
+
+    /*
+     * Insert the rows using the prepared or text statements, the fallback of a LOAD DATA.  The rows
+     *    are captured, the batch can be cleared before the fallback is run.
+     */
+    private MySQLUpdate insertFallback(StatementTemplate template, List<Object[]>[] chunks, int chunkCount) {
+        if (usePrepared)
+            return () -> preparedWriter.execute(con, template, chunks, chunkCount);
+
+        return () -> {
+            MySQLWriterBatch rows = new MySQLWriterBatch();
+            for (int c = 0; c < chunkCount; c++)
+                rows.add(template, chunks[c]);
+
+            List<String> statements = new ArrayList<>();
+            rows.render(null, getMaxStatementBytes(), statements);
+
+            for (String statement : statements)
+                executeUpdate(statement);
+        };
+    }
+
+    /**
+     * Execute the batch
+     *
+     * \details Rows are run first, then the queries.  Tables that support LOAD DATA are loaded using
+     *      LOAD DATA if enabled and the batch has enough rows for the table.  Remaining tables are inserted
+     *      using the prepared text multi-statements, or per table using prepared statements if the prepared
+     *      engine is used.
+     *
+     * @param batch         Batch to execute, must be prepared by {@link #prepare(MySQLWriterBatch)}
+     *
+     * @return True if the batch was written, or is pending in the transaction.  False if any update
+     *      failed after retries due to a transient error, such as the connection or a deadlock,
+     *      including the commit of the transaction.  Updates that fail due to a permanent error are
+     *      skipped.
+     */
+    public boolean execute(MySQLWriterBatch batch) {
+        final boolean useTx = transactionFlushes > 0;
+        long start_time = System.currentTimeMillis();
+        boolean success = true;
+
+        for (int i = 0; i < batch.size(); i++) {
+            final StatementTemplate template = batch.template(i);
+
+            if (isLoadData(batch, i)) {
+                final int chunkCount = batch.chunkCount(i);
+                final List<Object[]>[] chunks = Arrays.copyOf(batch.chunks(i), chunkCount);
+
+                // Falls back to insert statements, also when the LOAD DATA fails in the transaction
+                success &= submit(() -> loadData.load(con, template, chunks, chunkCount),
+                                  insertFallback(template, chunks, chunkCount),
+                                  "LOAD DATA " + template.getTable() + " rows=" + batch.rowCount(i),
+                                  cfg.getDb_retries());
+            }
+            else if (usePrepared) {
+                final int chunkCount = batch.chunkCount(i);
+                final List<Object[]>[] chunks = Arrays.copyOf(batch.chunks(i), chunkCount);
+
+                success &= submit(() -> preparedWriter.execute(con, template, chunks, chunkCount),
+                                  "PREPARED " + template.getTable() + " rows=" + batch.rowCount(i),
+                                  cfg.getDb_retries());
+            }
+        }
+
+        for (final String query : batch.getStatements()) {
+            success &= submit(() -> executeUpdate(query), query, cfg.getDb_retries());
+        }
+
+        // Queries close the batch, so they come after the rows in the queue
+        for (final String query : batch.getQueries()) {
+            logger.debug("Non bulk query");
+
+            if (useTx)
+                success &= submit(() -> executeUpdate(query), query, 3);
+            else
+                success &= mysqlQueryUpdate(query, 3);
+        }
+
+        if (useTx) {
+            // Queries are run now, not delayed until N flushes
+            if (batch.getQueries().size() > 0 ||
+                    (batch.getRowCount() > 0 && ++txFlushes >= transactionFlushes))
+                success &= commitTransaction();
+        }
+
+        logger.debug("Flushed engine=%s rows=%d messages=%d time_ms=%d", cfg.getDb_writer_engine(),
+                     batch.getRowCount(), batch.getMessageCount(), System.currentTimeMillis() - start_time);
+
+        return success;
+    }
+
+    /**
+     * @return Number of updates that failed due to a deadlock
+     */
+    public long getDeadlockCount() {
+        return deadlockCount;
+    }
+
+    /**
+     * @return Number of updates that were retried, including transactions that were split
+     */
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * @return Number of duplicate rows removed from batches
+     */
+    public long getDedupCount() {
+        return dedupCount;
+    }
+
+    /**
+     * @return Number of updates skipped because they failed due to a permanent error
+     */
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+}
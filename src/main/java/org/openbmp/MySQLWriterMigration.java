@@ -0,0 +1,369 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbmp.mysqlquery.StatementTemplate;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Live key migration between the writers of a ring
+ *
+ * \details When the writer ring changes, the buckets that move to another writer are fenced at the
+ *      old writer queue sequence (the epoch).  Messages of a moving bucket are held, in order, until
+ *      the old writer has committed every message before the fence, then they are sent to the new
+ *      writer.  Messages of all other buckets keep flowing, so there is no need to drain the queues.
+ *
+ *      Removed writers keep running until they have committed all of their messages.
+ *
+ *      Used only by the consumer thread, so it's not thread safe.
+ *
+ * @param <W>       Writer type
+ */
+public class MySQLWriterMigration<W> {
+    private static final Logger logger = LogManager.getFormatterLogger(MySQLWriterMigration.class.getName());
+
+    /**
+     * Max number of messages held for a bucket before the sender waits for the old writer
+     */
+    static final int MAX_HELD_PER_BUCKET = 1000;
+
+    /**
+     * Sends messages to the writers
+     */
+    public interface Sender<W> {
+        /**
+         * Send a message to the writer, blocking if the writer queue is full
+         */
+        void send(W writer, StatementTemplate template, List<Object[]> rows, String query);
+
+        /**
+         * Called while waiting for a writer to commit, such as to poll kafka
+         */
+        void idle();
+    }
+
+    /**
+     * Queue sequences and lifecycle of the writers
+     */
+    public interface Writers<W> {
+        /**
+         * @return Id of the writer, used to place it on the ring
+         */
+        int id(W writer);
+
+        /**
+         * @return Sequence after the last message sent to the writer queue
+         */
+        long writeSequence(W writer);
+
+        /**
+         * @return Sequence after the last message the writer has committed to MySQL
+         */
+        long committedSequence(W writer);
+
+        /**
+         * @return True if the writer failed and its committed sequence is held
+         */
+        boolean isFailed(W writer);
+
+        /**
+         * Shutdown the writer
+         */
+        void shutdown(W writer);
+    }
+
+    /**
+     * Message held until its bucket is released
+     */
+    private static class HeldMessage {
+        final StatementTemplate template;
+        final List<Object[]> rows;
+        final String query;
+
+        HeldMessage(StatementTemplate template, List<Object[]> rows, String query) {
+            this.template = template;
+            this.rows = rows;
+            this.query = query;
+        }
+    }
+
+    private final MySQLWriterRing<W> ring;
+    private final Writers<W> writers;
+
+    private final W[] from;                             // Old writer by bucket, null if not moving
+    private final long[] fence;                         // Old writer queue sequence by bucket
+    private final List<HeldMessage>[] held;             // Held messages by bucket
+    private final List<Integer> moving = new ArrayList<>();        // Moving buckets
+
+    private final List<W> retiring = new ArrayList<>();  // Removed writers to shutdown
+
+    private long movedCount;                            // Number of buckets moved
+    private long heldCount;                             // Number of messages held
+
+    /**
+     * Constructor
+     *
+     * @param ring      Writer ring to migrate the keys of
+     * @param writers   Queue sequences and lifecycle of the writers
+     */
+    @SuppressWarnings("unchecked")
+    public MySQLWriterMigration(MySQLWriterRing<W> ring, Writers<W> writers) {
+        this.ring = ring;
+        this.writers = writers;
+
+        from = (W[]) new Object[ring.size()];
+        fence = new long[ring.size()];
+        held = (List<HeldMessage>[]) new List[ring.size()];
+    }
+
+    /**
+     * Add a writer to the ring, its buckets are migrated
+     *
+     * @param writer        Writer to add
+     */
+    public void add(W writer) {
+        W[] before = owners();
+
+        ring.add(writer, writers.id(writer));
+        begin(before);
+    }
+
+    /**
+     * Remove a writer from the ring, its buckets are migrated.  The writer is shutdown once it has
+     *      committed all of its messages.
+     *
+     * @param writer        Writer to remove
+     */
+    public void remove(W writer) {
+        W[] before = owners();
+
+        ring.remove(writer);
+        retiring.add(writer);
+        begin(before);
+    }
+
+    /**
+     * Rebalance the ring using the recent load, moved buckets are migrated
+     */
+    public void rebalance() {
+        W[] before = owners();
+
+        ring.rebalance();
+        begin(before);
+    }
+
+    /**
+     * Send a message to the writer of the key, holding it if the key is moving
+     *
+     * @param key           Message key in kafka, such as the hash id
+     * @param template      Bulk statement template, or null if query should be run now
+     * @param rows          Rows for the template
+     * @param query         Query to run when template is null
+     * @param sender        Sender to the writer queue
+     */
+    public void send(String key, StatementTemplate template, List<Object[]> rows, String query, Sender<W> sender) {
+        W writer = ring.get(key);
+
+        if (writer == null)
+            return;
+
+        if (!moving.isEmpty()) {
+            int b = ring.bucket(key);
+
+            if (from[b] != null) {
+                hold(b, template, rows, query, sender);
+                return;
+            }
+        }
+
+        sender.send(writer, template, rows, query);
+    }
+
+    /**
+     * Send a query once to each writer of the keys, holding it for the keys that are moving
+     *
+     * \details Used for a query that must run after the messages of several keys, such as the
+     *      withdraw of a peer whose rows are sharded over the writers.  The query is sent once per
+     *      distinct writer instead of once per key.  A moving bucket still has messages in its old
+     *      writer, so the query is held once for each moving bucket of the keys.
+     *
+     * @param keys          Message keys
+     * @param query         Query to run
+     * @param sender        Sender to the writer queue
+     */
+    public void sendToOwners(String[] keys, String query, Sender<W> sender) {
+        Set<W> owners = new LinkedHashSet<>();
+        Set<Integer> heldBuckets = new HashSet<>();
+
+        for (String key : keys) {
+            W writer = ring.get(key);
+
+            if (writer == null)
+                continue;
+
+            int b = ring.bucket(key);
+
+            if (!moving.isEmpty() && from[b] != null) {
+                if (heldBuckets.add(b))
+                    hold(b, null, null, query, sender);
+
+            } else {
+                owners.add(writer);
+            }
+        }
+
+        for (W writer : owners)
+            sender.send(writer, null, null, query);
+    }
+
+    /*
+     * Hold the message until the old writer of the bucket has committed
+     */
+    private void hold(int b, StatementTemplate template, List<Object[]> rows, String query, Sender<W> sender) {
+        held[b].add(new HeldMessage(template, rows, query));
+        ++heldCount;
+
+        if (held[b].size() >= MAX_HELD_PER_BUCKET)
+            awaitRelease(b, sender);
+    }
+
+    /**
+     * Release the moving buckets that the old writers have committed, sending their held messages to
+     *      the new writers.  Shuts down removed writers that are done.
+     *
+     * @param sender        Sender to the writer queue
+     */
+    public void release(Sender<W> sender) {
+        for (Iterator<Integer> it = moving.iterator(); it.hasNext(); ) {
+            int b = it.next();
+
+            if (writers.committedSequence(from[b]) >= fence[b]) {
+                sendHeld(b, sender);
+                it.remove();
+            }
+        }
+
+        for (Iterator<W> it = retiring.iterator(); it.hasNext(); ) {
+            W writer = it.next();
+
+            if (writers.committedSequence(writer) >= writers.writeSequence(writer)) {
+                logger.info("Writer %d is done, shutting down", writers.id(writer));
+                writers.shutdown(writer);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Shutdown the removed writers that are not done yet
+     */
+    public void shutdown() {
+        for (W writer : retiring)
+            writers.shutdown(writer);
+
+        retiring.clear();
+    }
+
+    /**
+     * @return True if buckets are moving or removed writers are not done
+     */
+    public boolean isMigrating() {
+        return !moving.isEmpty() || !retiring.isEmpty();
+    }
+
+    public int getMovingCount() {
+        return moving.size();
+    }
+
+    public long getMovedCount() {
+        return movedCount;
+    }
+
+    public long getHeldCount() {
+        return heldCount;
+    }
+
+    /*
+     * Start moving the buckets that changed owner
+     */
+    private void begin(W[] before) {
+        int moved = 0;
+
+        for (int b = 0; b < before.length; b++) {
+            W old = before[b];
+
+            // Already moving buckets keep the original fence, their messages are still held
+            if (old == null || old == ring.owner(b) || from[b] != null)
+                continue;
+
+            from[b] = old;
+            fence[b] = writers.writeSequence(old);
+
+            if (held[b] == null)
+                held[b] = new ArrayList<>();
+
+            moving.add(b);
+            ++moved;
+        }
+
+        movedCount += moved;
+        logger.info("Writer ring changed, moving %d of %d buckets", moved, before.length);
+    }
+
+    /*
+     * Wait for the old writer of the bucket to commit, then release the bucket
+     */
+    private void awaitRelease(int bucket, Sender<W> sender) {
+        W old = from[bucket];
+
+        // A failed writer never commits, the consumer stops without committing its offsets
+        while (writers.committedSequence(old) < fence[bucket] && !writers.isFailed(old)) {
+            sender.idle();
+
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        sendHeld(bucket, sender);
+        moving.remove(Integer.valueOf(bucket));
+    }
+
+    /*
+     * Send the held messages of the bucket to its current writer and stop moving it
+     */
+    private void sendHeld(int bucket, Sender<W> sender) {
+        W writer = ring.owner(bucket);
+
+        for (HeldMessage m : held[bucket])
+            sender.send(writer, m.template, m.rows, m.query);
+
+        held[bucket].clear();
+        from[bucket] = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private W[] owners() {
+        W[] owners = (W[]) new Object[ring.size()];
+
+        for (int b = 0; b < owners.length; b++)
+            owners[b] = ring.owner(b);
+
+        return owners;
+    }
+}
@@ -9,34 +9,22 @@ package org.openbmp;
  */
 
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-
 /**
  *
  */
 public class MySQLWriterObject {
-    private final Integer FIFO_QUEUE_SIZE = 20000;                  // Number of messages in queue allowed
-
-    ///< Map of assigned record keys to this writer object/thread
-    Map<String, Integer> assigned;
+    private final Integer FIFO_QUEUE_SIZE = 16384;                  // Number of messages in queue allowed
+    private static int next_id = 0;
 
-    ///< Number of times this object has been above queue high threashold
-    Integer above_count;
+    ///< Unique id of the writer, used to place it on the writer ring
+    final int id;
 
     MySQLWriterRunnable writerThread;
 
     /**
-     * FIFO queue for SQL messages to be written/inserted
-     *      Queue message:
-     *          Object is a hash map where the key is:
-     *              prefix:     Insert statement including the VALUES keyword
-     *              suffix:     ON DUPLICATE KEY UPDATE suffix, can be empty if not used
-     *              value:      Comma delimited set of VALUES
+     * FIFO queue for SQL messages to be written/inserted, see {@link MySQLWriterQueue}
      */
-    BlockingQueue<Map<String, String>> writerQueue;
+    MySQLWriterQueue writerQueue;
 
     /**
      * Constructor
@@ -44,9 +32,21 @@ public class MySQLWriterObject {
      * @param cfg            Configuration from cli/config file
      */
     MySQLWriterObject(Config cfg) {
-        assigned = new HashMap<>();
-        writerQueue = new ArrayBlockingQueue(FIFO_QUEUE_SIZE);
-        writerThread = new MySQLWriterRunnable(cfg, writerQueue);
-        above_count = 0;
+        this(cfg, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cfg            Configuration from cli/config file
+     * @param lane           Writer lane name, null to use the global writer settings
+     */
+    MySQLWriterObject(Config cfg, String lane) {
+        synchronized (MySQLWriterObject.class) {
+            id = next_id++;
+        }
+
+        writerQueue = new MySQLWriterQueue(FIFO_QUEUE_SIZE);
+        writerThread = new MySQLWriterRunnable(cfg, writerQueue, lane);
     }
 }
@@ -0,0 +1,305 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.openbmp.mysqlquery.StatementTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes the rows of partitioned tables by partition
+ *
+ * \details The large tables are partitioned by KEY on a column, such as rib by peer_hash_id.  Rows
+ *      are assigned to a partition by the partition column value, and the partition key
+ *      (e.g. "rib#7") is used as the writer ring key instead of the kafka record key.  Each
+ *      partition is owned by a single writer, so concurrent writers don't contend on the same
+ *      partitions and all rows of a partition column value are written in order by one writer.
+ *
+ *      The MySQL KEY partition hash is internal to the server (it depends on the column charset
+ *      and version), so the partition of a value is resolved by MySQL once, see {@link Resolver},
+ *      and cached for the life of the consumer so a value always maps to the same writer.  Without
+ *      a resolver, or if the value can't be resolved, the partition is a stable hash of the value
+ *      modulo the number of partitions, which routes the rows of a value to one writer but doesn't
+ *      match the physical partitions.  Set the partitions to the table partition count, or zero to
+ *      not route the table by partition.
+ *
+ *      Tables can also be routed by another column, such as rib by hash_id to shard the rows of
+ *      a single peer over all writers.  Rows of a hash_id are still written in order by one writer.
+ */
+public class MySQLWriterPartitioner {
+
+    /**
+     * Tables partitioned by KEY, and the partition column, in the openBMP schema
+     */
+    static final String[][] KEY_PARTITIONED_TABLES = {
+            { "rib", "peer_hash_id" },
+            { "l3vpn_rib", "peer_hash_id" },
+            { "path_attrs", "peer_hash_id" },
+            { "as_path_analysis", "asn" }
+    };
+
+    /**
+     * Default number of partitions of the tables
+     */
+    static final int DEFAULT_PARTITIONS = 48;
+
+    /**
+     * Resolves the MySQL partition of a partition column value
+     */
+    public interface Resolver {
+        /**
+         * @param table     Table name
+         * @param column    Partition column
+         * @param value     Partition column value
+         *
+         * @return Partition number, or -1 if it can't be resolved
+         */
+        int resolve(String table, String column, Object value);
+    }
+
+    /**
+     * Partitioned table
+     */
+    private static class Table {
+        final String name;
+        final String column;                // Partition column
+        final String[] keys;                // Writer ring key by partition
+        final boolean resolved;             // MySQL KEY partitioned, partitions are resolved
+        final Map<Object, Integer> partitions = new HashMap<>();   // Partition by value, if resolved
+
+        Table(String name, String column, int partitions, boolean resolved) {
+            this.name = name;
+            this.column = column;
+            this.resolved = resolved;
+
+            keys = new String[partitions];
+            for (int p = 0; p < partitions; p++)
+                keys[p] = name + "#" + p;
+        }
+    }
+
+    private final Map<String, Table> tables = new HashMap<>();
+    private Resolver resolver;
+
+    /**
+     * Constructor, no tables are routed by partition
+     */
+    public MySQLWriterPartitioner() {
+    }
+
+    /**
+     * Constructor, routes the KEY partitioned tables
+     *
+     * @param partitions    Number of partitions by table name, see {@link #addKeyPartitionedTables(Map)}
+     */
+    public MySQLWriterPartitioner(Map<String, Integer> partitions) {
+        addKeyPartitionedTables(partitions);
+    }
+
+    /**
+     * Route the KEY partitioned tables of the schema by their partition column
+     *
+     * @param partitions    Number of partitions by table name, overrides the default.  Zero
+     *                      disables routing the table by partition.
+     */
+    public void addKeyPartitionedTables(Map<String, Integer> partitions) {
+        for (String[] t : KEY_PARTITIONED_TABLES) {
+            Integer count = partitions != null ? partitions.get(t[0]) : null;
+
+            addTable(t[0], t[1], count != null ? count : DEFAULT_PARTITIONS, true);
+        }
+    }
+
+    /**
+     * Set the resolver of the MySQL partitions of the KEY partitioned tables
+     *
+     * @param resolver      Resolver, null to hash the values
+     */
+    public void setResolver(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Route the rows of a table by a column, replacing the previous routing of the table
+     *
+     * @param table         Table name
+     * @param column        Column to route by, such as peer_hash_id or hash_id
+     * @param partitions    Number of partitions, zero to not route the table
+     */
+    public void addTable(String table, String column, int partitions) {
+        addTable(table, column, partitions, false);
+    }
+
+    private void addTable(String table, String column, int partitions, boolean resolved) {
+        if (partitions > 0)
+            tables.put(table, new Table(table, column, partitions, resolved));
+        else
+            tables.remove(table);
+    }
+
+    /**
+     * @return True if rows of the table are routed by partition
+     */
+    public boolean isPartitioned(String table) {
+        return tables.containsKey(table);
+    }
+
+    /**
+     * @return True if no table is routed by partition
+     */
+    public boolean isEmpty() {
+        return tables.isEmpty();
+    }
+
+    /**
+     * Get the partition of a partition column value
+     *
+     * @param table     Table name
+     * @param value     Partition column value, such as the peer hash id
+     *
+     * @return Partition, or -1 if the table isn't routed by partition
+     */
+    public int partition(String table, Object value) {
+        Table t = tables.get(table);
+
+        if (t == null)
+            return -1;
+
+        return partition(t, value);
+    }
+
+    /**
+     * Get the writer ring key of a partition column value
+     *
+     * @param table     Table name
+     * @param value     Partition column value, such as the peer hash id
+     *
+     * @return Partition key, or null if the table isn't routed by partition
+     */
+    public String key(String table, Object value) {
+        Table t = tables.get(table);
+
+        if (t == null)
+            return null;
+
+        return t.keys[partition(t, value)];
+    }
+
+    /**
+     * Get the writer ring keys of the rows that have a column value
+     *
+     * \details If the table is routed by the column, the rows are in a single partition.  Otherwise
+     *      the rows can be in any partition, such as the rows of a peer when rib is routed by hash_id.
+     *
+     * @param table     Table name
+     * @param column    Column name, such as peer_hash_id
+     * @param value     Column value
+     *
+     * @return Partition keys, or null if the table isn't routed by partition
+     */
+    public String[] keys(String table, String column, Object value) {
+        Table t = tables.get(table);
+
+        if (t == null)
+            return null;
+
+        if (t.column.equalsIgnoreCase(column))
+            return new String[] { t.keys[partition(t, value)] };
+
+        return t.keys.clone();
+    }
+
+    /**
+     * Split the rows by partition
+     *
+     * @param template      Statement template of the rows
+     * @param rows          Rows to split
+     *
+     * @return Rows by partition key in the order of the first row of each partition, or null if
+     *      the table isn't routed by partition
+     */
+    public Map<String, List<Object[]>> split(StatementTemplate template, List<Object[]> rows) {
+        Table t = tables.get(template.getTable());
+        int column = t != null ? template.getColumnIndex(t.column) : -1;
+
+        if (column < 0)
+            return null;
+
+        String first = null;
+        Map<String, List<Object[]>> split = null;
+
+        for (int i = 0; i < rows.size(); i++) {
+            String key = t.keys[partition(t, rows.get(i)[column])];
+
+            if (i == 0) {
+                first = key;
+
+            } else if (split == null && !key.equals(first)) {
+                // Rows are in more than one partition, group them from here on
+                split = new LinkedHashMap<>();
+                split.put(first, new ArrayList<>(rows.subList(0, i)));
+            }
+
+            if (split != null) {
+                List<Object[]> group = split.get(key);
+
+                if (group == null) {
+                    group = new ArrayList<>();
+                    split.put(key, group);
+                }
+
+                group.add(rows.get(i));
+            }
+        }
+
+        if (split == null)              // All rows are in the same partition, such as one peer
+            return first != null ? Collections.singletonMap(first, rows) : Collections.emptyMap();
+
+        return split;
+    }
+
+    /*
+     * Get the partition of the value, resolving it once if the table is KEY partitioned
+     */
+    private int partition(Table t, Object value) {
+        if (!t.resolved || resolver == null || value == null)
+            return hashPartition(t, value);
+
+        Object key = value instanceof Number ? (Object) ((Number) value).longValue() : value.toString();
+        Integer p = t.partitions.get(key);
+
+        if (p == null) {
+            p = resolver.resolve(t.name, t.column, key);
+
+            if (p < 0 || p >= t.keys.length)
+                p = hashPartition(t, value);
+
+            t.partitions.put(key, p);
+        }
+
+        return p;
+    }
+
+    private static int hashPartition(Table t, Object value) {
+        int h;
+
+        if (value == null)
+            h = 0;
+        else if (value instanceof Number)
+            h = Long.hashCode(((Number) value).longValue());
+        else
+            h = value.toString().hashCode();
+
+        return (MySQLWriterRing.mix(h) & 0x7fffffff) % t.keys.length;
+    }
+}
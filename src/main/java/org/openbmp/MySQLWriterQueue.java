@@ -0,0 +1,224 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import org.openbmp.mysqlquery.StatementTemplate;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer FIFO queue
+ *
+ * \details Preallocated single producer/single consumer ring buffer between a consumer
+ *      thread (producer) and its MySQL writer thread (consumer).  Slots are plain arrays
+ *      indexed by sequence, so an offer does not allocate or lock.
+ *
+ *      The writer claims all available slots with {@link #available()}, reads them with
+ *      the slot getters and releases them in one step with {@link #release(int)}.
+ *      Threads park when there is nothing to do and are unparked on demand by the
+ *      other side, instead of sleeping/polling.
+ *
+ *      Slot message:
+ *          template:   Bulk statement template, null if the slot is a query that should be
+ *                      run now, not in bulk
+ *          rows:       Rows to insert/update using the template
+ *          query:      Query to run when template is null
+ */
+public class MySQLWriterQueue {
+
+    private final int capacity;
+    private final int mask;
+
+    private final StatementTemplate[] templates;
+    private final List<Object[]>[] rows;
+    private final String[] queries;
+
+    private final AtomicLong head = new AtomicLong();       // Next sequence to write (producer)
+    private final AtomicLong tail = new AtomicLong();       // Next sequence to read (consumer)
+
+    private long cachedTail;                                // Producer view of tail
+
+    private volatile Thread parkedConsumer;                 // Writer waiting for data
+    private volatile Thread parkedProducer;                 // Producer waiting for space
+
+    /**
+     * Constructor
+     *
+     * @param size      Minimum number of slots, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public MySQLWriterQueue(int size) {
+        int cap = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+
+        capacity = cap;
+        mask = cap - 1;
+
+        templates = new StatementTemplate[cap];
+        rows = (List<Object[]>[]) new List[cap];
+        queries = new String[cap];
+    }
+
+    /**
+     * Add a message to the queue (producer only)
+     *
+     * @param template  Bulk statement template, or null to run the query
+     * @param rows      Rows for the template
+     * @param query     Query to run now, when template is null
+     *
+     * @return True if added, false if the queue is full
+     */
+    public boolean offer(StatementTemplate template, List<Object[]> rows, String query) {
+        final long h = head.get();
+
+        if (h - cachedTail >= capacity) {
+            cachedTail = tail.get();
+
+            if (h - cachedTail >= capacity)
+                return false;
+        }
+
+        final int idx = (int) h & mask;
+        templates[idx] = template;
+        this.rows[idx] = rows;
+        queries[idx] = query;
+
+        head.set(h + 1);
+
+        Thread t = parkedConsumer;
+        if (t != null)
+            LockSupport.unpark(t);
+
+        return true;
+    }
+
+    /**
+     * Number of messages that can be read (consumer only)
+     *
+     * @return Number of slots available starting at {@link #readSequence()}
+     */
+    public int available() {
+        return (int) (head.get() - tail.get());
+    }
+
+    /**
+     * @return Sequence of the next slot to write, which is the number of messages offered (producer only)
+     */
+    public long writeSequence() {
+        return head.get();
+    }
+
+    /**
+     * @return Sequence of the first unread slot (consumer only)
+     */
+    public long readSequence() {
+        return tail.get();
+    }
+
+    public StatementTemplate template(long seq) { return templates[(int) seq & mask]; }
+    public List<Object[]> rows(long seq) { return rows[(int) seq & mask]; }
+    public String query(long seq) { return queries[(int) seq & mask]; }
+
+    /**
+     * Release read slots back to the producer (consumer only)
+     *
+     * @param count     Number of slots, starting at {@link #readSequence()}, to release
+     */
+    public void release(int count) {
+        final long t = tail.get();
+
+        for (long seq = t; seq < t + count; seq++) {
+            final int idx = (int) seq & mask;
+            templates[idx] = null;
+            rows[idx] = null;
+            queries[idx] = null;
+        }
+
+        tail.set(t + count);
+
+        Thread p = parkedProducer;
+        if (p != null)
+            LockSupport.unpark(p);
+    }
+
+    /**
+     * Wait for data to read (consumer only)
+     *
+     * @param timeoutMillis     Max time to wait, zero waits until data or {@link #wakeConsumer()}
+     */
+    public void awaitData(long timeoutMillis) {
+        parkedConsumer = Thread.currentThread();
+
+        if (head.get() == tail.get()) {
+            if (timeoutMillis > 0)
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+            else
+                LockSupport.park(this);
+        }
+
+        parkedConsumer = null;
+    }
+
+    /**
+     * Wake up the consumer, such as on shutdown
+     */
+    public void wakeConsumer() {
+        Thread t = parkedConsumer;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    /**
+     * Wait for at least one free slot (producer only)
+     *
+     * @param timeoutMillis     Max time to wait
+     *
+     * @return True if space is available
+     */
+    public boolean awaitSpace(long timeoutMillis) {
+        parkedProducer = Thread.currentThread();
+
+        if (head.get() - tail.get() >= capacity)
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+
+        parkedProducer = null;
+
+        return head.get() - tail.get() < capacity;
+    }
+
+    /**
+     * Wait for the writer to read all messages (producer only)
+     *
+     * @param timeoutMillis     Max time to wait
+     *
+     * @return True if the queue is empty
+     */
+    public boolean awaitEmpty(long timeoutMillis) {
+        parkedProducer = Thread.currentThread();
+
+        if (head.get() != tail.get())
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+
+        parkedProducer = null;
+
+        return head.get() == tail.get();
+    }
+
+    /**
+     * @return Number of messages in the queue
+     */
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
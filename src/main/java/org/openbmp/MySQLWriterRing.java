@@ -0,0 +1,233 @@
+package org.openbmp;
+/*
+ * Copyright (c) 2018 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash ring of writers with bounded load
+ *
+ * \details Record keys are hashed into a fixed number of buckets.  Each bucket is owned by a single
+ *      writer, so all records of a key go to the same writer in order.  The bucket owners are computed
+ *      only when writers are added or removed (or on rebalance), so looking up the writer of a key is
+ *      a hash and an array lookup without allocation.
+ *
+ *      Writers are placed on the ring using virtual nodes.  A bucket is owned by the first writer
+ *      clockwise from the bucket position that has room, where room is bounded to LOAD_FACTOR times
+ *      the average load.  Load is the number of records seen by the bucket since the last build, so
+ *      a hot bucket fills a writer sooner.  Adding or removing a writer only moves the buckets that
+ *      it takes or gives up, plus the few that overflow.
+ *
+ * @param <T>       Writer type
+ */
+public class MySQLWriterRing<T> {
+
+    /**
+     * Max load of a writer, relative to the average
+     */
+    static final double LOAD_FACTOR = 1.25;
+
+    /**
+     * Number of virtual nodes on the ring per writer
+     */
+    static final int VNODES = 64;
+
+    private final int bucketMask;
+
+    private final List<T> members = new ArrayList<>();        // Writers
+    private final List<Integer> memberIds = new ArrayList<>(); // Writer ids, used to place the virtual nodes
+
+    private final long[] load;                                  // Records per bucket since the last build
+    private Object[] owners;                                    // Writer by bucket
+    private int[] ownerCounts = new int[0];                     // Buckets owned by member index
+
+    /**
+     * Constructor
+     *
+     * @param buckets       Number of buckets, rounded up to a power of two
+     */
+    public MySQLWriterRing(int buckets) {
+        int size = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+
+        bucketMask = size - 1;
+        load = new long[size];
+        owners = new Object[size];
+    }
+
+    /**
+     * Add a writer
+     *
+     * @param member        Writer to add
+     * @param id            Unique id of the writer, the same id results in the same placement
+     */
+    public void add(T member, int id) {
+        members.add(member);
+        memberIds.add(id);
+        build();
+    }
+
+    /**
+     * Remove a writer, its buckets are moved to the other writers
+     *
+     * @param member        Writer to remove
+     */
+    public void remove(T member) {
+        int index = members.indexOf(member);
+
+        if (index >= 0) {
+            members.remove(index);
+            memberIds.remove(index);
+            build();
+        }
+    }
+
+    /**
+     * Rebuild the bucket owners using the current load
+     */
+    public void rebalance() {
+        build();
+    }
+
+    /**
+     * Get the bucket of a record key
+     *
+     * @param key           Record key, such as the hash id.  Null is bucket zero.
+     *
+     * @return Bucket index
+     */
+    public int bucket(String key) {
+        return key == null ? 0 : mix(key.hashCode()) & bucketMask;
+    }
+
+    /**
+     * Get the writer of a record key, counting the record in the bucket load
+     *
+     * @param key           Record key, such as the hash id
+     *
+     * @return Writer that owns the key, or null if there are no writers
+     */
+    @SuppressWarnings("unchecked")
+    public T get(String key) {
+        int b = bucket(key);
+
+        ++load[b];
+        return (T) owners[b];
+    }
+
+    /**
+     * Get the writer of a bucket
+     */
+    @SuppressWarnings("unchecked")
+    public T owner(int bucket) {
+        return (T) owners[bucket];
+    }
+
+    /**
+     * @return Number of buckets owned by the writer
+     */
+    public int bucketCount(T member) {
+        int index = members.indexOf(member);
+
+        return index >= 0 ? ownerCounts[index] : 0;
+    }
+
+    /**
+     * @return Number of buckets
+     */
+    public int size() {
+        return bucketMask + 1;
+    }
+
+    /**
+     * @return Writers in the order added
+     */
+    public List<T> getMembers() {
+        return members;
+    }
+
+    /*
+     * Compute the owner of every bucket
+     */
+    private void build() {
+        final int n = members.size();
+        final int buckets = bucketMask + 1;
+
+        Object[] newOwners = new Object[buckets];
+        ownerCounts = new int[n];
+
+        if (n == 0) {
+            owners = newOwners;
+            return;
+        }
+
+        // Virtual nodes, sorted by position.  Low 32 bits are the member index.
+        long[] ring = new long[n * VNODES];
+        for (int m = 0; m < n; m++) {
+            for (int v = 0; v < VNODES; v++)
+                ring[m * VNODES + v] = ((long) mix(memberIds.get(m) * 0x9E3779B9 + v) << 32) | m;
+        }
+        Arrays.sort(ring);
+
+        // Every bucket weighs at least one, so idle buckets are spread as well
+        long total = 0;
+        for (int b = 0; b < buckets; b++)
+            total += load[b] + 1;
+
+        final double cap = Math.ceil(LOAD_FACTOR * total / n);
+        double[] memberLoad = new double[n];
+
+        for (int b = 0; b < buckets; b++) {
+            final long weight = load[b] + 1;
+            final long pos = (long) mix(b ^ 0x5bd1e995) << 32;
+
+            int i = Arrays.binarySearch(ring, pos);
+            if (i < 0)
+                i = -i - 1;
+
+            int owner = -1;
+            for (int step = 0; step < ring.length; step++) {
+                int m = (int) ring[(i + step) % ring.length];
+
+                if (memberLoad[m] + weight <= cap) {
+                    owner = m;
+                    break;
+                }
+            }
+
+            if (owner < 0) {            // Heavier than the cap, use the least loaded writer
+                owner = 0;
+                for (int m = 1; m < n; m++) {
+                    if (memberLoad[m] < memberLoad[owner])
+                        owner = m;
+                }
+            }
+
+            memberLoad[owner] += weight;
+            ownerCounts[owner]++;
+            newOwners[b] = members.get(owner);
+
+            load[b] >>= 1;              // Decay so that the next build favors recent load
+        }
+
+        owners = newOwners;
+    }
+
+    /*
+     * Murmur3 finalizer, spreads the bits of the hash
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -7,15 +7,7 @@ package org.openbmp;
  * and is available at http://www.eclipse.org/legal/epl-v10.html
  *
  */
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
-
+import org.openbmp.mysqlquery.StatementTemplate;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -24,251 +16,379 @@ import org.apache.logging.log4j.Logger;
  *
  * Inserts messages in bulk and batch (multi-statement) into MySQL by reading
  *      the FIFO queue.
+ *
+ * \details When pipelined, the writer is double buffered.  A separate executor thread runs
+ *      the flushed batch on the MySQL connection while the writer reads the queue and builds
+ *      and renders the next batch.  There is at most one batch in flight and batches are run
+ *      in order on the same connection, so the order of updates is the same as not pipelined.
+ *
+ *      While bulk loading, such as the RIB dump of a peer, the writer uses the larger bulk batch
+ *      settings.  See {@link #markBulk(long)}.
  */
 public class MySQLWriterRunnable implements  Runnable {
     private static final Logger logger = LogManager.getFormatterLogger(MySQLWriterRunnable.class.getName());
 
-    private Connection con;                                     // MySQL connection
-    private Boolean dbConnected;                                // Indicates if DB is connected or not
+    /**
+     * Max number of rows in a batch before it is flushed, regardless of the number of messages
+     */
+    private static final int MAX_BATCH_ROWS = 10000;
+
+    private final MySQLWriterConnection connection;             // MySQL connection and engines
     private Config cfg;
-    private BlockingQueue<Map<String, String>> writerQueue;     // Reference to the writer FIFO queue
-    private boolean run;
+    private MySQLWriterQueue writerQueue;                       // Reference to the writer FIFO queue
+    private volatile boolean run;
+    private final boolean pipelined;                            // Execute batches on the executor thread
+    private final int batchRecords;                             // Max messages in a batch
+    private final long batchTimeMillis;                         // Max time to batch messages
+    private final int bulkBatchRecords;                         // Max messages in a batch while bulk loading
+    private final long bulkBatchTimeMillis;                     // Max time to batch messages while bulk loading
+    private volatile long bulkMarkTime;                         // Time bulk messages were last sent to the writer
+
+    /*
+     * Pipeline state, guarded by pipeLock
+     */
+    private final Object pipeLock = new Object();
+    private MySQLWriterBatch inFlight;                          // Batch being executed, null if none
+    private MySQLWriterBatch spare;                             // Executed batch, free to be built
+
+    /*
+     * Stats
+     */
+    private volatile long flushCount;                           // Number of batches flushed
+    private volatile long executeNanos;                         // Time executing batches on the connection
+    private volatile long blockedNanos;                         // Time the writer waited on execution
+    private volatile double serviceNanos;                       // Average execute time per message
 
-    private final Object lock = new Object();                   // Lock for thread
+    /*
+     * Queue sequences, messages before the sequence are done
+     */
+    private long executedSequence;                              // Executed, might be pending in the transaction
+    private volatile long committedSequence;                    // Committed
+    private final boolean holdOnFailure;                        // Don't advance committed past failed messages
+    private volatile boolean failed;                            // Messages failed due to a transient error, committed is held
+
+    /**
+     * Constructor
+     *
+     * @param cfg       Configuration - e.g. DB credentials
+     * @param queue     FIFO queue to read from
+     */
+    public MySQLWriterRunnable(Config cfg, MySQLWriterQueue queue) {
+        this(cfg, queue, null);
+    }
 
     /**
      * Constructor
      *
      * @param cfg       Configuration - e.g. DB credentials
      * @param queue     FIFO queue to read from
+     * @param lane      Writer lane name for the batch settings, null to use the global settings
      */
-    public MySQLWriterRunnable(Config cfg, BlockingQueue queue) {
+    public MySQLWriterRunnable(Config cfg, MySQLWriterQueue queue, String lane) {
 
         this.cfg = cfg;
         writerQueue = queue;
+        pipelined = cfg.getDb_pipelined_writer();
+        batchRecords = cfg.getWriter_lane_batch_records(lane);
+        batchTimeMillis = cfg.getWriter_lane_batch_time_millis(lane);
+        bulkBatchRecords = cfg.getWriter_lane_bulk_batch_records(lane);
+        bulkBatchTimeMillis = cfg.getWriter_lane_bulk_batch_time_millis(lane);
+        holdOnFailure = cfg.getKafka_commit_after_flush();
         run = true;
 
-        con = null;
+        spare = new MySQLWriterBatch();
 
-        connectMySQL();
+        connection = new MySQLWriterConnection(cfg, cfg.getWriter_lane_transaction_flushes(lane));
     }
 
-    private boolean connectMySQL() {
-        synchronized (this.lock) {
-            dbConnected = false;
+    /**
+     * Shutdown this thread
+     */
+    public synchronized void shutdown() {
+        run = false;
+        writerQueue.wakeConsumer();
+
+        synchronized (pipeLock) {
+            pipeLock.notifyAll();
         }
 
-        if (con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-            con = null;
+        connection.close();
+    }
+
+    /**
+     * Mark that bulk messages were sent to the writer
+     *
+     * \details The writer uses the bulk batch settings while bulk messages were sent within
+     *      the last bulk batch time, then it's back to the normal batch settings.
+     *
+     * @param now       Current time in milliseconds
+     */
+    public void markBulk(long now) {
+        bulkMarkTime = now;
+    }
+
+    /*
+     * @return True if bulk messages were sent to the writer within the last bulk batch time
+     */
+    private boolean isBulk(long now) {
+        return now - bulkMarkTime <= bulkBatchTimeMillis;
+    }
+
+    /**
+     * Flush the batch
+     *
+     * \details The batch is prepared (rendered) on this thread.  If pipelined, the batch is handed
+     *      to the executor thread once the previous batch is done, otherwise it's executed now.
+     *
+     * @param batch     Batch to flush
+     *
+     * @return Empty batch to build next
+     */
+    private MySQLWriterBatch flush(MySQLWriterBatch batch) throws InterruptedException {
+        connection.prepare(batch);
+        ++flushCount;
+
+        long start = System.nanoTime();
+
+        if (!pipelined) {
+            execute(batch);
+            batch.clear();
+
+            long nanos = System.nanoTime() - start;
+            executeNanos += nanos;
+            blockedNanos += nanos;
+
+            return batch;
         }
 
+        MySQLWriterBatch next;
 
-        logger.info("Writer connecting to MySQL");
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e1) {
-            // ignore
+        synchronized (pipeLock) {
+            while (inFlight != null && run)
+                pipeLock.wait();
+
+            next = spare;
+            spare = null;
+            inFlight = batch;
+
+            pipeLock.notifyAll();
         }
 
-        /*
-         * Establish connection to MySQL
-         */
-        try {
-            con = DriverManager.getConnection(
-                    "jdbc:mariadb://" + cfg.getDbHost() + "/" + cfg.getDbName() +
-                            "?tcpKeepAlive=true&connectTimeout=30000&socketTimeout=350000&useCompression=true" +
-                            "&autoReconnect=true&allowMultiQueries=true&useBatchMultiSend=false" +
-                            "&enableQueryTimeouts=false",
-                    cfg.getDbUser(), cfg.getDbPw());
+        blockedNanos += System.nanoTime() - start;
 
-            con.setAutoCommit(true);
+        return next != null ? next : new MySQLWriterBatch();
+    }
 
-            logger.info("Writer connected to MySQL");
+    /*
+     * Execute the batch on the connection, updating the done sequences
+     */
+    private void execute(MySQLWriterBatch batch) {
+        long start = System.nanoTime();
 
-            synchronized (this.lock) {
-                dbConnected = true;
-            }
+        if (!connection.execute(batch))
+            fail();
 
-        } catch (SQLException e) {
-            e.printStackTrace();
-            logger.warn("Writer thread failed to connect to mysql", e);
+        int messages = batch.getMessageCount() + batch.getQueries().size();
+        if (messages > 0) {
+            double nanos = (double) (System.nanoTime() - start) / messages;
+            serviceNanos = serviceNanos <= 0 ? nanos : serviceNanos * 0.8 + nanos * 0.2;
         }
 
-        return dbConnected;
+        executedSequence = Math.max(executedSequence, batch.getEndSequence());
+
+        if (!connection.isTransactionPending() && !failed)
+            committedSequence = executedSequence;
     }
 
-    /**
-     * Shutdown this thread
+    /*
+     * Commit the pending transaction, if any
      */
-    public synchronized void shutdown() {
-        run = false;
+    private void commitTransaction() {
+        if (!connection.commitTransaction())
+            fail();
 
-        try {
-            con.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        if (!failed)
+            committedSequence = executedSequence;
+    }
+
+    /*
+     * Messages failed after retries due to a transient error, such as the connection or a deadlock.
+     *    If kafka offsets are committed after flush, the committed sequence is held so the offsets of
+     *    the failed messages are never committed.  Messages that failed due to a permanent error are
+     *    skipped by the connection, they would fail again when consumed again.
+     */
+    private void fail() {
+        if (holdOnFailure && !failed) {
+            logger.error("Writer failed to write messages after retries due to a transient error, committed sequence held at %d",
+                         committedSequence);
+            failed = true;
         }
     }
 
     /**
-     * Run MySQL update query
-     *
-     * @param query         Query string to run
-     * @param retries       Number of times to retry, zero means no retries
+     * Executor thread, runs the flushed batches on the connection
      */
-    private void mysqlQueryUpdate(String query, int retries) {
-        Boolean success = Boolean.FALSE;
+    private void executeLoop() {
+        logger.debug("writer executor thread started");
 
-        // Loop the request if broken pipe, connection timed out, or deadlock
-         for (int i = 0; i < retries; i++) {
-            try {
-                Statement stmt = con.createStatement();
-                logger.trace("SQL Query retry = %d: %s", i, query);
+        try {
+            while (run) {
+                MySQLWriterBatch batch;
+                boolean idle = false;
+
+                synchronized (pipeLock) {
+                    if (inFlight == null) {
+                        /*
+                         * Wait for the next batch.  If a transaction is pending, commit it when the
+                         *   writer doesn't flush within the batch time.  At least 1 ms, zero would
+                         *   wait forever with a batch time of zero.
+                         */
+                        pipeLock.wait(connection.isTransactionPending() ? Math.max(1, batchTimeMillis * 2) : 0);
+
+                        idle = inFlight == null;
+                    }
 
-                stmt.executeUpdate(query);
+                    batch = inFlight;
+                }
 
-                i = retries;
-                success = Boolean.TRUE;
-                break;
+                if (idle) {
+                    if (run)
+                        commitTransaction();
 
-            } catch (SQLException e) {
-                if (!e.getSQLState().equals("40001") && i >= (retries - 1)) {
-                    logger.info("SQL exception state " + i + " : " + e.getSQLState());
-                    logger.info("SQL exception: " + e.getMessage());
+                    continue;
                 }
 
-                if (e.getMessage().contains("Connection refused") ||
-                        e.getMessage().contains("Broken pipe") ||
-                        e.getMessage().contains("Connection timed out")) {
-                    logger.error("Not connected to mysql: " + e.getMessage());
+                long start = System.nanoTime();
 
-                    while (!connectMySQL()) {
-                        try {
-                            Thread.sleep(4000);
-                        } catch (InterruptedException e1) {
-                            // ignore
-                        }
-                    }
-                } else if (e.getMessage().contains("Deadlock found when trying") ) {
-                    try {
-                        Thread.sleep(2000);
-                    } catch (InterruptedException e2) {
-                        // ignore
-                    }
+                execute(batch);
+                batch.clear();
+
+                executeNanos += System.nanoTime() - start;
+
+                synchronized (pipeLock) {
+                    spare = batch;
+                    inFlight = null;
+                    pipeLock.notifyAll();
                 }
             }
+        } catch (Exception e) {
+            logger.error("Exception: ", e);
         }
 
-        if (!success) {
-            logger.warn("Failed to insert/update after %d max retires", retries);
-            logger.debug("query: " + query);
-        }
+        logger.debug("writer executor thread done");
     }
 
     /**
      * Run the thread
      */
     public void run() {
-        if (!dbConnected) {
+        if (!connection.isDbConnected()) {
             logger.debug("Will not run writer thread since DB isn't connected");
             return;
         }
         logger.debug("writer thread started");
 
+        if (pipelined) {
+            Thread executor = new Thread(this::executeLoop, Thread.currentThread().getName() + "-executor");
+            executor.setDaemon(true);
+            executor.start();
+        }
+
         long cur_time = 0;
         long prev_time = System.currentTimeMillis();
 
         int bulk_count = 0;
+        boolean full = false;                       // Flush now, such as for a query or max rows
 
         /*
-         * bulk query map has a key of : <prefix|suffix>
-         *      Prefix and suffix are from the query FIFO message.  Value is the VALUE to be inserted/updated/deleted
+         * bulk batch of rows by statement template, rendered as a single multi-statement on flush
          */
-        Map<String, String> bulk_query = new LinkedHashMap<String, String>();
+        MySQLWriterBatch batch = new MySQLWriterBatch();
 
         try {
             while (run) {
                 cur_time = System.currentTimeMillis();
 
+                final boolean bulk = isBulk(cur_time);
+                final int batch_records = bulk ? bulkBatchRecords : batchRecords;
+                final long batch_time = bulk ? bulkBatchTimeMillis : batchTimeMillis;
+
                 /*
                  * Do insert/query if max wait/duration has been reached or if max statements have been reached.
                  */
-                if (cur_time - prev_time > cfg.getDb_batch_time_millis() ||
-                        bulk_count >= cfg.getDb_batch_records()) {
+                if (cur_time - prev_time > batch_time ||
+                        bulk_count >= batch_records || full) {
 
                     if (bulk_count > 0) {
-                        logger.trace("Max reached, doing insert: wait_ms=%d bulk_count=%d",
-                                    cur_time - prev_time, bulk_count);
-
-                        StringBuilder query = new StringBuilder();
-                        // Loop through queries and add them as multi-statements
-                        for (Map.Entry<String, String> entry : bulk_query.entrySet()) {
-                            String key = entry.getKey().toString();
+                        logger.trace("Max reached, doing insert: wait_ms=%d bulk_count=%d bulk=%s",
+                                    cur_time - prev_time, bulk_count, bulk);
 
-                            String value = entry.getValue();
+                        batch.setBulk(bulk);
+                        batch = flush(batch);
 
-                            String[] ins = key.split("[|]");
+                        bulk_count = 0;
+                        full = false;
+                    }
 
-                            if (query.length() > 0)
-                                query.append(';');
+                    prev_time = System.currentTimeMillis();
+                }
 
-                            query.append(ins[0]);
-                            query.append(' ');
-                            query.append(value);
-                            query.append(' ');
+                /*
+                 * Claim all available messages, waiting for the producer if there are none.  If there is
+                 *    a pending batch, wait no longer than the remaining batch time.
+                 */
+                int available = writerQueue.available();
 
-                            if (ins.length > 1 && ins[1] != null && ins[1].length() > 0)
-                                query.append(ins[1]);
-                        }
+                if (available <= 0) {
+                    if (bulk_count > 0) {
+                        long wait_ms = batch_time - (System.currentTimeMillis() - prev_time);
 
-                        if (query.length() > 0) {
-                            mysqlQueryUpdate(query.toString(), cfg.getDb_retries());
-                        }
+                        if (wait_ms > 0)
+                            writerQueue.awaitData(wait_ms);
+                    } else {
+                        // Commit the pending transaction before going idle, executor does this when pipelined
+                        if (!pipelined)
+                            commitTransaction();
 
-                        prev_time = System.currentTimeMillis();
-
-                        bulk_count = 0;
-                        bulk_query.clear();
-                    }
-                    else {
+                        writerQueue.awaitData(0);
                         prev_time = System.currentTimeMillis();
                     }
+
+                    continue;
                 }
 
-                // Get next query from queue
-                Map<String, String> cur_query = writerQueue.poll(cfg.getDb_batch_time_millis(), TimeUnit.MILLISECONDS);
+                long seq = writerQueue.readSequence();
+                int read = 0;
 
-                if (cur_query != null) {
-                    if (cur_query.containsKey("prefix")) {
-                        String key = cur_query.get("prefix") + "|" + cur_query.get("suffix");
-                        ++bulk_count;
+                while (read < available && bulk_count < batch_records && !full) {
+                    StatementTemplate template = writerQueue.template(seq);
 
-                        // merge the data to existing bulk map if already present
-                        if (bulk_query.containsKey(key)) {
-                            bulk_query.put(key, bulk_query.get(key).concat("," + cur_query.get("value")));
-                        } else {
-                            bulk_query.put(key, cur_query.get("value"));
-                        }
+                    if (template != null) {
+                        batch.add(template, writerQueue.rows(seq));
+                        ++bulk_count;
 
-                        if (cur_query.get("value").length() > 200000) {
-                            bulk_count = cfg.getDb_batch_records();
-                            logger.debug("value length is: %d", cur_query.get("value").length());
+                        if (batch.getRowCount() >= MAX_BATCH_ROWS) {
+                            full = true;
+                            logger.debug("batch rows is: %d", batch.getRowCount());
                         }
                     }
-                    else if (cur_query.containsKey("query")) {  // Null prefix means run query now, not in bulk
-                        logger.debug("Non bulk query");
-
-                        mysqlQueryUpdate(cur_query.get("query"), 3);
+                    else {  // Null template means run query now, not in bulk
+                        /*
+                         * Query is run after the batch rows, which were queued before it.  Flush
+                         *    now so that the query isn't delayed and runs before later rows.
+                         */
+                        batch.addQuery(writerQueue.query(seq));
+                        ++bulk_count;
+                        full = true;
                     }
+
+                    ++seq;
+                    ++read;
                 }
+
+                batch.setEndSequence(seq);
+                writerQueue.release(read);
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         } catch (Exception e) {
             logger.error("Exception: ", e);
         }
@@ -282,12 +402,87 @@ public class MySQLWriterRunnable implements  Runnable {
      * @return True if DB is connected, False otherwise
      */
     public boolean isDbConnected() {
-        boolean status;
+        return connection.isDbConnected();
+    }
 
-        synchronized (lock) {
-            status = dbConnected;
-        }
+    /**
+     * Get the writer queue sequence of the committed messages
+     *
+     * \details All messages offered to the queue before this sequence are committed to MySQL.  If
+     *      kafka offsets are committed after flush, the sequence stops at the first messages that
+     *      failed after retries due to a transient error, see {@link #isFailed()}.  Otherwise failed
+     *      messages are skipped.
+     *      Compare with {@link MySQLWriterQueue#writeSequence()}.
+     *
+     * @return Sequence after the last committed message
+     */
+    public long getCommittedSequence() {
+        return committedSequence;
+    }
+
+    /**
+     * @return True if messages failed after retries due to a transient error and the committed
+     *      sequence is held
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return Average time in nanoseconds to execute a message (moving average), zero if nothing
+     *      has been executed yet
+     */
+    public double getServiceNanosPerMessage() {
+        return serviceNanos;
+    }
 
-        return status;
+    /**
+     * @return Number of batches flushed
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * @return Time in milliseconds executing batches on the MySQL connection
+     */
+    public long getExecuteMillis() {
+        return executeNanos / 1000000;
+    }
+
+    /**
+     * @return Time in milliseconds the writer waited on batch execution.  When not pipelined
+     *      this is the same as the execute time.
+     */
+    public long getBlockedMillis() {
+        return blockedNanos / 1000000;
+    }
+
+    /**
+     * @return Number of updates that failed due to a deadlock
+     */
+    public long getDeadlockCount() {
+        return connection.getDeadlockCount();
+    }
+
+    /**
+     * @return Number of updates that were retried
+     */
+    public long getRetryCount() {
+        return connection.getRetryCount();
+    }
+
+    /**
+     * @return Number of duplicate rows removed from batches
+     */
+    public long getDedupCount() {
+        return connection.getDedupCount();
+    }
+
+    /**
+     * @return Number of updates skipped because they failed due to a permanent error
+     */
+    public long getSkippedCount() {
+        return connection.getSkippedCount();
     }
 }
@@ -0,0 +1,260 @@
+package org.openbmp.mysqlquery;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reusable AS path parser
+ *
+ * \details Scans an AS path string, such as "64512 64513 64513 {64514 64515}", once into a primitive
+ *      array of ASNs without splitting the string or boxing.  AS_SET braces are ignored, so the ASNs
+ *      of a set are in path order, and prepends are kept as is.  Parsing stops at the first token
+ *      that isn't an ASN, in which case the path is not complete.
+ *
+ *      The as_path_analysis adjacency tuples (asn, asn_left, asn_right, asn_left_is_peering) of the
+ *      parsed paths are deduplicated in a primitive open addressing hash set.  The set is cleared in
+ *      constant time, so the parser can be reused for every message.
+ *
+ *      Not thread safe, use one parser per thread.
+ */
+public final class AsPathParser {
+
+    private static final long MAX_ASN = 0xFFFFFFFFL;            // 4 octet ASN
+    private static final int MIN_TUPLE_CAPACITY = 256;
+
+    private static final ThreadLocal<AsPathParser> local = ThreadLocal.withInitial(AsPathParser::new);
+
+    private long[] asns = new long[64];
+    private int count;                                          // Number of ASNs parsed
+    private boolean complete;                                   // False if parsing stopped at an invalid token
+
+    /*
+     * Tuple set, linear probing.  A slot is used if its stamp is the current generation, so
+     *      clearing the set is incrementing the generation.
+     */
+    private long[] tupleHigh;                                   // asn << 32 | asn_left
+    private long[] tupleLow;                                    // asn_right << 1 | asn_left_is_peering
+    private int[] stamps;
+    private int generation = 1;
+    private int tupleCount;
+
+    public AsPathParser() {
+        allocate(MIN_TUPLE_CAPACITY);
+    }
+
+    /**
+     * @return Parser of the current thread, reused by the queries of the thread
+     */
+    static AsPathParser local() {
+        return local.get();
+    }
+
+    /**
+     * Parse the AS path
+     *
+     * \details Tokens are separated by a single space, leading and trailing whitespace is ignored.
+     *      An empty token (two spaces) or a token that isn't a 4 octet ASN ends the path.
+     *
+     * @param path          AS path string, null is an empty path
+     *
+     * @return Number of ASNs parsed
+     */
+    public int parse(CharSequence path) {
+        count = 0;
+        complete = true;
+
+        if (path == null)
+            return 0;
+
+        int start = 0;
+        int end = path.length();
+
+        while (start < end && path.charAt(start) <= ' ')
+            ++start;
+        while (end > start && path.charAt(end - 1) <= ' ')
+            --end;
+
+        long value = 0;
+        boolean inToken = false;
+        boolean empty = false;                                  // Space after a space, empty token if followed by an ASN
+
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+
+            if (c >= '0' && c <= '9') {
+                if (empty || (value = value * 10 + (c - '0')) > MAX_ASN) {
+                    complete = false;
+                    return count;
+                }
+
+                inToken = true;
+
+            } else if (c == ' ') {
+                if (inToken)
+                    add(value);
+                else
+                    empty = count > 0;
+
+                value = 0;
+                inToken = false;
+
+            } else if (c != '{' && c != '}') {
+                complete = false;
+                return count;
+            }
+        }
+
+        if (inToken)
+            add(value);
+
+        return count;
+    }
+
+    private void add(long asn) {
+        if (count == asns.length)
+            asns = Arrays.copyOf(asns, count * 2);
+
+        asns[count++] = asn;
+    }
+
+    /**
+     * @return Number of ASNs of the last parsed path
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @param index     Index of the ASN in the path, 0 to count() - 1
+     *
+     * @return ASN at index of the last parsed path
+     */
+    public long asn(int index) {
+        return asns[index];
+    }
+
+    /**
+     * @return True if the last path was parsed to the end, false if it stopped at an invalid token
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Add the as_path_analysis rows of the last parsed path that are not in the tuple set
+     *
+     * \details Each ASN is added with its left and right ASN.  The left ASN of the first ASN is
+     *      zero, as is the right ASN of the origin.  Prepends are skipped.  The first two ASNs
+     *      are flagged as peering.  If the path is not complete, the origin isn't added.
+     *
+     * @param rows          List to add the rows of (asn, asn_left, asn_right, asn_left_is_peering) to
+     */
+    public void addTuples(List<Object[]> rows) {
+        long left = 0;
+
+        for (int i = 0; i < count; i++) {
+            long asn = asns[i];
+
+            if (asn <= 0)
+                continue;
+
+            if (i + 1 < count) {
+                long right = asns[i + 1];
+
+                if (right == asn)
+                    continue;
+
+                int peering = i <= 1 ? 1 : 0;
+                if (addTuple(asn, left, right, peering))
+                    rows.add(new Object[] { asn, left, right, peering });
+
+            } else {
+                // No more left in path - Origin ASN
+                if (complete && addTuple(asn, left, 0, 0))
+                    rows.add(new Object[] { asn, left, 0L, 0 });
+                break;
+            }
+
+            left = asn;
+        }
+    }
+
+    /**
+     * Add the tuple to the tuple set
+     *
+     * @return True if added, false if the tuple is already in the set
+     */
+    public boolean addTuple(long asn, long left, long right, int peering) {
+        final long high = asn << 32 | left;
+        final long low = right << 1 | peering;
+        final int mask = stamps.length - 1;
+
+        int slot = hash(high, low) & mask;
+
+        while (stamps[slot] == generation) {
+            if (tupleHigh[slot] == high && tupleLow[slot] == low)
+                return false;
+
+            slot = (slot + 1) & mask;
+        }
+
+        stamps[slot] = generation;
+        tupleHigh[slot] = high;
+        tupleLow[slot] = low;
+
+        if (++tupleCount * 2 > stamps.length)
+            rehash();
+
+        return true;
+    }
+
+    /**
+     * Clear the tuple set
+     */
+    public void clearTuples() {
+        tupleCount = 0;
+
+        if (++generation == 0) {
+            // Wrapped, stamps of old generations could match again
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * @return Number of tuples in the tuple set
+     */
+    public int getTupleCount() {
+        return tupleCount;
+    }
+
+    private void allocate(int capacity) {
+        tupleHigh = new long[capacity];
+        tupleLow = new long[capacity];
+        stamps = new int[capacity];
+    }
+
+    private void rehash() {
+        long[] high = tupleHigh;
+        long[] low = tupleLow;
+        int[] used = stamps;
+        int current = generation;
+
+        allocate(used.length * 2);
+        tupleCount = 0;
+        generation = 1;
+
+        for (int i = 0; i < used.length; i++) {
+            if (used[i] == current)
+                addTuple(high[i] >>> 32, high[i] & MAX_ASN, low[i] >>> 1, (int) (low[i] & 1));
+        }
+    }
+
+    private static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L + low;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+
+        return (int) (h ^ h >>> 32);
+    }
+}
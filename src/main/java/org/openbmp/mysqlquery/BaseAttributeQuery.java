@@ -1,12 +1,14 @@
 package org.openbmp.mysqlquery;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.openbmp.api.parsed.message.MsgBusFields;
 
+import static org.openbmp.mysqlquery.StatementTemplate.ColumnType.*;
+
+
 public class BaseAttributeQuery extends Query{
 	
 	public BaseAttributeQuery(List<Map<String, Object>> rowMap){
@@ -15,174 +17,146 @@ public class BaseAttributeQuery extends Query{
 	}
 	
     /**
-     * Generate MySQL insert/update statement, sans the values
-     *
-     * @return Two strings are returned
-     *      0 = Insert statement string up to VALUES keyword
-     *      1 = ON DUPLICATE KEY UPDATE ...  or empty if not used.
+     * Bulk insert/update statement template
+     */
+    public static final StatementTemplate TEMPLATE = StatementTemplate.intern(
+            "INSERT INTO", "path_attrs", "hash_id,peer_hash_id,origin,as_path,origin_as,next_hop,med,local_pref," +
+                    "isAtomicAgg,aggregator,community_list,ext_community_list,large_community_list," +
+                    "cluster_list,originator_id,as_path_count,nexthop_isIPv4,timestamp",
+            new StatementTemplate.ColumnType[] { STRING, STRING, STRING, STRING, NUMBER, STRING, NUMBER, NUMBER,
+                    NUMBER, STRING, STRING, STRING, STRING,
+                    STRING, STRING, NUMBER, NUMBER, STRING },
+            " ON DUPLICATE KEY UPDATE timestamp=values(timestamp) ",
+            "hash_id,peer_hash_id");
+
+    /**
+     * as_path_analysis insert statement template
      */
-    public String[] genInsertStatement() {
-        final String [] stmt = { " INSERT INTO path_attrs (hash_id,peer_hash_id,origin,as_path,origin_as,next_hop,med,local_pref," +
-                                "isAtomicAgg,aggregator,community_list,ext_community_list,large_community_list," +
-                                "cluster_list,originator_id,as_path_count,nexthop_isIPv4,timestamp) VALUES ",
+    public static final StatementTemplate AS_PATH_ANALYSIS_TEMPLATE = StatementTemplate.intern(
+            "INSERT IGNORE INTO", "as_path_analysis", "asn,asn_left,asn_right,asn_left_is_peering",
+            new StatementTemplate.ColumnType[] { NUMBER, NUMBER, NUMBER, NUMBER },
+            "",
+            "asn,asn_left_is_peering,asn_left,asn_right");
+            //" ON DUPLICATE KEY UPDATE timestamp=values(timestamp)");
 
-                           " ON DUPLICATE KEY UPDATE timestamp=values(timestamp) " };
-        return stmt;
+    /**
+     * as_path_analysis insert statement template that refreshes the timestamp of existing tuples,
+     *      used when the tuples are cached and only sent again to refresh them
+     */
+    public static final StatementTemplate AS_PATH_ANALYSIS_REFRESH_TEMPLATE = StatementTemplate.intern(
+            "INSERT INTO", "as_path_analysis", "asn,asn_left,asn_right,asn_left_is_peering",
+            new StatementTemplate.ColumnType[] { NUMBER, NUMBER, NUMBER, NUMBER },
+            " ON DUPLICATE KEY UPDATE timestamp=current_timestamp(6) ",
+            "asn,asn_left_is_peering,asn_left,asn_right");
+
+    /**
+     * community_analysis insert statement template
+     */
+    public static final StatementTemplate COMMUNITY_ANALYSIS_TEMPLATE = StatementTemplate.intern(
+            "INSERT IGNORE INTO", "community_analysis", "community,part1,part2,path_attr_hash_id,peer_hash_id",
+            new StatementTemplate.ColumnType[] { STRING, NUMBER, NUMBER, STRING, STRING },
+            "");
+            //" ON DUPLICATE KEY UPDATE timestamp=values(timestamp) ");
+
+    public StatementTemplate getTemplate() {
+        return TEMPLATE;
     }
 
     /**
-     * Generate bulk values statement for SQL bulk insert.
+     * Generate the rows for the bulk insert/update
      *
-     * @return String in the format of (col1, col2, ...)[,...]
+     * @return List of rows in template column order
      */
-    public String genValuesStatement() {
-        StringBuilder sb = new StringBuilder();
+    public List<Object[]> genRows() {
+        List<Object[]> rows = new ArrayList<>(rowMap.size());
 
         for (int i=0; i < rowMap.size(); i++) {
-            if (i > 0)
-                sb.append(',');
-
-            sb.append('(');
-            sb.append("'" + lookupValue(MsgBusFields.HASH, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.PEER_HASH, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.ORIGIN, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.AS_PATH, i) + "',");
-            sb.append(lookupValue(MsgBusFields.ORIGIN_AS, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.NEXTHOP, i) + "',");
-            sb.append(lookupValue(MsgBusFields.MED, i) + ",");
-            sb.append(lookupValue(MsgBusFields.LOCAL_PREF, i) + ",");
-            sb.append(lookupValue(MsgBusFields.ISATOMICAGG, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.AGGREGATOR, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.COMMUNITY_LIST, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.EXT_COMMUNITY_LIST, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.LARGE_COMMUNITY_LIST, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.CLUSTER_LIST, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.ORIGINATOR_ID, i) + "',");
-            sb.append(lookupValue(MsgBusFields.AS_PATH_COUNT, i) + ",");
-            sb.append(lookupValue(MsgBusFields.IS_NEXTHOP_IPV4, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.TIMESTAMP, i) + "'");
-            sb.append(')');
+            rows.add(new Object[] {
+                    lookupValue(MsgBusFields.HASH, i),
+                    lookupValue(MsgBusFields.PEER_HASH, i),
+                    lookupValue(MsgBusFields.ORIGIN, i),
+                    lookupValue(MsgBusFields.AS_PATH, i),
+                    lookupValue(MsgBusFields.ORIGIN_AS, i),
+                    lookupValue(MsgBusFields.NEXTHOP, i),
+                    lookupValue(MsgBusFields.MED, i),
+                    lookupValue(MsgBusFields.LOCAL_PREF, i),
+                    lookupValue(MsgBusFields.ISATOMICAGG, i),
+                    lookupValue(MsgBusFields.AGGREGATOR, i),
+                    lookupValue(MsgBusFields.COMMUNITY_LIST, i),
+                    lookupValue(MsgBusFields.EXT_COMMUNITY_LIST, i),
+                    lookupValue(MsgBusFields.LARGE_COMMUNITY_LIST, i),
+                    lookupValue(MsgBusFields.CLUSTER_LIST, i),
+                    lookupValue(MsgBusFields.ORIGINATOR_ID, i),
+                    lookupValue(MsgBusFields.AS_PATH_COUNT, i),
+                    lookupValue(MsgBusFields.IS_NEXTHOP_IPV4, i),
+                    lookupValue(MsgBusFields.TIMESTAMP, i)
+            });
         }
 
-        return sb.toString();
+        return rows;
     }
 
     /**
-     * Generate MySQL insert/update statement, sans the values for as_path_analysis
+     * Get the AS paths of the path attributes
      *
-     * @return Two strings are returned
-     *      0 = Insert statement string up to VALUES keyword
-     *      1 = ON DUPLICATE KEY UPDATE ...  or empty if not used.
+     * @return List of the AS path of each row
      */
-    public String[] genAsPathAnalysisStatement() {
-        final String [] stmt = {" INSERT IGNORE INTO as_path_analysis (asn,asn_left,asn_right,asn_left_is_peering)" +
-                                    " VALUES ",
-                          "" };
-                          //" ON DUPLICATE KEY UPDATE timestamp=values(timestamp)"};
-        return stmt;
+    public List<String> getAsPaths() {
+        List<String> paths = new ArrayList<>(rowMap.size());
+
+        for (int i=0; i < rowMap.size(); i++)
+            paths.add((String)lookupValue(MsgBusFields.AS_PATH, i));
+
+        return paths;
     }
 
     /**
-     * Generate bulk values statement for SQL bulk insert for as_path_analysis
+     * Generate the rows for as_path_analysis, see {@link #AS_PATH_ANALYSIS_TEMPLATE}
      *
-     * @return String in the format of (col1, col2, ...)[,...]
+     * @return List of unique rows of (asn, asn_left, asn_right, asn_left_is_peering)
      */
-    public String genAsPathAnalysisValuesStatement() {
-        StringBuilder sb = new StringBuilder();
-        Set<String> values = new HashSet<String>();
-
-        /*
-         * Iterate through the AS Path and extract out the left and right ASN for each AS within
-         *     the AS PATH
-         */
-        for (int i=0; i < rowMap.size(); i++) {
-
-            String as_path_str = ((String)lookupValue(MsgBusFields.AS_PATH, i)).trim();
-            as_path_str = as_path_str.replaceAll("[{}]", "");
-            String[] as_path = as_path_str.split(" ");
-
-            Long left_asn = 0L;
-            Long right_asn = 0L;
-            Long asn = 0L;
-
-            for (int i2=0; i2 < as_path.length; i2++) {
-                if (as_path[i2].length() <= 0)
-                    break;
-
-                try {
-                    asn = Long.valueOf(as_path[i2]);
-                } catch (NumberFormatException e) {
-                    e.printStackTrace();
-                    break;
-                }
-
-                if (asn > 0 ) {
-                    if (i2+1 < as_path.length) {
-
-                        if (as_path[i2 + 1].length() <= 0)
-                            break;
+    public List<Object[]> genAsPathAnalysisRows() {
+        List<Object[]> rows = new ArrayList<>();
+        AsPathParser parser = AsPathParser.local();
 
-                        try {
-                            right_asn = Long.valueOf(as_path[i2 + 1]);
+        parser.clearTuples();
 
-                        } catch (NumberFormatException e) {
-                            e.printStackTrace();
-                            break;
-                        }
-
-                        if (right_asn.equals(asn)) {
-                            continue;
-                        }
-
-                        String isPeeringAsn = (i2 == 0 || i2 == 1) ? "1" : "0";
-                        values.add("(" + asn + "," + left_asn + "," + right_asn + "," + isPeeringAsn + ")");
-
-
-                    } else {
-                        // No more left in path - Origin ASN
-                          values.add("(" + asn + "," + left_asn + ",0,0)");
-                        break;
-                    }
-
-                    left_asn = asn;
-                }
-            }
-        }
-
-
-        for (String value: values) {
-            if (sb.length() > 0) {
-                sb.append(',');
-            }
-
-            sb.append(value);
+        for (int i=0; i < rowMap.size(); i++) {
+            parser.parse((String)lookupValue(MsgBusFields.AS_PATH, i));
+            parser.addTuples(rows);
         }
 
-        return sb.toString();
+        return rows;
     }
 
     /**
-     * Generate MySQL insert/update statement, sans the values for community_analysis
+     * Generate the rows for as_path_analysis of the AS paths, such as AS paths that were deferred
+     *
+     * @param asPaths       AS paths, such as "64512 64513 {64514 64515}"
      *
-     * @return Two strings are returned
-     *      0 = Insert statement string up to VALUES keyword
-     *      1 = ON DUPLICATE KEY UPDATE ...  or empty if not used.
+     * @return List of unique rows of (asn, asn_left, asn_right, asn_left_is_peering)
      */
-    public String[] genCommunityAnalysisStatement() {
-        final String [] stmt = {" INSERT IGNORE INTO community_analysis (community,part1,part2,path_attr_hash_id, peer_hash_id)" +
-                " VALUES ", "" };
+    public static List<Object[]> genAsPathAnalysisRows(Iterable<String> asPaths) {
+        List<Object[]> rows = new ArrayList<>();
+        AsPathParser parser = AsPathParser.local();
+
+        parser.clearTuples();
+
+        for (String path : asPaths) {
+            parser.parse(path);
+            parser.addTuples(rows);
+        }
 
-                //" ON DUPLICATE KEY UPDATE timestamp=values(timestamp) " };
-        return stmt;
+        return rows;
     }
 
     /**
-     * Generate bulk values statement for SQL bulk insert for community_analysis
+     * Generate the rows for community_analysis, see {@link #COMMUNITY_ANALYSIS_TEMPLATE}
      *
-     * @return String in the format of (col1, col2, ...)[,...]
+     * @return List of rows of (community, part1, part2, path_attr_hash_id, peer_hash_id)
      */
-    public String genCommunityAnalysisValuesStatement() {
-        StringBuilder sb = new StringBuilder();
+    public List<Object[]> genCommunityAnalysisRows() {
+        List<Object[]> rows = new ArrayList<>();
 
         /*
          * Iterate through the community list and extract part1 and part2,
@@ -211,23 +185,12 @@ public class BaseAttributeQuery extends Query{
                 }
 
                 if (part1 != null && part2 != null) {
-                    if (sb.length() > 0)
-                        sb.append(",");
-
-                    sb.append("('" + communityList[j] + "',"
-                            + part1 + ","
-                            + part2 + ",'"
-                            + path_attr_hash + "','"
-                            + peer_hash + "')"
-                    );
+                    rows.add(new Object[] { communityList[j], part1, part2, path_attr_hash, peer_hash });
                 }
             }
         }
 
-        //System.out.println("AS insert: " + sb.toString());
-        if (sb.length() <= 0)
-            sb.append("");
-        return sb.toString();
+        return rows;
     }
 
 }
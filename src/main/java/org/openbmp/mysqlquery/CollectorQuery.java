@@ -1,11 +1,15 @@
 package org.openbmp.mysqlquery;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.openbmp.api.parsed.message.MsgBusFields;
 
+import static org.openbmp.mysqlquery.StatementTemplate.ColumnType.*;
+
+
 public class CollectorQuery extends Query{
 	
 	public CollectorQuery(List<Map<String, Object>> rowMap){
@@ -14,40 +18,38 @@ public class CollectorQuery extends Query{
 	}
 	
     /**
-     * Generate MySQL insert/update statement, sans the values
-     *
-     * @return Two strings are returned
-     *      0 = Insert statement string up to VALUES keyword
-     *      1 = ON DUPLICATE KEY UPDATE ...  or empty if not used.
+     * Bulk insert/update statement template
      */
-    public String[] genInsertStatement() {
-        String [] stmt = { " INSERT INTO collectors (hash_id,state,admin_id,routers,router_count,timestamp) VALUES ",
-                           " ON DUPLICATE KEY UPDATE state=values(state),timestamp=values(timestamp),routers=values(routers),router_count=values(router_count)" };
-        return stmt;
+    public static final StatementTemplate TEMPLATE = StatementTemplate.intern(
+            "INSERT INTO", "collectors", "hash_id,state,admin_id,routers,router_count,timestamp",
+            new StatementTemplate.ColumnType[] { STRING, STRING, STRING, STRING, NUMBER, STRING },
+            " ON DUPLICATE KEY UPDATE state=values(state),timestamp=values(timestamp),routers=values(routers),router_count=values(router_count)",
+            "hash_id");
+
+    public StatementTemplate getTemplate() {
+        return TEMPLATE;
     }
 
     /**
-     * Generate bulk values statement for SQL bulk insert.
+     * Generate the rows for the bulk insert/update
      *
-     * @return String in the format of (col1, col2, ...)[,...]
+     * @return List of rows in template column order
      */
-    public String genValuesStatement() {
-        StringBuilder sb = new StringBuilder();
+    public List<Object[]> genRows() {
+        List<Object[]> rows = new ArrayList<>(rowMap.size());
 
         for (int i=0; i < rowMap.size(); i++) {
-            if (i > 0)
-                sb.append(',');
-            sb.append('(');
-            sb.append("'" + lookupValue(MsgBusFields.HASH, i) + "',");
-            sb.append((((String)lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("stopped") ? "'down'" : "'up'") + ",");
-            sb.append("'" + lookupValue(MsgBusFields.ADMIN_ID, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.ROUTERS, i) + "',");
-            sb.append(lookupValue(MsgBusFields.ROUTER_COUNT, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.TIMESTAMP, i) + "'");
-            sb.append(')');
+            rows.add(new Object[] {
+                    lookupValue(MsgBusFields.HASH, i),
+                    ((String)lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("stopped") ? "down" : "up",
+                    lookupValue(MsgBusFields.ADMIN_ID, i),
+                    lookupValue(MsgBusFields.ROUTERS, i),
+                    lookupValue(MsgBusFields.ROUTER_COUNT, i),
+                    lookupValue(MsgBusFields.TIMESTAMP, i)
+            });
         }
 
-        return sb.toString();
+        return rows;
     }
 
 
@@ -84,44 +86,52 @@ public class CollectorQuery extends Query{
             else { // heartbeat or changed
 
                 // Add concurrent connection map for collector if it does not exist already
-                if (! routerConMap.containsKey((String)lookupValue(MsgBusFields.HASH, i))) {
-                    routerConMap.put((String)lookupValue(MsgBusFields.HASH, i), new ConcurrentHashMap<String, Integer>());
-                    changed = Boolean.TRUE;
+                Map<String, Integer> routerMap = routerConMap.get((String) lookupValue(MsgBusFields.HASH, i));
+                if (routerMap == null) {
+                    Map<String, Integer> newMap = new ConcurrentHashMap<String, Integer>();
+
+                    routerMap = routerConMap.putIfAbsent((String)lookupValue(MsgBusFields.HASH, i), newMap);
+                    if (routerMap == null) {
+                        routerMap = newMap;
+                        changed = Boolean.TRUE;
+                    }
                 }
 
                 String[] routerArray = ((String) lookupValue(MsgBusFields.ROUTERS, i)).split("[ ]*,[ ]*");
 
-                if (routerArray.length > 0) {
-                    // Update the router list
-                    Map<String, Integer> routerMap = routerConMap.get((String) lookupValue(MsgBusFields.HASH, i));
-                    routerMap.clear();
+                // Other consumer threads update the same router map; rebuild it as one unit
+                synchronized (routerMap) {
+                    if (routerArray.length > 0) {
+                        // Update the router list
+                        routerMap.clear();
 
-                    for (String router : routerArray) {
+                        for (String router : routerArray) {
 
-                        if (routerMap.containsKey(router)) {                    // Increment
-                            routerMap.put(router, routerMap.get(router) + 1);
-                        } else {                                                // new
-                            if (routerMap.size() > 0) {
-                                router_sql_in_list.append(" OR ");
-                            }
+                            if (routerMap.containsKey(router)) {                    // Increment
+                                routerMap.put(router, routerMap.get(router) + 1);
+                            } else {                                                // new
+                                if (routerMap.size() > 0) {
+                                    router_sql_in_list.append(" OR ");
+                                }
 
-                            router_sql_in_list.append(" ip_address = '");
-                            router_sql_in_list.append(router);
-                            router_sql_in_list.append("'");
+                                router_sql_in_list.append(" ip_address = '");
+                                router_sql_in_list.append(router);
+                                router_sql_in_list.append("'");
 
-                            routerMap.put(router, 1);
+                                routerMap.put(router, 1);
+                            }
                         }
-                    }
 
-                    router_sql_in_list.append(")");
+                        router_sql_in_list.append(")");
 
-                    // Update routers if there's a change
-                    if (changed && router_sql_in_list.length() > 2) {
-                        if (sb.length() > 0) {
-                            sb.append(";");
-                        }
+                        // Update routers if there's a change
+                        if (changed && router_sql_in_list.length() > 2) {
+                            if (sb.length() > 0) {
+                                sb.append(";");
+                            }
 
-                        sb.append("UPDATE routers SET isConnected = True WHERE collector_hash_id = '" + lookupValue(MsgBusFields.HASH, i) + "' AND " + router_sql_in_list);
+                            sb.append("UPDATE routers SET isConnected = True WHERE collector_hash_id = '" + lookupValue(MsgBusFields.HASH, i) + "' AND " + router_sql_in_list);
+                        }
                     }
                 }
             }
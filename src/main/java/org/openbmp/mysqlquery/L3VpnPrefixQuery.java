@@ -3,9 +3,12 @@ package org.openbmp.mysqlquery;
 import org.openbmp.api.helpers.IpAddr;
 import org.openbmp.api.parsed.message.MsgBusFields;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import static org.openbmp.mysqlquery.StatementTemplate.ColumnType.*;
+
 
 public class L3VpnPrefixQuery extends Query{
 
@@ -16,73 +19,73 @@ public class L3VpnPrefixQuery extends Query{
 	
 	
     /**
-     * Generate MySQL insert/update statement, sans the values
-     *
-     * @return Two strings are returned
-     *      0 = Insert statement string up to VALUES keyword
-     *      1 = ON DUPLICATE KEY UPDATE ...  or empty if not used.
+     * Bulk insert/update statement template
      */
-    public String[] genInsertStatement() {
-        String [] stmt = { " INSERT IGNORE INTO l3vpn_rib (hash_id,peer_hash_id,path_attr_hash_id,isIPv4," +
-                           "origin_as,prefix,prefix_len,prefix_bin,prefix_bcast_bin,prefix_bits,timestamp," +
-                           "isWithdrawn,path_id,labels,isPrePolicy,isAdjRibIn,rd) VALUES ",
-
-                           " ON DUPLICATE KEY UPDATE timestamp=values(timestamp)," +
-                               "prefix_bits=values(prefix_bits)," +
-                               "path_attr_hash_id=if(values(isWithdrawn) = 1, path_attr_hash_id, values(path_attr_hash_id))," +
-                               "origin_as=if(values(isWithdrawn) = 1, origin_as, values(origin_as)),isWithdrawn=values(isWithdrawn)," +
-                               "path_id=values(path_id), labels=values(labels)," +
-                               "isPrePolicy=values(isPrePolicy), isAdjRibIn=values(isAdjRibIn),rd=values(rd) "
-                        };
-        return stmt;
+    public static final StatementTemplate TEMPLATE = StatementTemplate.intern(
+            "INSERT IGNORE INTO", "l3vpn_rib", "hash_id,peer_hash_id,path_attr_hash_id,isIPv4," +
+                    "origin_as,prefix,prefix_len,prefix_bin,prefix_bcast_bin,prefix_bits,timestamp," +
+                    "isWithdrawn,path_id,labels,isPrePolicy,isAdjRibIn,rd",
+            new StatementTemplate.ColumnType[] { STRING, STRING, STRING, NUMBER,
+                    NUMBER, STRING, NUMBER, HEX_BINARY, HEX_BINARY, STRING, STRING,
+                    NUMBER, NUMBER, STRING, NUMBER, NUMBER, STRING },
+
+            " ON DUPLICATE KEY UPDATE timestamp=values(timestamp)," +
+                    "prefix_bits=values(prefix_bits)," +
+                    "path_attr_hash_id=if(values(isWithdrawn) = 1, path_attr_hash_id, values(path_attr_hash_id))," +
+                    "origin_as=if(values(isWithdrawn) = 1, origin_as, values(origin_as)),isWithdrawn=values(isWithdrawn)," +
+                    "path_id=values(path_id), labels=values(labels)," +
+                    "isPrePolicy=values(isPrePolicy), isAdjRibIn=values(isAdjRibIn),rd=values(rd) ",
+            "hash_id,peer_hash_id,isPrePolicy,isAdjRibIn");
+
+    public StatementTemplate getTemplate() {
+        return TEMPLATE;
     }
 
     /**
-     * Generate bulk values statement for SQL bulk insert.
+     * Generate the rows for the bulk insert/update
      *
-     * @return String in the format of (col1, col2, ...)[,...]
+     * @return List of rows in template column order
      */
-    public String genValuesStatement() {
-        StringBuilder sb = new StringBuilder();
+    public List<Object[]> genRows() {
+        List<Object[]> rows = new ArrayList<>(rowMap.size());
 
         for (int i=0; i < rowMap.size(); i++) {
-            if (i > 0)
-                sb.append(',');
-
-            sb.append('(');
-            sb.append("'" + lookupValue(MsgBusFields.HASH, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.PEER_HASH, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.BASE_ATTR_HASH, i) + "',");
-            sb.append(lookupValue(MsgBusFields.IS_IPV4, i) + ",");
-            sb.append(lookupValue(MsgBusFields.ORIGIN_AS, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.PREFIX, i) + "',");
-            sb.append(lookupValue(MsgBusFields.PREFIX_LEN, i) + ",");
-
-            sb.append("X'" + IpAddr.getIpHex((String) lookupValue(MsgBusFields.PREFIX, i)) + "',");
-            sb.append("X'" + IpAddr.getIpBroadcastHex((String) lookupValue(MsgBusFields.PREFIX, i), (Integer) lookupValue(MsgBusFields.PREFIX_LEN, i)) + "',");
+            String prefix = (String) lookupValue(MsgBusFields.PREFIX, i);
+            Integer prefix_len = (Integer) lookupValue(MsgBusFields.PREFIX_LEN, i);
+            String prefix_bits;
 
             try {
-                sb.append("'" + IpAddr.getIpBits((String) lookupValue(MsgBusFields.PREFIX, i)).substring(0,(Integer)lookupValue(MsgBusFields.PREFIX_LEN, i)) + "',");
+                prefix_bits = IpAddr.getIpBits(prefix).substring(0, prefix_len);
             } catch (StringIndexOutOfBoundsException e) {
 
                 //TODO: Fix getIpBits to support mapped IPv4 addresses in IPv6 (::ffff:ipv4)
                 System.out.println("IP prefix failed to convert to bits: " +
-                        (String) lookupValue(MsgBusFields.PREFIX, i) + " len: " + (Integer) lookupValue(MsgBusFields.PREFIX_LEN, i));
-                sb.append("'',");
+                        prefix + " len: " + prefix_len);
+                prefix_bits = "";
             }
 
-            sb.append("'" + lookupValue(MsgBusFields.TIMESTAMP, i) + "',");
-            sb.append((((String)lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("del") ? 1 : 0) + ",");
-            sb.append(lookupValue(MsgBusFields.PATH_ID, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.LABELS, i) + "',");
-            sb.append(lookupValue(MsgBusFields.ISPREPOLICY, i) + ",");
-            sb.append(lookupValue(MsgBusFields.IS_ADJ_RIB_IN, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.VPN_RD, i) + "'");
-
-            sb.append(')');
+            rows.add(new Object[] {
+                    lookupValue(MsgBusFields.HASH, i),
+                    lookupValue(MsgBusFields.PEER_HASH, i),
+                    lookupValue(MsgBusFields.BASE_ATTR_HASH, i),
+                    lookupValue(MsgBusFields.IS_IPV4, i),
+                    lookupValue(MsgBusFields.ORIGIN_AS, i),
+                    prefix,
+                    prefix_len,
+                    IpAddr.getIpHex(prefix),
+                    IpAddr.getIpBroadcastHex(prefix, prefix_len),
+                    prefix_bits,
+                    lookupValue(MsgBusFields.TIMESTAMP, i),
+                    ((String)lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("del") ? 1 : 0,
+                    lookupValue(MsgBusFields.PATH_ID, i),
+                    lookupValue(MsgBusFields.LABELS, i),
+                    lookupValue(MsgBusFields.ISPREPOLICY, i),
+                    lookupValue(MsgBusFields.IS_ADJ_RIB_IN, i),
+                    lookupValue(MsgBusFields.VPN_RD, i)
+            });
         }
 
-        return sb.toString();
+        return rows;
     }
 
 }
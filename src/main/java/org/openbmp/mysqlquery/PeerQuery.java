@@ -1,10 +1,14 @@
 package org.openbmp.mysqlquery;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import org.openbmp.api.parsed.message.MsgBusFields;
 
+import static org.openbmp.mysqlquery.StatementTemplate.ColumnType.*;
+
+
 public class PeerQuery extends Query{
 	
 	public PeerQuery(List<Map<String, Object>> rowMap){
@@ -14,70 +18,73 @@ public class PeerQuery extends Query{
 	
 	
     /**
-     * Generate MySQL insert/update statement, sans the values
-     *
-     * @return Two strings are returned
-     *      0 = Insert statement string up to VALUES keyword
-     *      1 = ON DUPLICATE KEY UPDATE ...  or empty if not used.
+     * Tables withdrawn by {@link #genRibPeerUpdate()}
      */
-    public String[] genInsertStatement() {
-        String [] stmt = { " REPLACE INTO bgp_peers (hash_id,router_hash_id,peer_rd,isIPv4,peer_addr,name,peer_bgp_id," +
-                           "peer_as,state,isL3VPNpeer,timestamp,isPrePolicy,local_ip,local_bgp_id,local_port," +
-                           "local_hold_time,local_asn,remote_port,remote_hold_time,sent_capabilities," +
-                           "recv_capabilities,bmp_reason,bgp_err_code,bgp_err_subcode,error_text," +
-                           "isLocRib,isLocRibFiltered,table_name) VALUES ",
-
-                           "" };
-        return stmt;
+    public static final String[] RIB_PEER_UPDATE_TABLES = {"rib", "ls_nodes", "ls_links", "ls_prefixes"};
+
+    /**
+     * Bulk insert/update statement template
+     */
+    public static final StatementTemplate TEMPLATE = StatementTemplate.intern(
+            "REPLACE INTO", "bgp_peers", "hash_id,router_hash_id,peer_rd,isIPv4,peer_addr,name,peer_bgp_id," +
+                    "peer_as,state,isL3VPNpeer,timestamp,isPrePolicy,local_ip,local_bgp_id,local_port," +
+                    "local_hold_time,local_asn,remote_port,remote_hold_time,sent_capabilities," +
+                    "recv_capabilities,bmp_reason,bgp_err_code,bgp_err_subcode,error_text," +
+                    "isLocRib,isLocRibFiltered,table_name",
+            new StatementTemplate.ColumnType[] { STRING, STRING, STRING, NUMBER, STRING, STRING, STRING,
+                    NUMBER, NUMBER, NUMBER, STRING, NUMBER, STRING, STRING, NUMBER,
+                    NUMBER, NUMBER, NUMBER, NUMBER, STRING,
+                    STRING, NUMBER, NUMBER, NUMBER, STRING,
+                    NUMBER, NUMBER, STRING },
+            "",
+            "hash_id,router_hash_id");
+
+    public StatementTemplate getTemplate() {
+        return TEMPLATE;
     }
 
     /**
-     * Generate bulk values statement for SQL bulk insert.
+     * Generate the rows for the bulk insert/update
      *
-     * @return String in the format of (col1, col2, ...)[,...]
+     * @return List of rows in template column order
      */
-    public String genValuesStatement() {
-        StringBuilder sb = new StringBuilder();
+    public List<Object[]> genRows() {
+        List<Object[]> rows = new ArrayList<>(rowMap.size());
 
         for (int i=0; i < rowMap.size(); i++) {
-            if (i > 0)
-                sb.append(',');
-
-            sb.append('(');
-            sb.append("'" + lookupValue(MsgBusFields.HASH, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.ROUTER_HASH, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.PEER_RD, i) + "',");
-            sb.append(lookupValue(MsgBusFields.IS_IPV4, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.REMOTE_IP, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.NAME, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.REMOTE_BGP_ID, i) + "',");
-            sb.append(lookupValue(MsgBusFields.REMOTE_ASN, i) + ",");
-
-            sb.append((((String)lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("up") ? 1 : 0) + ",");
-
-            sb.append(lookupValue(MsgBusFields.IS_L3VPN, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.TIMESTAMP, i) + "',");
-            sb.append(lookupValue(MsgBusFields.ISPREPOLICY, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.LOCAL_IP, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.LOCAL_BGP_ID, i) + "',");
-            sb.append(lookupValue(MsgBusFields.LOCAL_PORT, i) + ",");
-            sb.append(lookupValue(MsgBusFields.ADV_HOLDDOWN, i) + ",");
-            sb.append(lookupValue(MsgBusFields.LOCAL_ASN, i) + ",");
-            sb.append(lookupValue(MsgBusFields.REMOTE_PORT, i) + ",");
-            sb.append(lookupValue(MsgBusFields.REMOTE_HOLDDOWN, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.ADV_CAP, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.RECV_CAP, i) + "',");
-            sb.append(lookupValue(MsgBusFields.BMP_REASON, i) + ",");
-            sb.append(lookupValue(MsgBusFields.BGP_ERROR_CODE, i) + ",");
-            sb.append(lookupValue(MsgBusFields.BGP_ERROR_SUB_CODE, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.ERROR_TEXT, i) + "',");
-            sb.append(lookupValue(MsgBusFields.IS_LOCRIB, i) + ",");
-            sb.append(lookupValue(MsgBusFields.IS_LOCRIB_FILTERED, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.TABLE_NAME, i) + "'");
-            sb.append(')');
+            rows.add(new Object[] {
+                    lookupValue(MsgBusFields.HASH, i),
+                    lookupValue(MsgBusFields.ROUTER_HASH, i),
+                    lookupValue(MsgBusFields.PEER_RD, i),
+                    lookupValue(MsgBusFields.IS_IPV4, i),
+                    lookupValue(MsgBusFields.REMOTE_IP, i),
+                    lookupValue(MsgBusFields.NAME, i),
+                    lookupValue(MsgBusFields.REMOTE_BGP_ID, i),
+                    lookupValue(MsgBusFields.REMOTE_ASN, i),
+                    ((String)lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("up") ? 1 : 0,
+                    lookupValue(MsgBusFields.IS_L3VPN, i),
+                    lookupValue(MsgBusFields.TIMESTAMP, i),
+                    lookupValue(MsgBusFields.ISPREPOLICY, i),
+                    lookupValue(MsgBusFields.LOCAL_IP, i),
+                    lookupValue(MsgBusFields.LOCAL_BGP_ID, i),
+                    lookupValue(MsgBusFields.LOCAL_PORT, i),
+                    lookupValue(MsgBusFields.ADV_HOLDDOWN, i),
+                    lookupValue(MsgBusFields.LOCAL_ASN, i),
+                    lookupValue(MsgBusFields.REMOTE_PORT, i),
+                    lookupValue(MsgBusFields.REMOTE_HOLDDOWN, i),
+                    lookupValue(MsgBusFields.ADV_CAP, i),
+                    lookupValue(MsgBusFields.RECV_CAP, i),
+                    lookupValue(MsgBusFields.BMP_REASON, i),
+                    lookupValue(MsgBusFields.BGP_ERROR_CODE, i),
+                    lookupValue(MsgBusFields.BGP_ERROR_SUB_CODE, i),
+                    lookupValue(MsgBusFields.ERROR_TEXT, i),
+                    lookupValue(MsgBusFields.IS_LOCRIB, i),
+                    lookupValue(MsgBusFields.IS_LOCRIB_FILTERED, i),
+                    lookupValue(MsgBusFields.TABLE_NAME, i)
+            });
         }
 
-        return sb.toString();
+        return rows;
     }
 
 
@@ -91,41 +98,90 @@ public class PeerQuery extends Query{
      * @return Multi statement update is returned, such as update ...; update ...;
      */
     public String genRibPeerUpdate() {
+        return genRibPeerUpdate(RIB_PEER_UPDATE_TABLES);
+    }
+
+    /**
+     * Generate MySQL update statement to withdraw all entries of the given tables
+     *
+     * \details Same as {@link #genRibPeerUpdate()} but only for the given tables, so that the
+     *      update can be written in order with the other updates of the tables.
+     *
+     * @param tables    Tables to withdraw the peer entries of, such as rib or ls_nodes
+     *
+     * @return Multi statement update is returned, such as update ...; update ...;
+     */
+    public String genRibPeerUpdate(String... tables) {
 
         StringBuilder sb = new StringBuilder();
 
         sb.append("SET @TRIGGER_DISABLED=TRUE; ");
 
         for (int i=0; i < rowMap.size(); i++) {
-
             if (i > 0)
-                sb.append(';');
+                sb.append("; ");
 
-            sb.append("UPDATE rib SET isWithdrawn = True WHERE peer_hash_id = '");
-            sb.append(lookupValue(MsgBusFields.HASH, i));
-            sb.append("' AND timestamp < '");
-            sb.append(rowMap.get(i).get(MsgBusFields.TIMESTAMP.getName()) + "'");
+            appendPeerUpdate(sb, i, tables);
+        }
 
-            sb.append("; UPDATE ls_nodes SET isWithdrawn = True WHERE peer_hash_id = '");
-            sb.append(lookupValue(MsgBusFields.HASH, i));
-            sb.append("' AND timestamp < '");
-            sb.append(rowMap.get(i).get(MsgBusFields.TIMESTAMP.getName()) + "'");
+        sb.append("; SET @TRIGGER_DISABLED=FALSE; ");
 
-            sb.append("; UPDATE ls_links SET isWithdrawn = True WHERE peer_hash_id = '");
-            sb.append(lookupValue(MsgBusFields.HASH, i));
-            sb.append("' AND timestamp < '");
-            sb.append(rowMap.get(i).get(MsgBusFields.TIMESTAMP.getName()) + "'");
+        return sb.toString();
+    }
 
-            sb.append("; UPDATE ls_prefixes SET isWithdrawn = True WHERE peer_hash_id = '");
-            sb.append(lookupValue(MsgBusFields.HASH, i));
-            sb.append("' AND timestamp < '");
-            sb.append(rowMap.get(i).get(MsgBusFields.TIMESTAMP.getName()) + "'");
+    /**
+     * Generate MySQL update statement to withdraw all entries of the given tables for a single peer
+     *
+     * @param row       Row of the peer in the message
+     * @param tables    Tables to withdraw the peer entries of, such as rib or ls_nodes
+     *
+     * @return Multi statement update is returned, such as update ...; update ...;
+     */
+    public String genRibPeerUpdate(int row, String... tables) {
 
-        }
+        StringBuilder sb = new StringBuilder();
 
+        sb.append("SET @TRIGGER_DISABLED=TRUE; ");
+        appendPeerUpdate(sb, row, tables);
         sb.append("; SET @TRIGGER_DISABLED=FALSE; ");
 
         return sb.toString();
     }
 
+    /**
+     * Get the peer hash id
+     *
+     * @param row       Row of the peer in the message
+     *
+     * @return Peer hash id
+     */
+    public String getPeerHashId(int row) {
+        return lookupValue(MsgBusFields.HASH, row).toString();
+    }
+
+    /**
+     * Indicates if the peer is up
+     *
+     * @param row       Row of the peer in the message
+     *
+     * @return True if the action of the peer is up, false if down
+     */
+    public boolean isPeerUp(int row) {
+        return ((String)lookupValue(MsgBusFields.ACTION, row)).equalsIgnoreCase("up");
+    }
+
+    private void appendPeerUpdate(StringBuilder sb, int row, String... tables) {
+        for (int t=0; t < tables.length; t++) {
+            if (t > 0)
+                sb.append("; ");
+
+            sb.append("UPDATE ");
+            sb.append(tables[t]);
+            sb.append(" SET isWithdrawn = True WHERE peer_hash_id = '");
+            sb.append(lookupValue(MsgBusFields.HASH, row));
+            sb.append("' AND timestamp < '");
+            sb.append(rowMap.get(row).get(MsgBusFields.TIMESTAMP.getName()) + "'");
+        }
+    }
+
 }
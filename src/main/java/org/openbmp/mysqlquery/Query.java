@@ -35,6 +35,20 @@ public abstract class Query {
     }
 	
 	
+    /**
+     * Get the statement template for the bulk insert/update
+     *
+     * @return Interned statement template, see {@link StatementTemplate}
+     */
+    public abstract StatementTemplate getTemplate();
+
+    /**
+     * Generate the rows for the bulk insert/update
+     *
+     * @return List of rows, each row has the values in template column order
+     */
+    public abstract List<Object[]> genRows();
+
     /**
      * Generate MySQL insert/update statement, sans the values
      *
@@ -42,14 +56,19 @@ public abstract class Query {
      *      0 = Insert statement string up to VALUES keyword
      *      1 = ON DUPLICATE ...  or empty if not used.
      */
-    public abstract String[] genInsertStatement();
+    public String[] genInsertStatement() {
+        String [] stmt = { getTemplate().getPrefix(), getTemplate().getSuffix() };
+        return stmt;
+    }
 
     /**
      * Generate bulk values statement for SQL bulk insert.
      *
      * @return String in the format of (col1, col2, ...)[,...]
      */
-    public abstract String genValuesStatement();
+    public String genValuesStatement() {
+        return getTemplate().genValues(genRows());
+    }
 	
 
 }
@@ -8,6 +8,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.openbmp.api.parsed.message.MsgBusFields;
 import org.openbmp.api.parsed.message.Message;
 
+import static org.openbmp.mysqlquery.StatementTemplate.ColumnType.*;
+
 public class RouterQuery extends Query{
 	
 	
@@ -20,57 +22,52 @@ public class RouterQuery extends Query{
 	}
 	
     /**
-     * Generate MySQL insert/update statement, sans the values
-     *
-     * @return Two strings are returned
-     *      0 = Insert statement string up to VALUES keyword
-     *      1 = ON DUPLICATE KEY UPDATE ...  or empty if not used.
+     * Bulk insert/update statement template
      */
-    public String[] genInsertStatement() {
-        String [] stmt = { " INSERT INTO routers (hash_id,name,ip_address,timestamp,isConnected,term_reason_code," +
-                                  "term_reason_text,term_data,init_data,description,collector_hash_id,bgp_id) VALUES ",
-
-                           " ON DUPLICATE KEY UPDATE timestamp=values(timestamp),isConnected=values(isConnected)," +
-                                   "name=if(isConnected = 1, values(name), name)," +
-                                   "bgp_id=values(bgp_id)," +
-                                   "description=values(description),init_data=values(init_data)," +
-                                   "term_reason_code=values(term_reason_code),term_reason_text=values(term_reason_text)," +
-                                   "collector_hash_id=values(collector_hash_id)" };
-        return stmt;
+    public static final StatementTemplate TEMPLATE = StatementTemplate.intern(
+            "INSERT INTO", "routers", "hash_id,name,ip_address,timestamp,isConnected,term_reason_code," +
+                    "term_reason_text,term_data,init_data,description,collector_hash_id,bgp_id",
+            new StatementTemplate.ColumnType[] { STRING, STRING, STRING, STRING, NUMBER, NUMBER,
+                    STRING, STRING, STRING, STRING, STRING, STRING },
+
+            " ON DUPLICATE KEY UPDATE timestamp=values(timestamp),isConnected=values(isConnected)," +
+                    "name=if(isConnected = 1, values(name), name)," +
+                    "bgp_id=values(bgp_id)," +
+                    "description=values(description),init_data=values(init_data)," +
+                    "term_reason_code=values(term_reason_code),term_reason_text=values(term_reason_text)," +
+                    "collector_hash_id=values(collector_hash_id)",
+            "hash_id");
+
+    public StatementTemplate getTemplate() {
+        return TEMPLATE;
     }
 
     /**
-     * Generate bulk values statement for SQL bulk insert.
+     * Generate the rows for the bulk insert/update
      *
-     * @return String in the format of (col1, col2, ...)[,...]
+     * @return List of rows in template column order
      */
-    public String genValuesStatement() {
-    	
-    	//DefaultColumnValues.getDefaultValue("hash");
-        StringBuilder sb = new StringBuilder();
+    public List<Object[]> genRows() {
+        List<Object[]> rows = new ArrayList<>(rowMap.size());
 
         for (int i=0; i < rowMap.size(); i++) {
-            if (i > 0)
-                sb.append(',');
-            sb.append('(');
-            sb.append("'" + lookupValue(MsgBusFields.HASH, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.NAME, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.IP_ADDRESS, i)  + "',");
-            sb.append("'" + lookupValue(MsgBusFields.TIMESTAMP, i)  + "',");
-
-            sb.append((((String)rowMap.get(i).get("action")).equalsIgnoreCase("term") ? 0 : 1) + ",");
-
-            sb.append(  lookupValue(MsgBusFields.TERM_CODE, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.TERM_REASON, i)  + "',");
-            sb.append("'" + lookupValue(MsgBusFields.TERM_DATA, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.INIT_DATA, i)+ "',");
-            sb.append("'" + lookupValue(MsgBusFields.DESCRIPTION, i) + "',");
-            sb.append("'" + message.getCollector_hash_id() + "',");
-            sb.append("'" + lookupValue(MsgBusFields.BGP_ID, i)  + "'");
-            sb.append(')');
+            rows.add(new Object[] {
+                    lookupValue(MsgBusFields.HASH, i),
+                    lookupValue(MsgBusFields.NAME, i),
+                    lookupValue(MsgBusFields.IP_ADDRESS, i),
+                    lookupValue(MsgBusFields.TIMESTAMP, i),
+                    ((String)rowMap.get(i).get("action")).equalsIgnoreCase("term") ? 0 : 1,
+                    lookupValue(MsgBusFields.TERM_CODE, i),
+                    lookupValue(MsgBusFields.TERM_REASON, i),
+                    lookupValue(MsgBusFields.TERM_DATA, i),
+                    lookupValue(MsgBusFields.INIT_DATA, i),
+                    lookupValue(MsgBusFields.DESCRIPTION, i),
+                    message.getCollector_hash_id(),
+                    lookupValue(MsgBusFields.BGP_ID, i)
+            });
         }
 
-        return sb.toString();
+        return rows;
     }
 
     
@@ -94,50 +91,51 @@ public class RouterQuery extends Query{
         resultMap.addAll(rowMap);
 
         // Add the collector entry if router is seen before collector message
-        if (! routerConMap.containsKey(message.getCollector_hash_id())) {
-            routerConMap.put(message.getCollector_hash_id(), new ConcurrentHashMap<String, Integer>());
-        }
+        routerConMap.putIfAbsent(message.getCollector_hash_id(), new ConcurrentHashMap<String, Integer>());
 
         Map<String, Integer> routerMap = routerConMap.get(message.getCollector_hash_id());
 
-        for (int i = 0; i < rowMap.size(); i++) {
+        // Other consumer threads update the same router map; connection counts must be read/updated as one unit
+        synchronized (routerMap) {
+            for (int i = 0; i < rowMap.size(); i++) {
 
-            if (((String) lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("first") || ((String) lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("init")) {
-                if (sb.length() > 0)
-                    sb.append(";");
+                if (((String) lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("first") || ((String) lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("init")) {
+                    if (sb.length() > 0)
+                        sb.append(";");
 
-                // Upon initial router message, we set the state of all peers to down since we will get peer UP's
-                sb.append("UPDATE bgp_peers SET state = 0 WHERE router_hash_id = '");
-                sb.append(lookupValue(MsgBusFields.HASH, i) + "'");
-                sb.append(" AND timestamp < '" + rowMap.get(i).get(MsgBusFields.TIMESTAMP.getName()) + "'");
+                    // Upon initial router message, we set the state of all peers to down since we will get peer UP's
+                    sb.append("UPDATE bgp_peers SET state = 0 WHERE router_hash_id = '");
+                    sb.append(lookupValue(MsgBusFields.HASH, i) + "'");
+                    sb.append(" AND timestamp < '" + rowMap.get(i).get(MsgBusFields.TIMESTAMP.getName()) + "'");
 
-                // Collector changed/heartbeat messages maintain the routerMap, but timing might prevent an update
-                //    so add the router if it doesn't exist already
-                if (! routerMap.containsKey((String)lookupValue(MsgBusFields.IP_ADDRESS, i)) ) {
-                    routerMap.put((String)lookupValue(MsgBusFields.IP_ADDRESS, i), 1);
+                    // Collector changed/heartbeat messages maintain the routerMap, but timing might prevent an update
+                    //    so add the router if it doesn't exist already
+                    if (! routerMap.containsKey((String)lookupValue(MsgBusFields.IP_ADDRESS, i)) ) {
+                        routerMap.put((String)lookupValue(MsgBusFields.IP_ADDRESS, i), 1);
 
-                } else {
-                    // Increment the entry for the new connection
-                    routerMap.put((String)lookupValue(MsgBusFields.IP_ADDRESS, i),
-                            routerMap.get((String)lookupValue(MsgBusFields.IP_ADDRESS, i)) + 1 );
-                }
+                    } else {
+                        // Increment the entry for the new connection
+                        routerMap.put((String)lookupValue(MsgBusFields.IP_ADDRESS, i),
+                                routerMap.get((String)lookupValue(MsgBusFields.IP_ADDRESS, i)) + 1 );
+                    }
 
-            }
+                }
 
-            else if (((String) lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("term")) {
-                // Update the router map to reflect the termination
-                if (routerMap.containsKey((String)lookupValue(MsgBusFields.IP_ADDRESS, i)) ) {
+                else if (((String) lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("term")) {
+                    // Update the router map to reflect the termination
+                    if (routerMap.containsKey((String)lookupValue(MsgBusFields.IP_ADDRESS, i)) ) {
 
-                    // decrement connection count or remove the router entry on term
-                    if (routerMap.get((String)lookupValue(MsgBusFields.IP_ADDRESS, i)) > 1) {
-                        routerMap.put((String)lookupValue(MsgBusFields.IP_ADDRESS, i),
-                                routerMap.get((String)lookupValue(MsgBusFields.IP_ADDRESS, i)) - 1 );
+                        // decrement connection count or remove the router entry on term
+                        if (routerMap.get((String)lookupValue(MsgBusFields.IP_ADDRESS, i)) > 1) {
+                            routerMap.put((String)lookupValue(MsgBusFields.IP_ADDRESS, i),
+                                    routerMap.get((String)lookupValue(MsgBusFields.IP_ADDRESS, i)) - 1 );
 
-                        // Suppress the term message since another connection exists
-                        resultMap.remove(rowMap.get(i));
+                            // Suppress the term message since another connection exists
+                            resultMap.remove(rowMap.get(i));
 
-                    } else {
-                        routerMap.remove((String)lookupValue(MsgBusFields.IP_ADDRESS, i));
+                        } else {
+                            routerMap.remove((String)lookupValue(MsgBusFields.IP_ADDRESS, i));
+                        }
                     }
                 }
             }
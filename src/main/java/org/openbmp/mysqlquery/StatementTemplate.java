@@ -0,0 +1,545 @@
+package org.openbmp.mysqlquery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Immutable bulk statement template, such as INSERT INTO table (cols) VALUES ... ON DUPLICATE KEY UPDATE ...
+ *
+ * \details Templates are interned; there is exactly one instance per statement definition and each
+ *      has a stable id (0..N), so writers can group rows by template identity/id without string
+ *      hashing. Each Query subclass defines its templates as static constants.
+ *
+ *      Rows are Object arrays in column order.  The column type defines how the value is
+ *      rendered in SQL.
+ *
+ *      Templates can define the table primary key columns, which are used to order and
+ *      deduplicate rows.  Rows with the same key can be coalesced into one row when the
+ *      ON DUPLICATE KEY UPDATE only uses the column update forms below, see {@link #coalesce}.
+ */
+public final class StatementTemplate {
+
+    /**
+     * Column value types
+     */
+    public enum ColumnType {
+        STRING,             // Quoted string, e.g. 'value'
+        NUMBER,             // Unquoted number or boolean
+        HEX_BINARY,         // Hex string to binary, e.g. X'0A01'
+        HEX_NUMBER,         // Hex string to number, e.g. 0x0A01
+        UNIX_TIME           // Epoch seconds, e.g. FROM_UNIXTIME(1500000000)
+    }
+
+    /**
+     * Rows to keep when a statement has more than one row with the same primary key, such that the
+     *      result is the same as running all of the rows
+     */
+    public enum DuplicatePolicy {
+        KEEP_FIRST,         // INSERT without update, later rows are ignored
+        KEEP_LAST,          // REPLACE, later rows replace earlier ones
+        KEEP_CHANGED        // ON DUPLICATE KEY UPDATE, only identical consecutive rows are dropped
+    }
+
+    /*
+     * Column update rules of ON DUPLICATE KEY UPDATE, or the index of the withdrawn flag column for
+     *      col=if(values(flag), col, values(col)), which keeps the column while the row is withdrawn
+     */
+    private static final int UPDATE_NONE = -1;          // Not updated, inserted value is kept
+    private static final int UPDATE_VALUE = -2;         // col=values(col)
+
+    private static final String UPDATE_PREFIX = "ON DUPLICATE KEY UPDATE";
+    private static final Pattern UNLESS_FLAG = Pattern.compile("if\\(values\\((\\w+)\\)(?:=1)?,(\\w+),values\\((\\w+)\\)\\)");
+
+    private static final Map<String, StatementTemplate> interned = new HashMap<>();
+    private static final List<StatementTemplate> byId = new ArrayList<>();
+
+    private final int id;
+    private final String verb;
+    private final String table;
+    private final String[] columns;
+    private final ColumnType[] types;
+    private final int[] keys;                       // Primary key column indexes, empty if not defined
+    private final String prefix;
+    private final String suffix;
+    private final int[] updateRules;                // Update rule by column, null if rows can't be coalesced
+    private final int flagColumn;                   // Withdrawn flag column of the update rules, -1 if none
+
+    private StatementTemplate(int id, String verb, String table, String[] columns, ColumnType[] types,
+                              String suffix, int[] keys) {
+        this.id = id;
+        this.verb = verb;
+        this.table = table;
+        this.columns = columns;
+        this.types = types;
+        this.suffix = suffix;
+        this.keys = keys;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(' ').append(verb).append(' ').append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(columns[i]);
+        }
+        sb.append(") VALUES ");
+
+        this.prefix = sb.toString();
+
+        this.updateRules = keys.length > 0 ? parseUpdateRules() : null;
+
+        int flag = -1;
+        if (updateRules != null) {
+            for (int rule : updateRules)
+                flag = Math.max(flag, rule);
+        }
+        this.flagColumn = flag;
+    }
+
+    /*
+     * Parse the ON DUPLICATE KEY UPDATE assignments into column update rules
+     *
+     * @return Update rule by column, null if the suffix has other expressions or a single withdrawn
+     *      flag isn't updated by value
+     */
+    private int[] parseUpdateRules() {
+        String update = suffix.trim();
+
+        if (!verb.trim().toUpperCase().startsWith("INSERT") || !update.toUpperCase().startsWith(UPDATE_PREFIX))
+            return null;
+
+        update = update.substring(UPDATE_PREFIX.length()).replaceAll("\\s+", "").toLowerCase();
+
+        int[] rules = new int[columns.length];
+        Arrays.fill(rules, UPDATE_NONE);
+
+        int flag = -1;
+        int depth = 0;
+        int start = 0;
+
+        for (int i = 0; i <= update.length(); i++) {
+            char c = i < update.length() ? update.charAt(i) : ',';
+
+            if (c == '(')
+                ++depth;
+            else if (c == ')')
+                --depth;
+
+            if (c != ',' || depth != 0)
+                continue;
+
+            String assign = update.substring(start, i);
+            start = i + 1;
+
+            int eq = assign.indexOf('=');
+            int col = eq > 0 ? getColumnIndex(assign.substring(0, eq)) : -1;
+            if (col < 0)
+                return null;
+
+            String name = assign.substring(0, eq);
+            String expr = assign.substring(eq + 1);
+            Matcher m = UNLESS_FLAG.matcher(expr);
+
+            if (expr.equals("values(" + name + ")")) {
+                rules[col] = UPDATE_VALUE;
+
+            } else if (m.matches() && m.group(2).equals(name) && m.group(3).equals(name)) {
+                int f = getColumnIndex(m.group(1));
+
+                if (f < 0 || (flag >= 0 && f != flag))
+                    return null;
+
+                flag = f;
+                rules[col] = f;
+
+            } else {
+                return null;
+            }
+        }
+
+        if (flag >= 0 && rules[flag] != UPDATE_VALUE)
+            return null;
+
+        return rules;
+    }
+
+    /**
+     * Get the template for a statement definition, creating it if needed
+     *
+     * @param verb          Statement verb, such as INSERT IGNORE INTO or REPLACE INTO
+     * @param table         Table name
+     * @param columns       Comma delimited column names
+     * @param types         Column types, in the same order as columns
+     * @param suffix        ON DUPLICATE KEY UPDATE ...  or empty if not used.
+     *
+     * @return Interned template
+     */
+    public static StatementTemplate intern(String verb, String table, String columns,
+                                           ColumnType[] types, String suffix) {
+        return intern(verb, table, columns, types, suffix, "");
+    }
+
+    /**
+     * Get the template for a statement definition, creating it if needed
+     *
+     * @param verb          Statement verb, such as INSERT IGNORE INTO or REPLACE INTO
+     * @param table         Table name
+     * @param columns       Comma delimited column names
+     * @param types         Column types, in the same order as columns
+     * @param suffix        ON DUPLICATE KEY UPDATE ...  or empty if not used.
+     * @param keyColumns    Comma delimited primary key column names, must be in columns
+     *
+     * @return Interned template
+     */
+    public static synchronized StatementTemplate intern(String verb, String table, String columns,
+                                                        ColumnType[] types, String suffix, String keyColumns) {
+        String[] cols = columns.split("[ ]*,[ ]*");
+
+        if (cols.length != types.length)
+            throw new IllegalArgumentException("Template for " + table + " has " + cols.length +
+                                               " columns but " + types.length + " types");
+
+        String key = verb + '|' + table + '|' + columns + '|' + suffix + '|' + keyColumns;
+
+        StatementTemplate template = interned.get(key);
+        if (template == null) {
+            String[] keyCols = keyColumns.trim().isEmpty() ? new String[0] : keyColumns.split("[ ]*,[ ]*");
+            int[] keys = new int[keyCols.length];
+
+            for (int i = 0; i < keyCols.length; i++) {
+                keys[i] = Arrays.asList(cols).indexOf(keyCols[i]);
+
+                if (keys[i] < 0)
+                    throw new IllegalArgumentException("Template for " + table + " key column " +
+                                                       keyCols[i] + " is not a column");
+            }
+
+            template = new StatementTemplate(byId.size(), verb, table, cols, types.clone(), suffix, keys);
+            interned.put(key, template);
+            byId.add(template);
+        }
+
+        return template;
+    }
+
+    /**
+     * @return Number of templates, template ids are less than this value
+     */
+    public static synchronized int count() {
+        return byId.size();
+    }
+
+    /**
+     * Append a single row as SQL values, e.g. ('a',1,X'0A')
+     *
+     * @param sb        Buffer to append to
+     * @param row       Row values in column order
+     */
+    public void appendRow(StringBuilder sb, Object[] row) {
+        sb.append('(');
+
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0)
+                sb.append(',');
+
+            switch (types[i]) {
+                case STRING:
+                    sb.append('\'');
+                    appendEscaped(sb, String.valueOf(row[i]));
+                    sb.append('\'');
+                    break;
+
+                case NUMBER:
+                    sb.append(row[i]);
+                    break;
+
+                case HEX_BINARY:
+                    sb.append("X'").append(row[i]).append('\'');
+                    break;
+
+                case HEX_NUMBER:
+                    sb.append("0x").append(row[i]);
+                    break;
+
+                case UNIX_TIME:
+                    sb.append("FROM_UNIXTIME(").append(row[i]).append(')');
+                    break;
+            }
+        }
+
+        sb.append(')');
+    }
+
+    /**
+     * Append rows as SQL bulk values
+     *
+     * @param sb        Buffer to append to
+     * @param rows      Rows to append, comma delimited
+     */
+    public void appendValues(StringBuilder sb, List<Object[]> rows) {
+        for (int i = 0; i < rows.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+
+            appendRow(sb, rows.get(i));
+        }
+    }
+
+    /**
+     * Generate bulk values statement for SQL bulk insert.
+     *
+     * @return String in the format of (col1, col2, ...)[,...]
+     */
+    public String genValues(List<Object[]> rows) {
+        StringBuilder sb = new StringBuilder();
+        appendValues(sb, rows);
+        return sb.toString();
+    }
+
+    /**
+     * Append a single row as a tab delimited line for LOAD DATA, without the line terminator
+     *
+     * \details Values are raw (not converted), such as hex strings for HEX_BINARY.  The LOAD DATA
+     *      statement converts them using the column type.  Null is written as \N.
+     *
+     * @param sb        Buffer to append to
+     * @param row       Row values in column order
+     */
+    public void appendTsvRow(StringBuilder sb, Object[] row) {
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0)
+                sb.append('\t');
+
+            Object value = row[i];
+
+            if (types[i] == ColumnType.STRING) {
+                appendTsvEscaped(sb, String.valueOf(value));
+            }
+            else if (value == null) {
+                sb.append("\\N");
+            }
+            else if (value instanceof Boolean) {
+                sb.append((Boolean) value ? '1' : '0');
+            }
+            else {
+                sb.append(value);
+            }
+        }
+    }
+
+    /*
+     * Escape backslash, tab and line terminators in LOAD DATA values
+     */
+    private static void appendTsvEscaped(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\0': sb.append("\\0"); break;
+                default:   sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Compare the primary key of two rows
+     *
+     * \details Numbers are compared by value, other values by their string value.  Null is first.
+     *
+     * @return Negative, zero or positive if the key of a is less, equal or greater than the key of b
+     */
+    public int compareKey(Object[] a, Object[] b) {
+        for (int k : keys) {
+            int c = compareValue(a[k], b[k]);
+
+            if (c != 0)
+                return c;
+        }
+
+        return 0;
+    }
+
+    private static int compareValue(Object a, Object b) {
+        if (a == b)
+            return 0;
+        else if (a == null)
+            return -1;
+        else if (b == null)
+            return 1;
+
+        if (a instanceof Boolean)
+            a = (Boolean) a ? 1 : 0;
+        if (b instanceof Boolean)
+            b = (Boolean) b ? 1 : 0;
+
+        if (a instanceof Number && b instanceof Number)
+            return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+
+        return a.toString().compareTo(b.toString());
+    }
+
+    /**
+     * @return True if the primary key columns are defined
+     */
+    public boolean hasKey() {
+        return keys.length > 0;
+    }
+
+    /**
+     * @return Rows to keep if there are duplicate primary keys in a statement
+     */
+    public DuplicatePolicy getDuplicatePolicy() {
+        if (verb.trim().toUpperCase().startsWith("REPLACE"))
+            return DuplicatePolicy.KEEP_LAST;
+
+        else if (suffix.trim().isEmpty())
+            return DuplicatePolicy.KEEP_FIRST;
+
+        else
+            return DuplicatePolicy.KEEP_CHANGED;
+    }
+
+    /**
+     * @return True if rows with the same primary key can be coalesced by {@link #coalesce}
+     */
+    public boolean canCoalesce() {
+        return updateRules != null;
+    }
+
+    /**
+     * Coalesce rows with the same primary key into the fewest rows with the same result
+     *
+     * \details Columns updated by value take the last row value, columns that are only inserted keep
+     *      the first row value.  Columns kept while withdrawn take the value of the last row that isn't
+     *      withdrawn.  If the last row is withdrawn after such a row, a single row can't keep both,
+     *      so the rows up to the last row that isn't withdrawn are coalesced and followed by the last row.
+     *
+     *      The final row is the same as running all of the rows, but triggers see fewer updates.
+     *
+     * @param rows      Rows sorted by key
+     * @param from      Index of the first row with the key
+     * @param to        Index after the last row with the key
+     * @param out       List to add the one or two coalesced rows to
+     */
+    public void coalesce(List<Object[]> rows, int from, int to, List<Object[]> out) {
+        int last = to - 1;
+
+        if (from == last) {
+            out.add(rows.get(from));
+            return;
+        }
+
+        int announced = last;
+        if (flagColumn >= 0) {
+            while (announced >= from && isSet(rows.get(announced)[flagColumn]))
+                --announced;
+        }
+
+        if (announced < from || announced == last) {
+            out.add(merge(rows, from, last));
+        } else {
+            out.add(merge(rows, from, announced));
+            out.add(rows.get(last));
+        }
+    }
+
+    /*
+     * Merge the rows from first to last (inclusive) by the update rules
+     */
+    private Object[] merge(List<Object[]> rows, int first, int last) {
+        Object[] merged = rows.get(first);
+
+        if (first == last)
+            return merged;
+
+        merged = merged.clone();
+
+        for (int r = first + 1; r <= last; r++) {
+            Object[] row = rows.get(r);
+            boolean withdrawn = flagColumn >= 0 && isSet(row[flagColumn]);
+
+            for (int i = 0; i < updateRules.length; i++) {
+                if (updateRules[i] == UPDATE_VALUE || (updateRules[i] >= 0 && !withdrawn))
+                    merged[i] = row[i];
+            }
+        }
+
+        return merged;
+    }
+
+    private static boolean isSet(Object value) {
+        if (value instanceof Boolean)
+            return (Boolean) value;
+        else if (value instanceof Number)
+            return ((Number) value).longValue() != 0;
+        else
+            return value != null && (value.toString().equals("1") || value.toString().equalsIgnoreCase("true"));
+    }
+
+    /*
+     * Escape quote and backslash in string values
+     */
+    private static void appendEscaped(StringBuilder sb, String value) {
+        if (value.indexOf('\'') < 0 && value.indexOf('\\') < 0) {
+            sb.append(value);
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '\'' || c == '\\')
+                sb.append('\\');
+
+            sb.append(c);
+        }
+    }
+
+    public int getId() { return id; }
+
+    public String getVerb() { return verb; }
+
+    public String getTable() { return table; }
+
+    public String[] getColumns() { return columns.clone(); }
+
+    public int getColumnCount() { return columns.length; }
+
+    /**
+     * @return Index of the column, or -1 if the template doesn't have the column
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase(name))
+                return i;
+        }
+
+        return -1;
+    }
+
+    public ColumnType getColumnType(int index) { return types[index]; }
+
+    /**
+     * @return Insert statement string up to VALUES keyword
+     */
+    public String getPrefix() { return prefix; }
+
+    /**
+     * @return ON DUPLICATE ...  or empty if not used.
+     */
+    public String getSuffix() { return suffix; }
+
+    @Override
+    public String toString() {
+        return table + "#" + id;
+    }
+}
@@ -1,5 +1,6 @@
 package org.openbmp.mysqlquery;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -8,6 +9,9 @@ import java.util.Set;
 import org.openbmp.api.helpers.IpAddr;
 import org.openbmp.api.parsed.message.MsgBusFields;
 
+import static org.openbmp.mysqlquery.StatementTemplate.ColumnType.*;
+
+
 
 
 public class UnicastPrefixQuery extends Query{
@@ -19,71 +23,72 @@ public class UnicastPrefixQuery extends Query{
 	
 	
     /**
-     * Generate MySQL insert/update statement, sans the values
-     *
-     * @return Two strings are returned
-     *      0 = Insert statement string up to VALUES keyword
-     *      1 = ON DUPLICATE KEY UPDATE ...  or empty if not used.
+     * Bulk insert/update statement template
      */
-    public String[] genInsertStatement() {
-        String [] stmt = { " INSERT IGNORE INTO rib (hash_id,peer_hash_id,path_attr_hash_id,isIPv4," +
-                           "origin_as,prefix,prefix_len,prefix_bin,prefix_bcast_bin,prefix_bits,timestamp," +
-                           "isWithdrawn,path_id,labels,isPrePolicy,isAdjRibIn) VALUES ",
-
-                           " ON DUPLICATE KEY UPDATE timestamp=values(timestamp)," +
-                               "prefix_bits=values(prefix_bits)," +
-                               "path_attr_hash_id=if(values(isWithdrawn) = 1, path_attr_hash_id, values(path_attr_hash_id))," +
-                               "origin_as=if(values(isWithdrawn) = 1, origin_as, values(origin_as)),isWithdrawn=values(isWithdrawn)," +
-                               "path_id=values(path_id), labels=values(labels)," +
-                               "isPrePolicy=values(isPrePolicy), isAdjRibIn=values(isAdjRibIn) "
-                        };
-        return stmt;
+    public static final StatementTemplate TEMPLATE = StatementTemplate.intern(
+            "INSERT IGNORE INTO", "rib", "hash_id,peer_hash_id,path_attr_hash_id,isIPv4," +
+                    "origin_as,prefix,prefix_len,prefix_bin,prefix_bcast_bin,prefix_bits,timestamp," +
+                    "isWithdrawn,path_id,labels,isPrePolicy,isAdjRibIn",
+            new StatementTemplate.ColumnType[] { STRING, STRING, STRING, NUMBER,
+                    NUMBER, STRING, NUMBER, HEX_BINARY, HEX_BINARY, STRING, STRING,
+                    NUMBER, NUMBER, STRING, NUMBER, NUMBER },
+
+            " ON DUPLICATE KEY UPDATE timestamp=values(timestamp)," +
+                    "prefix_bits=values(prefix_bits)," +
+                    "path_attr_hash_id=if(values(isWithdrawn) = 1, path_attr_hash_id, values(path_attr_hash_id))," +
+                    "origin_as=if(values(isWithdrawn) = 1, origin_as, values(origin_as)),isWithdrawn=values(isWithdrawn)," +
+                    "path_id=values(path_id), labels=values(labels)," +
+                    "isPrePolicy=values(isPrePolicy), isAdjRibIn=values(isAdjRibIn) ",
+            "hash_id,peer_hash_id,isPrePolicy,isAdjRibIn");
+
+    public StatementTemplate getTemplate() {
+        return TEMPLATE;
     }
 
     /**
-     * Generate bulk values statement for SQL bulk insert.
+     * Generate the rows for the bulk insert/update
      *
-     * @return String in the format of (col1, col2, ...)[,...]
+     * @return List of rows in template column order
      */
-    public String genValuesStatement() {
-        StringBuilder sb = new StringBuilder();
+    public List<Object[]> genRows() {
+        List<Object[]> rows = new ArrayList<>(rowMap.size());
 
         for (int i=0; i < rowMap.size(); i++) {
-            if (i > 0)
-                sb.append(',');
+            String prefix = (String) lookupValue(MsgBusFields.PREFIX, i);
+            Integer prefix_len = (Integer) lookupValue(MsgBusFields.PREFIX_LEN, i);
+            String prefix_bits;
 
-            sb.append('(');
-            sb.append("'" + lookupValue(MsgBusFields.HASH, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.PEER_HASH, i) + "',");
-            sb.append("'" + lookupValue(MsgBusFields.BASE_ATTR_HASH, i) + "',");
-            sb.append(lookupValue(MsgBusFields.IS_IPV4, i) + ",");
-            sb.append(lookupValue(MsgBusFields.ORIGIN_AS, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.PREFIX, i) + "',");
-            sb.append(lookupValue(MsgBusFields.PREFIX_LEN, i) + ",");
-
-            sb.append("X'" + IpAddr.getIpHex((String) lookupValue(MsgBusFields.PREFIX, i)) + "',");
-            sb.append("X'" + IpAddr.getIpBroadcastHex((String) lookupValue(MsgBusFields.PREFIX, i), (Integer) lookupValue(MsgBusFields.PREFIX_LEN, i)) + "',");
             try {
-                sb.append("'" + IpAddr.getIpBits((String) lookupValue(MsgBusFields.PREFIX, i)).substring(0, (Integer) lookupValue(MsgBusFields.PREFIX_LEN, i)) + "',");
+                prefix_bits = IpAddr.getIpBits(prefix).substring(0, prefix_len);
             } catch (StringIndexOutOfBoundsException e) {
 
                 //TODO: Fix getIpBits to support mapped IPv4 addresses in IPv6 (::ffff:ipv4)
                 System.out.println("IP prefix failed to convert to bits: " +
-                        (String) lookupValue(MsgBusFields.PREFIX, i) + " len: " + (Integer) lookupValue(MsgBusFields.PREFIX_LEN, i));
-                sb.append("'',");
+                        prefix + " len: " + prefix_len);
+                prefix_bits = "";
             }
 
-            sb.append("'" + lookupValue(MsgBusFields.TIMESTAMP, i) + "',");
-            sb.append((((String)lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("del") ? 1 : 0) + ",");
-            sb.append(lookupValue(MsgBusFields.PATH_ID, i) + ",");
-            sb.append("'" + lookupValue(MsgBusFields.LABELS, i) + "',");
-            sb.append(lookupValue(MsgBusFields.ISPREPOLICY, i) + ",");
-            sb.append(lookupValue(MsgBusFields.IS_ADJ_RIB_IN, i));
-
-            sb.append(')');
+            rows.add(new Object[] {
+                    lookupValue(MsgBusFields.HASH, i),
+                    lookupValue(MsgBusFields.PEER_HASH, i),
+                    lookupValue(MsgBusFields.BASE_ATTR_HASH, i),
+                    lookupValue(MsgBusFields.IS_IPV4, i),
+                    lookupValue(MsgBusFields.ORIGIN_AS, i),
+                    prefix,
+                    prefix_len,
+                    IpAddr.getIpHex(prefix),
+                    IpAddr.getIpBroadcastHex(prefix, prefix_len),
+                    prefix_bits,
+                    lookupValue(MsgBusFields.TIMESTAMP, i),
+                    ((String)lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("del") ? 1 : 0,
+                    lookupValue(MsgBusFields.PATH_ID, i),
+                    lookupValue(MsgBusFields.LABELS, i),
+                    lookupValue(MsgBusFields.ISPREPOLICY, i),
+                    lookupValue(MsgBusFields.IS_ADJ_RIB_IN, i)
+            });
         }
 
-        return sb.toString();
+        return rows;
     }
 
     /**
@@ -199,42 +204,21 @@ public class UnicastPrefixQuery extends Query{
 
             if  (((String)lookupValue(MsgBusFields.ACTION, i)).equalsIgnoreCase("add")) {
 
-                String as_path_str = ((String) lookupValue(MsgBusFields.AS_PATH, i)).trim();
-                as_path_str = as_path_str.replaceAll("[{}]", "");
-                String[] as_path = as_path_str.split(" ");
-
-                //System.out.println("AS Path = " + as_path_str);
-
-                Long left_asn = 0L;   // left is also previous ASN read
-                Long right_asn = 0L;
-                Long asn = 0L;
+                AsPathParser parser = AsPathParser.local();
+                parser.parse((String) lookupValue(MsgBusFields.AS_PATH, i));
 
-                for (int i2 = 0; i2 < as_path.length; i2++) {
-                    if (as_path[i2].length() <= 0)
-                        break;
+                long left_asn = 0;   // left is also previous ASN read
+                long right_asn;
+                long asn;
 
-                    try {
-                        asn = Long.valueOf(as_path[i2]);
-                    } catch (NumberFormatException e) {
-                        e.printStackTrace();
-                        break;
-                    }
+                for (int i2 = 0; i2 < parser.count(); i2++) {
+                    asn = parser.asn(i2);
 
                     if (asn > 0 && asn != left_asn /* skip prepends */) {
-                        if (i2 + 1 < as_path.length) {
-
-                            if (as_path[i2 + 1].length() <= 0)
-                                break;
+                        if (i2 + 1 < parser.count()) {
+                            right_asn = parser.asn(i2 + 1);
 
-                            try {
-                                right_asn = Long.valueOf(as_path[i2 + 1]);
-
-                            } catch (NumberFormatException e) {
-                                e.printStackTrace();
-                                break;
-                            }
-
-                            if (right_asn.equals(asn)) {
+                            if (right_asn == asn) {
                                 continue;
                             }
 
@@ -257,12 +241,16 @@ public class UnicastPrefixQuery extends Query{
                             sb.append(lookupValue(MsgBusFields.IS_IPV4, i));
 
                             sb.append(",FROM_UNIXTIME(");
-                            sb.append(Long.valueOf(System.currentTimeMillis() / 60000) * 60);
+                            sb.append(System.currentTimeMillis() / 60000 * 60);
                             sb.append(')');
 
                             sb.append(",0)");
 
                         } else {
+                            // Path stopped at an invalid ASN, no origin
+                            if (!parser.isComplete())
+                                break;
+
                             // No more left in path
                             if (sb.length() > 0)
                                 sb.append(',');
@@ -283,7 +271,7 @@ public class UnicastPrefixQuery extends Query{
                             sb.append(lookupValue(MsgBusFields.IS_IPV4, i));
 
                             sb.append(",FROM_UNIXTIME(");
-                            sb.append(Long.valueOf(System.currentTimeMillis() / 60000) * 60);
+                            sb.append(System.currentTimeMillis() / 60000 * 60);
                             sb.append(')');
 
                             sb.append(",0)");
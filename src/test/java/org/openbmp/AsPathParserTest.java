@@ -0,0 +1,107 @@
+package org.openbmp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.openbmp.mysqlquery.AsPathParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Unit test for the AS path parser
+ */
+public class AsPathParserTest
+    extends TestCase
+{
+    public AsPathParserTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AsPathParserTest.class );
+    }
+
+    public void testParse()
+    {
+        AsPathParser parser = new AsPathParser();
+
+        assertEquals(5, parser.parse(" 64512 64513 64513 {64514 4200000000} "));
+        assertTrue(parser.isComplete());
+        assertEquals(64512L, parser.asn(0));
+        assertEquals(64513L, parser.asn(2));
+        assertEquals(4200000000L, parser.asn(4));
+
+        assertEquals(0, parser.parse(""));
+        assertTrue(parser.isComplete());
+        assertEquals(0, parser.parse(null));
+
+        // Invalid tokens end the path
+        assertEquals(2, parser.parse("64512 64513 x 64514"));
+        assertFalse(parser.isComplete());
+        assertEquals(1, parser.parse("64512  64513"));
+        assertFalse(parser.isComplete());
+        assertEquals(1, parser.parse("64512 4294967296"));
+        assertFalse(parser.isComplete());
+    }
+
+    public void testTuples()
+    {
+        AsPathParser parser = new AsPathParser();
+        List<Object[]> rows = new ArrayList<>();
+
+        parser.parse("64512 64513 64513 {64514 64515}");
+        parser.addTuples(rows);
+
+        assertEquals(4, rows.size());
+        assertRow(rows.get(0), 64512, 0, 64513, 1);
+        assertRow(rows.get(1), 64513, 64512, 64514, 0);
+        assertRow(rows.get(2), 64514, 64513, 64515, 0);
+        assertRow(rows.get(3), 64515, 64514, 0, 0);
+
+        // Same adjacencies are not added again
+        parser.parse("64512 64513 64514 64515");
+        parser.addTuples(rows);
+        assertEquals(5, rows.size());
+        assertRow(rows.get(4), 64513, 64512, 64514, 1);
+        assertEquals(5, parser.getTupleCount());
+
+        // No origin for an incomplete path
+        rows.clear();
+        parser.parse("64520 64521 x");
+        parser.addTuples(rows);
+        assertEquals(1, rows.size());
+        assertRow(rows.get(0), 64520, 0, 64521, 1);
+
+        parser.clearTuples();
+        assertEquals(0, parser.getTupleCount());
+        assertTrue(parser.addTuple(64512, 0, 64513, 1));
+        assertFalse(parser.addTuple(64512, 0, 64513, 1));
+        assertTrue(parser.addTuple(64512, 0, 64513, 0));
+    }
+
+    public void testTupleSetGrows()
+    {
+        AsPathParser parser = new AsPathParser();
+
+        for (long asn = 1; asn <= 10000; asn++)
+            assertTrue(parser.addTuple(asn, asn + 1, 0xFFFFFFFFL, 1));
+
+        assertEquals(10000, parser.getTupleCount());
+
+        for (long asn = 1; asn <= 10000; asn++)
+            assertFalse(parser.addTuple(asn, asn + 1, 0xFFFFFFFFL, 1));
+    }
+
+    private static void assertRow(Object[] row, long asn, long left, long right, int peering)
+    {
+        assertEquals(asn, row[0]);
+        assertEquals(left, row[1]);
+        assertEquals(right, row[2]);
+        assertEquals(peering, row[3]);
+    }
+}
@@ -0,0 +1,97 @@
+package org.openbmp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Unit test for the as_path_analysis tuple cache
+ */
+public class MySQLAsPathCacheTest
+    extends TestCase
+{
+    public MySQLAsPathCacheTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLAsPathCacheTest.class );
+    }
+
+    public void testFilterAndRefresh()
+    {
+        MySQLAsPathCache cache = new MySQLAsPathCache(1000, 60000);
+        long now = 1000000;
+
+        List<Object[]> rows = new ArrayList<>();
+        rows.add(new Object[] { 64512L, 0L, 64513L, 1 });
+        rows.add(new Object[] { 64513L, 64512L, 0L, 0 });
+
+        assertEquals(0, cache.filter(rows, now));
+        assertEquals(2, rows.size());
+
+        // Same tuples are not sent again, a different peering flag is a different tuple
+        rows.add(new Object[] { 64512L, 0L, 64513L, 0 });
+        assertEquals(2, cache.filter(rows, now + 1000));
+        assertEquals(1, rows.size());
+        assertEquals(0, rows.get(0)[3]);
+
+        // Sent again once due for refresh
+        assertTrue(cache.add(64512, 0, 64513, 1, now + 60000));
+        assertFalse(cache.add(64512, 0, 64513, 1, now + 61000));
+
+        assertEquals(3, cache.getMissCount());
+        assertEquals(1, cache.getRefreshCount());
+        assertEquals(3, cache.getHitCount());
+    }
+
+    public void testFilterKeepsOrder()
+    {
+        MySQLAsPathCache cache = new MySQLAsPathCache(100000, 60000);
+        long now = 1000000;
+
+        List<Object[]> rows = new ArrayList<>();
+        for (long asn = 1; asn <= 10000; asn++)
+            rows.add(new Object[] { asn, 0L, 0L, 0 });
+
+        assertEquals(0, cache.filter(rows, now));
+
+        // Every other tuple is cached, the others are kept in order
+        List<Object[]> next = new ArrayList<>();
+        for (long asn = 1; asn <= 10000; asn++)
+            next.add(new Object[] { asn, asn % 2 == 0 ? 0L : 1L, 0L, 0 });
+
+        assertEquals(5000, cache.filter(next, now + 1000));
+        assertEquals(5000, next.size());
+
+        for (int i = 0; i < next.size(); i++)
+            assertEquals(i * 2L + 1, next.get(i)[0]);
+    }
+
+    public void testEviction()
+    {
+        MySQLAsPathCache cache = new MySQLAsPathCache(100, 60000);
+        long now = 1000000;
+
+        for (long asn = 1; asn <= 1000; asn++)
+            assertTrue(cache.add(asn, 0, 4200000000L, 1, now));
+
+        assertTrue(cache.getSize() <= 100);
+
+        // Oldest tuples are evicted, recent ones are still cached
+        assertTrue(cache.add(1, 0, 4200000000L, 1, now));
+        assertFalse(cache.add(1000, 0, 4200000000L, 1, now));
+
+        // Tuples seen again are kept when their generation is evicted
+        for (long asn = 2000; asn < 2100; asn++) {
+            cache.add(asn, 0, 0, 0, now);
+            assertFalse(cache.add(1, 0, 4200000000L, 1, now));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.openbmp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Unit test for the catch-up mode
+ */
+public class MySQLCatchUpModeTest
+    extends TestCase
+{
+    public MySQLCatchUpModeTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLCatchUpModeTest.class );
+    }
+
+    public void testLagHysteresis()
+    {
+        MySQLCatchUpMode catchUp = new MySQLCatchUpMode(100000, 1000, 10);
+
+        assertFalse(catchUp.update(50000, 0));
+        assertTrue(catchUp.update(100000, 5000));
+
+        // Stays in catch-up until near the head
+        assertTrue(catchUp.update(50000, 10000));
+        assertTrue(catchUp.update(1001, 15000));
+        assertFalse(catchUp.update(1000, 20000));
+        assertFalse(catchUp.update(50000, 25000));
+
+        assertTrue(catchUp.update(200000, 30000));
+        assertEquals(2, catchUp.getCatchUpCount());
+    }
+
+    public void testDeferAsPaths()
+    {
+        MySQLCatchUpMode catchUp = new MySQLCatchUpMode(100000, 1000, 3);
+
+        assertFalse(catchUp.hasDeferred());
+        assertFalse(catchUp.defer(Arrays.asList("64512 64513", "64512 64514")));
+        assertFalse(catchUp.defer(Arrays.asList("64512 64513", "64512 64513")));
+
+        // Max distinct paths reached
+        assertTrue(catchUp.defer(Arrays.asList("64512 64515")));
+
+        List<String> paths = catchUp.takeDeferred();
+        assertEquals(Arrays.asList("64512 64513", "64512 64514", "64512 64515"), paths);
+        assertFalse(catchUp.hasDeferred());
+    }
+}
@@ -0,0 +1,82 @@
+package org.openbmp;
+
+import org.openbmp.mysqlquery.BaseAttributeQuery;
+import org.openbmp.mysqlquery.StatementTemplate;
+import org.openbmp.mysqlquery.StatementTemplate.ColumnType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit test for the LOAD DATA loader statements and row stream
+ */
+public class MySQLLoadDataTest
+    extends TestCase
+{
+    private static final StatementTemplate RIB = StatementTemplate.intern("INSERT INTO", "rib",
+            "hash_id,prefix_bin,prefix,isIPv4",
+            new ColumnType[] { ColumnType.STRING, ColumnType.HEX_BINARY, ColumnType.STRING, ColumnType.NUMBER },
+            "ON DUPLICATE KEY UPDATE isIPv4=values(isIPv4)");
+
+    public MySQLLoadDataTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLLoadDataTest.class );
+    }
+
+    public void testSupported()
+    {
+        assertTrue(MySQLLoadData.isSupported(RIB));
+        assertTrue(MySQLLoadData.isSupported(BaseAttributeQuery.AS_PATH_ANALYSIS_TEMPLATE));
+        assertFalse(MySQLLoadData.isSupported(BaseAttributeQuery.COMMUNITY_ANALYSIS_TEMPLATE));
+    }
+
+    public void testStatements()
+    {
+        assertEquals("LOAD DATA LOCAL INFILE 'load_rib.tsv' INTO TABLE load_rib CHARACTER SET utf8" +
+                        " FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n'" +
+                        " (hash_id,@c1,prefix,isIPv4) SET prefix_bin=UNHEX(@c1)",
+                     MySQLLoadData.genLoadStatement(RIB, "load_rib"));
+
+        assertEquals("INSERT INTO rib (hash_id,prefix_bin,prefix,isIPv4) SELECT hash_id,prefix_bin,prefix,isIPv4" +
+                        " FROM load_rib ON DUPLICATE KEY UPDATE isIPv4=values(isIPv4)",
+                     MySQLLoadData.genMergeStatement(RIB, "load_rib"));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testRowStream() throws Exception
+    {
+        List<Object[]> first = new ArrayList<>();
+        first.add(new Object[] { "a1", "0A000000", "10.0.0.0", 1 });
+        first.add(new Object[] { "a2", "0B000000", "tab\there\\", true });
+
+        List<Object[]> second = new ArrayList<>();
+        second.add(new Object[] { "a3", null, "x", null });
+
+        List<Object[]>[] chunks = (List<Object[]>[]) new List[] { first, new ArrayList<Object[]>(), second };
+
+        InputStream in = new MySQLLoadData.RowInputStream(RIB, chunks, chunks.length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        byte[] buf = new byte[7];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) > 0)
+            out.write(buf, 0, n);
+
+        assertEquals("a1\t0A000000\t10.0.0.0\t1\n" +
+                     "a2\t0B000000\ttab\\there\\\\\t1\n" +
+                     "a3\t\\N\tx\t\\N\n",
+                     out.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,90 @@
+package org.openbmp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Unit test for the offset tracker
+ */
+public class MySQLOffsetTrackerTest
+    extends TestCase
+{
+    private static final TopicPartition RIB_0 = new TopicPartition("openbmp.parsed.unicast_prefix", 0);
+    private static final TopicPartition RIB_1 = new TopicPartition("openbmp.parsed.unicast_prefix", 1);
+
+    /*
+     * Writer is the committed sequence, in a single element array
+     */
+    private final long[] writerA = new long[1];
+    private final long[] writerB = new long[1];
+    private final List<long[]> writers = Arrays.asList(writerA, writerB);
+
+    public MySQLOffsetTrackerTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLOffsetTrackerTest.class );
+    }
+
+    public void testFlushedInOrder()
+    {
+        MySQLOffsetTracker<long[]> tracker = new MySQLOffsetTracker<>(w -> w[0]);
+
+        tracker.checkpoint(Collections.singletonMap(RIB_0, 100L), writers, new long[] { 10, 5 });
+        tracker.checkpoint(Collections.singletonMap(RIB_0, 200L), writers, new long[] { 20, 5 });
+        tracker.checkpoint(Collections.singletonMap(RIB_1, 50L), writers, new long[] { 20, 8 });
+
+        assertTrue(tracker.takeFlushed().isEmpty());
+
+        // First checkpoint needs both writers
+        writerA[0] = 20;
+        assertTrue(tracker.takeFlushed().isEmpty());
+
+        writerB[0] = 5;
+        Map<TopicPartition, Long> flushed = tracker.takeFlushed();
+
+        assertEquals(1, flushed.size());
+        assertEquals(200L, (long) flushed.get(RIB_0));
+        assertEquals(1, tracker.getPendingCount());
+
+        // Taken offsets are not returned again
+        assertTrue(tracker.takeFlushed().isEmpty());
+
+        writerB[0] = 8;
+        flushed = tracker.takeFlushed();
+
+        assertEquals(50L, (long) flushed.get(RIB_1));
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    public void testDeferred()
+    {
+        MySQLOffsetTracker<long[]> tracker = new MySQLOffsetTracker<>(w -> w[0]);
+
+        tracker.defer(Collections.singletonMap(RIB_0, 100L));
+        tracker.defer(Collections.singletonMap(RIB_1, 30L));
+        assertTrue(tracker.hasDeferred());
+        assertTrue(tracker.takeFlushed().isEmpty());
+
+        tracker.checkpoint(Collections.singletonMap(RIB_0, 150L), writers, new long[] { 3, 3 });
+        assertFalse(tracker.hasDeferred());
+
+        writerA[0] = 3;
+        writerB[0] = 3;
+        Map<TopicPartition, Long> flushed = tracker.takeFlushed();
+
+        assertEquals(150L, (long) flushed.get(RIB_0));
+        assertEquals(30L, (long) flushed.get(RIB_1));
+    }
+}
@@ -0,0 +1,125 @@
+package org.openbmp;
+
+import org.openbmp.mysqlquery.StatementTemplate;
+import org.openbmp.mysqlquery.StatementTemplate.ColumnType;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Unit test for the prepared statement writer
+ */
+public class MySQLPreparedWriterTest
+    extends TestCase
+{
+    public MySQLPreparedWriterTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLPreparedWriterTest.class );
+    }
+
+    public void testPreparedStatement()
+    {
+        StatementTemplate template = StatementTemplate.intern("INSERT INTO", "prepared_test",
+                "hash_id,prefix_bin,router_id,first_seen,count",
+                new ColumnType[] { ColumnType.STRING, ColumnType.HEX_BINARY, ColumnType.HEX_NUMBER,
+                                   ColumnType.UNIX_TIME, ColumnType.NUMBER },
+                "ON DUPLICATE KEY UPDATE count=values(count)");
+
+        assertEquals(" INSERT INTO prepared_test (hash_id,prefix_bin,router_id,first_seen,count) VALUES " +
+                        " (?,UNHEX(?),CONV(?,16,10),FROM_UNIXTIME(?),?) ON DUPLICATE KEY UPDATE count=values(count)",
+                     MySQLPreparedWriter.genPreparedStatement(template));
+    }
+
+    /**
+     * Rows are bound as the values of the function placeholders, nulls are typed by column
+     */
+    public void testBindRows() throws SQLException
+    {
+        StatementTemplate template = StatementTemplate.intern("INSERT INTO", "prepared_bind_test",
+                "hash_id,prefix_bin,router_id,first_seen,count",
+                new ColumnType[] { ColumnType.STRING, ColumnType.HEX_BINARY, ColumnType.HEX_NUMBER,
+                                   ColumnType.UNIX_TIME, ColumnType.NUMBER },
+                "ON DUPLICATE KEY UPDATE count=values(count)");
+
+        List<String> calls = new ArrayList<>();
+        Connection con = recordingConnection(calls);
+
+        List<Object[]> rows = new ArrayList<>();
+        rows.add(new Object[] { "it's", "0A01", "C0A80001", 1500000000L, 42 });
+        rows.add(new Object[] { null, null, null, null, null });
+
+        @SuppressWarnings("unchecked")
+        List<Object[]>[] chunks = new List[] { rows };
+
+        MySQLPreparedWriter writer = new MySQLPreparedWriter();
+        writer.execute(con, template, chunks, 1);
+
+        assertEquals(Arrays.asList(
+                "prepareStatement(" + MySQLPreparedWriter.genPreparedStatement(template) + ")",
+
+                // UNHEX, CONV and FROM_UNIXTIME take the same text as the text statement, unescaped
+                "setString(1,it's)", "setString(2,0A01)", "setString(3,C0A80001)",
+                "setString(4,1500000000)", "setObject(5,42)", "addBatch()",
+
+                // STRING renders null as 'null' like the text statement, others bind SQL NULL
+                "setString(1,null)", "setNull(2," + Types.VARCHAR + ")", "setNull(3," + Types.VARCHAR + ")",
+                "setNull(4," + Types.VARCHAR + ")", "setNull(5," + Types.BIGINT + ")", "addBatch()",
+
+                "executeBatch()"), calls);
+
+        // Statement is prepared once per template
+        calls.clear();
+        writer.execute(con, template, chunks, 0);
+        assertEquals(Arrays.asList("executeBatch()"), calls);
+    }
+
+    /*
+     * Connection and prepared statement that record the calls made to them
+     */
+    private static Connection recordingConnection(final List<String> calls)
+    {
+        final PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+                (proxy, method, args) -> {
+                    calls.add(method.getName() + "(" + join(args) + ")");
+                    return method.getName().equals("executeBatch") ? new int[0] : null;
+                });
+
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                (proxy, method, args) -> {
+                    calls.add(method.getName() + "(" + join(args) + ")");
+                    return method.getName().equals("prepareStatement") ? stmt : null;
+                });
+    }
+
+    private static String join(Object[] args)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; args != null && i < args.length; i++) {
+            if (i > 0)
+                sb.append(',');
+
+            sb.append(args[i]);
+        }
+
+        return sb.toString();
+    }
+}
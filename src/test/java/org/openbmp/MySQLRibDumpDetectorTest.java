@@ -0,0 +1,106 @@
+package org.openbmp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit test for the RIB dump detector
+ */
+public class MySQLRibDumpDetectorTest
+    extends TestCase
+{
+    public MySQLRibDumpDetectorTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLRibDumpDetectorTest.class );
+    }
+
+    public void testDumpSettles()
+    {
+        MySQLRibDumpDetector detector = new MySQLRibDumpDetector(100, 5000, 60000);
+        long now = 1000000;
+
+        // Not dumping until the peer is up
+        assertFalse(detector.update("p1", 500, now));
+
+        detector.peerUp("p1", now);
+        assertEquals(1, detector.getActiveCount());
+
+        // Fast dump, 1000 prefixes per second
+        for (int i = 0; i < 10; i++) {
+            now += 100;
+            assertTrue(detector.update("p1", 100, now));
+            assertFalse(detector.update("p2", 100, now));
+        }
+
+        // Slow start is still the dump until the min time
+        now += 2000;
+        assertTrue(detector.update("p1", 1, now));
+
+        // Rate settles below 100 per second after the min time
+        for (int i = 0; i < 4; i++) {
+            now += 1000;
+            detector.update("p1", 10, now);
+        }
+
+        assertFalse(detector.update("p1", 10, now + 1000));
+        assertFalse(detector.isDump("p1"));
+        assertEquals(1, detector.getDumpCount());
+    }
+
+    public void testExpireAndPeerDown()
+    {
+        MySQLRibDumpDetector detector = new MySQLRibDumpDetector(100, 5000, 20000);
+        long now = 1000000;
+
+        detector.peerUp("p1", now);
+        detector.peerUp("p2", now);
+        detector.peerUp("p3", now);
+
+        // Quiet peers are expired only after the min time
+        detector.expire(now + 2000);
+        assertEquals(3, detector.getActiveCount());
+
+        detector.peerDown("p3");
+        assertFalse(detector.isDump("p3"));
+
+        // p1 keeps dumping, p2 is quiet
+        for (int i = 1; i <= 10; i++)
+            assertTrue(detector.update("p1", 1000, now + i * 1000));
+
+        detector.expire(now + 10000);
+        assertTrue(detector.isDump("p1"));
+        assertFalse(detector.isDump("p2"));
+
+        // Dump ends at the max time regardless of the rate
+        assertFalse(detector.update("p1", 1000, now + 20000));
+        assertEquals(0, detector.getActiveCount());
+    }
+
+    /**
+     * Peer up consumed by one consumer thread, rows of the peer by another
+     */
+    public void testSharedByThreads() throws InterruptedException
+    {
+        final MySQLRibDumpDetector detector = new MySQLRibDumpDetector(100, 5000, 60000);
+        final long now = 1000000;
+        final boolean[] dump = new boolean[1];
+
+        Thread peer = new Thread(() -> detector.peerUp("p1", now));
+        peer.start();
+        peer.join();
+
+        Thread rows = new Thread(() -> dump[0] = detector.update("p1", 100, now + 100));
+        rows.start();
+        rows.join();
+
+        assertTrue(dump[0]);
+        assertEquals(1, detector.getActiveCount());
+    }
+}
@@ -0,0 +1,112 @@
+package org.openbmp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit test for the writer autoscaler
+ */
+public class MySQLWriterAutoscalerTest
+    extends TestCase
+{
+    private static final long SLO = 2000;
+    private static final double SERVICE_NANOS = 500000;        // 0.5ms per message
+
+    public MySQLWriterAutoscalerTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLWriterAutoscalerTest.class );
+    }
+
+    public void testGrowToTarget()
+    {
+        MySQLWriterAutoscaler scaler = new MySQLWriterAutoscaler("test", SLO, 0.7, 8, 2, 60000, 600000);
+
+        long now = 1000000;
+        long arrived = 0;
+
+        assertEquals(MySQLWriterAutoscaler.Action.NONE, scaler.update(now, arrived, new int[] { 0 }, SERVICE_NANOS));
+
+        // 5000 msgs/s at 0.5ms is 2.5 writers busy, 4 writers at 70% utilization
+        now += 1000;
+        arrived += 5000;
+        assertEquals(MySQLWriterAutoscaler.Action.NONE, scaler.update(now, arrived, new int[] { 100 }, SERVICE_NANOS));
+        assertEquals(4, scaler.getTarget());
+        assertEquals(5000.0, scaler.getArrivalRate(), 0.1);
+
+        // Grows by more than one writer once above for allowed_over times
+        now += 1000;
+        arrived += 5000;
+        assertEquals(MySQLWriterAutoscaler.Action.GROW, scaler.update(now, arrived, new int[] { 100 }, SERVICE_NANOS));
+        assertEquals(4, scaler.getTarget());
+        assertEquals(1, scaler.getGrowCount());
+    }
+
+    public void testBacklogDrainsWithinSlo()
+    {
+        MySQLWriterAutoscaler scaler = new MySQLWriterAutoscaler("test", SLO, 0.7, 8, 1, 60000, 600000);
+
+        scaler.update(1000, 0, new int[] { 0 }, SERVICE_NANOS);
+
+        // No arrivals, but 14000 queued is 7s of work; draining in 2s at 70% takes 5 writers
+        assertEquals(MySQLWriterAutoscaler.Action.GROW, scaler.update(2000, 0, new int[] { 14000 }, SERVICE_NANOS));
+        assertEquals(5, scaler.getTarget());
+        assertEquals(7000, scaler.getWaitMillis());
+    }
+
+    public void testMaxWriters()
+    {
+        MySQLWriterAutoscaler scaler = new MySQLWriterAutoscaler("test", SLO, 0.7, 3, 1, 60000, 600000);
+
+        scaler.update(1000, 0, new int[] { 0, 0, 0 }, SERVICE_NANOS);
+        assertEquals(MySQLWriterAutoscaler.Action.NONE,
+                     scaler.update(2000, 100000, new int[] { 10000, 10000, 10000 }, SERVICE_NANOS));
+        assertEquals(3, scaler.getTarget());
+    }
+
+    public void testShrinkAfterScaleBack()
+    {
+        MySQLWriterAutoscaler scaler = new MySQLWriterAutoscaler("test", SLO, 0.7, 8, 2, 60000, 600000);
+        int[] idle = new int[] { 0, 0, 0 };
+
+        scaler.update(1000, 0, idle, SERVICE_NANOS);
+
+        assertEquals(MySQLWriterAutoscaler.Action.NONE, scaler.update(2000, 100, idle, SERVICE_NANOS));
+        assertEquals(1, scaler.getTarget());
+        assertEquals(MySQLWriterAutoscaler.Action.NONE, scaler.update(30000, 200, idle, SERVICE_NANOS));
+        assertEquals(MySQLWriterAutoscaler.Action.SHRINK, scaler.update(62000, 300, idle, SERVICE_NANOS));
+
+        // One at a time, the scale back time starts again
+        assertEquals(MySQLWriterAutoscaler.Action.NONE, scaler.update(63000, 400, new int[] { 0, 0 }, SERVICE_NANOS));
+    }
+
+    public void testRebalance()
+    {
+        MySQLWriterAutoscaler scaler = new MySQLWriterAutoscaler("test", SLO, 0.7, 2, 2, 60000, 600000);
+
+        scaler.update(1000000, 0, new int[] { 0, 0 }, SERVICE_NANOS);
+
+        // Writer 0 is 5s behind, writer 1 is idle and at max writers
+        assertEquals(MySQLWriterAutoscaler.Action.REBALANCE,
+                     scaler.update(1001000, 1000, new int[] { 10000, 0 }, SERVICE_NANOS));
+
+        // Not again until the rebalance time
+        assertEquals(MySQLWriterAutoscaler.Action.NONE,
+                     scaler.update(1002000, 2000, new int[] { 10000, 0 }, SERVICE_NANOS));
+    }
+
+    public void testUnknownServiceTime()
+    {
+        MySQLWriterAutoscaler scaler = new MySQLWriterAutoscaler("test", SLO, 0.7, 8, 1, 60000, 600000);
+
+        scaler.update(1000, 0, new int[] { 0 }, 0);
+        assertEquals(MySQLWriterAutoscaler.Action.NONE, scaler.update(2000, 5000, new int[] { 5000 }, 0));
+        assertEquals(1, scaler.getTarget());
+    }
+}
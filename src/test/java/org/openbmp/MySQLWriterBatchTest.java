@@ -0,0 +1,324 @@
+package org.openbmp;
+
+import org.openbmp.mysqlquery.L3VpnPrefixQuery;
+import org.openbmp.mysqlquery.LsLinkQuery;
+import org.openbmp.mysqlquery.LsNodeQuery;
+import org.openbmp.mysqlquery.LsPrefixQuery;
+import org.openbmp.mysqlquery.StatementTemplate;
+import org.openbmp.mysqlquery.StatementTemplate.ColumnType;
+import org.openbmp.mysqlquery.UnicastPrefixQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit test for the writer batch, and flush benchmark, see main()
+ */
+public class MySQLWriterBatchTest
+    extends TestCase
+{
+    private static final StatementTemplate RIB = StatementTemplate.intern("INSERT INTO", "batch_test_rib",
+            "hash_id,peer_hash_id,prefix,prefix_len",
+            new ColumnType[] { ColumnType.HEX_BINARY, ColumnType.HEX_BINARY, ColumnType.STRING, ColumnType.NUMBER },
+            "ON DUPLICATE KEY UPDATE prefix_len=values(prefix_len)");
+
+    private static final StatementTemplate KEYED_RIB = StatementTemplate.intern("INSERT INTO", "batch_test_rib",
+            "hash_id,peer_hash_id,prefix,prefix_len",
+            new ColumnType[] { ColumnType.HEX_BINARY, ColumnType.HEX_BINARY, ColumnType.STRING, ColumnType.NUMBER },
+            "ON DUPLICATE KEY UPDATE prefix_len=values(prefix_len)", "hash_id,peer_hash_id");
+
+    private static final StatementTemplate KEYED_PEER = StatementTemplate.intern("REPLACE INTO", "batch_test_peer",
+            "hash_id,state", new ColumnType[] { ColumnType.STRING, ColumnType.NUMBER }, "", "hash_id");
+
+    private static final StatementTemplate ATTR = StatementTemplate.intern("INSERT IGNORE INTO", "batch_test_attr",
+            "hash_id,as_path", new ColumnType[] { ColumnType.HEX_BINARY, ColumnType.STRING }, "");
+
+    public MySQLWriterBatchTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLWriterBatchTest.class );
+    }
+
+    public void testRender()
+    {
+        MySQLWriterBatch batch = new MySQLWriterBatch();
+
+        batch.add(RIB, rows(new Object[] { "0A", "0B", "10.0.0.0", 8 }));
+        batch.add(ATTR, rows(new Object[] { "0C", "64512 'x'" }));
+        batch.add(RIB, rows(new Object[] { "0D", "0B", "10.1.0.0", 16 }, new Object[] { "0E", "0B", "10.2.0.0", 16 }));
+
+        assertEquals(3, batch.getMessageCount());
+        assertEquals(4, batch.getRowCount());
+
+        assertEquals(RIB.getPrefix() + " (X'0A',X'0B','10.0.0.0',8),(X'0D',X'0B','10.1.0.0',16)," +
+                        "(X'0E',X'0B','10.2.0.0',16) " + RIB.getSuffix() + ";" +
+                        ATTR.getPrefix() + " (X'0C','64512 \\'x\\'') ",
+                     batch.render());
+
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        assertEquals("", batch.render());
+
+        batch.add(ATTR, rows(new Object[] { "0F", "64512" }));
+        assertEquals(ATTR.getPrefix() + " (X'0F','64512') ", batch.render());
+    }
+
+    public void testRenderMaxBytes() throws Exception
+    {
+        MySQLWriterBatch batch = new MySQLWriterBatch();
+
+        for (int i = 0; i < 100; i++)
+            batch.add(RIB, rows(new Object[] { "0A", "0B", "10.0." + i + ".0", 24 }));
+        batch.add(ATTR, rows(new Object[] { "0C", "64512 \u00e9\u4e2d" }));
+
+        // Fits in one multi-statement
+        List<String> statements = new ArrayList<>();
+        batch.render(null, Integer.MAX_VALUE, statements);
+
+        assertEquals(1, statements.size());
+        assertEquals(batch.render(), statements.get(0));
+
+        // Split on row boundaries, filling each statement
+        final int maxBytes = 600;
+        statements.clear();
+        batch.render(null, maxBytes, statements);
+
+        assertTrue(statements.size() > 1);
+
+        int rows = 0;
+        for (int i = 0; i < statements.size(); i++) {
+            String statement = statements.get(i);
+            int bytes = statement.getBytes("UTF-8").length;
+
+            assertTrue("statement of " + bytes + " bytes", bytes <= maxBytes);
+
+            if (i < statements.size() - 1)
+                assertTrue("statement of " + bytes + " bytes is not full", bytes > maxBytes - 100);
+            assertTrue(statement.startsWith(RIB.getPrefix()) || statement.startsWith(ATTR.getPrefix()));
+
+            rows += countRows(statement);
+        }
+
+        assertEquals(101, rows);
+        assertTrue(statements.get(statements.size() - 1).contains("\u4e2d"));
+    }
+
+    private static int countRows(String statement)
+    {
+        int count = 0;
+        for (int i = statement.indexOf("(X'"); i >= 0; i = statement.indexOf("(X'", i + 1))
+            ++count;
+        return count;
+    }
+
+    public void testSortByKey()
+    {
+        MySQLWriterBatch batch = new MySQLWriterBatch();
+
+        batch.add(KEYED_RIB, rows(new Object[] { "0B", "01", "10.1.0.0", 16 }, new Object[] { "0A", "02", "10.0.0.0", 8 }));
+        batch.add(KEYED_RIB, rows(new Object[] { "0A", "01", "10.0.0.0", 8 }, new Object[] { "0B", "01", "10.1.0.0", 16 }));
+        batch.add(KEYED_RIB, rows(new Object[] { "0B", "01", "10.1.0.0", 24 }, new Object[] { "0B", "01", "10.1.0.0", 16 }));
+        batch.add(ATTR, rows(new Object[] { "0D", "2" }, new Object[] { "0C", "1" }));
+
+        batch.add(KEYED_PEER, rows(new Object[] { "p2", 1 }, new Object[] { "p1", 1 }));
+        batch.add(KEYED_PEER, rows(new Object[] { "p1", 0 }));
+
+        assertEquals(11, batch.getRowCount());
+
+        // Identical consecutive rib row is removed, changed rows are kept in order; last peer row replaces
+        assertEquals(2, batch.sortByKey());
+        assertEquals(9, batch.getRowCount());
+
+        assertEquals(KEYED_RIB.getPrefix() + " (X'0A',X'01','10.0.0.0',8),(X'0A',X'02','10.0.0.0',8)," +
+                        "(X'0B',X'01','10.1.0.0',16),(X'0B',X'01','10.1.0.0',24),(X'0B',X'01','10.1.0.0',16) " +
+                        KEYED_RIB.getSuffix() + ";" +
+                        ATTR.getPrefix() + " (X'0D','2'),(X'0C','1') ;" +
+                        KEYED_PEER.getPrefix() + " ('p1',0),('p2',1) ",
+                     batch.render());
+    }
+
+    public void testCoalesce()
+    {
+        StatementTemplate rib = UnicastPrefixQuery.TEMPLATE;
+        int path = rib.getColumnIndex("path_attr_hash_id");
+        int withdrawn = rib.getColumnIndex("isWithdrawn");
+        int timestamp = rib.getColumnIndex("timestamp");
+
+        assertTrue(rib.canCoalesce());
+        assertTrue(L3VpnPrefixQuery.TEMPLATE.canCoalesce());
+        assertTrue(LsNodeQuery.TEMPLATE.canCoalesce());
+        assertTrue(LsLinkQuery.TEMPLATE.canCoalesce());
+        assertTrue(LsPrefixQuery.TEMPLATE.canCoalesce());
+        assertFalse(KEYED_PEER.canCoalesce());
+        assertFalse(ATTR.canCoalesce());
+
+        MySQLWriterBatch batch = new MySQLWriterBatch();
+
+        // Flapping route: announced, withdrawn and announced again with a new path
+        batch.add(rib, rows(ribRow("h1", "a1", 0, "t1"), ribRow("h2", "a1", 0, "t1")));
+        batch.add(rib, rows(ribRow("h1", "a2", 1, "t2")));
+        batch.add(rib, rows(ribRow("h1", "a3", 0, "t3")));
+
+        // Withdrawn last, the path of the last announcement is kept by a separate row
+        batch.add(rib, rows(ribRow("h2", "a2", 0, "t2"), ribRow("h2", "a3", 1, "t3")));
+        batch.add(rib, rows(ribRow("h2", "a4", 1, "t4")));
+
+        assertEquals(7, batch.getRowCount());
+        assertEquals(4, batch.sortByKey(Collections.singleton("rib")));
+
+        List<Object[]> rows = batch.chunks(0)[0];
+        assertEquals(3, rows.size());
+
+        assertEquals("a3", rows.get(0)[path]);
+        assertEquals(0, rows.get(0)[withdrawn]);
+        assertEquals("t3", rows.get(0)[timestamp]);
+
+        assertEquals("a2", rows.get(1)[path]);
+        assertEquals(0, rows.get(1)[withdrawn]);
+        assertEquals("t2", rows.get(1)[timestamp]);
+
+        assertEquals("a4", rows.get(2)[path]);
+        assertEquals(1, rows.get(2)[withdrawn]);
+        assertEquals("t4", rows.get(2)[timestamp]);
+
+        // Not coalesced unless the table is selected
+        batch.clear();
+        batch.add(rib, rows(ribRow("h1", "a1", 0, "t1"), ribRow("h1", "a2", 0, "t2")));
+
+        assertEquals(0, batch.sortByKey());
+        assertEquals(2, batch.getRowCount());
+    }
+
+    private static Object[] ribRow(String hashId, String pathHashId, int withdrawn, String timestamp)
+    {
+        return new Object[] { hashId, "p1", pathHashId, 1, 64512, "10.0.0.0", 8, "0A", "0A",
+                              "00001010", timestamp, withdrawn, 0, "", 1, 0 };
+    }
+
+    public void testDuplicatePolicy()
+    {
+        assertEquals(StatementTemplate.DuplicatePolicy.KEEP_CHANGED, KEYED_RIB.getDuplicatePolicy());
+        assertEquals(StatementTemplate.DuplicatePolicy.KEEP_FIRST, ATTR.getDuplicatePolicy());
+        assertEquals(StatementTemplate.DuplicatePolicy.KEEP_LAST, KEYED_PEER.getDuplicatePolicy());
+
+        assertTrue(KEYED_RIB.hasKey());
+        assertFalse(ATTR.hasKey());
+    }
+
+    /**
+     * A large batch renders to a single statement of every row in order, and the reused buffers
+     *      don't carry anything over to the next batch.
+     */
+    public void testLargeBatchRender()
+    {
+        List<List<Object[]>> input = genInput(16000);
+
+        StringBuilder expected = new StringBuilder();
+        expected.append(RIB.getPrefix()).append(' ');
+
+        for (List<Object[]> rows : input) {
+            for (Object[] row : rows) {
+                if (expected.length() > RIB.getPrefix().length() + 1)
+                    expected.append(',');
+
+                RIB.appendRow(expected, row);
+            }
+        }
+
+        expected.append(' ').append(RIB.getSuffix());
+
+        // Writer reuses the same batch, so buffers are grown once
+        MySQLWriterBatch batch = new MySQLWriterBatch();
+
+        for (int i = 0; i < 2; i++) {
+            for (List<Object[]> rows : input)
+                batch.add(RIB, rows);
+
+            assertEquals(input.size(), batch.getMessageCount());
+            assertEquals(input.size() * 2, batch.getRowCount());
+            assertEquals(expected.toString(), batch.render());
+
+            batch.clear();
+            assertEquals("", batch.render());
+        }
+    }
+
+    /**
+     * Flush benchmark, not part of the suite.  Prints the flush time (add, render and clear) at 1x,
+     *      2x, 4x and 8x the batch size.  The time per row stays about the same while the flush cost
+     *      is linear in the batch size.
+     *
+     *      Run with: java -cp target/classes:target/test-classes:... org.openbmp.MySQLWriterBatchTest [messages]
+     */
+    public static void main(String[] args)
+    {
+        final int base = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int runs = 20;
+
+        MySQLWriterBatch batch = new MySQLWriterBatch();
+
+        // Warm up the JIT and grow the reused buffers
+        List<List<Object[]>> warmup = genInput(base * 8);
+        for (int i = 0; i < runs; i++)
+            flush(batch, warmup);
+
+        System.out.printf("%10s %10s %12s %12s%n", "messages", "rows", "flush_ms", "ns/row");
+
+        for (int scale = 1; scale <= 8; scale <<= 1) {
+            List<List<Object[]>> input = genInput(base * scale);
+            long best = Long.MAX_VALUE;
+
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                flush(batch, input);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+
+            System.out.printf("%10d %10d %12.3f %12.1f%n", input.size(), input.size() * 2, best / 1e6,
+                              (double) best / (input.size() * 2));
+        }
+    }
+
+    /*
+     * Flush the input the way the writer does
+     */
+    private static void flush(MySQLWriterBatch batch, List<List<Object[]>> input)
+    {
+        for (List<Object[]> rows : input)
+            batch.add(RIB, rows);
+
+        batch.render();
+        batch.clear();
+    }
+
+    private static List<List<Object[]>> genInput(int messages)
+    {
+        List<List<Object[]>> input = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            input.add(rows(new Object[] { "00112233445566778899aabbccddeeff", "ffeeddccbbaa99887766554433221100",
+                                          "10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255), 32 },
+                           new Object[] { "0123456789abcdef0123456789abcdef", "ffeeddccbbaa99887766554433221100",
+                                          "2001:db8::" + Integer.toHexString(i), 128 }));
+        }
+
+        return input;
+    }
+
+    private static List<Object[]> rows(Object[]... rows)
+    {
+        List<Object[]> list = new ArrayList<>();
+        for (Object[] row : rows)
+            list.add(row);
+        return list;
+    }
+}
@@ -0,0 +1,191 @@
+package org.openbmp;
+
+import org.openbmp.mysqlquery.StatementTemplate;
+import org.openbmp.mysqlquery.StatementTemplate.ColumnType;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Unit test for the writer connection transactions, using a recording connection
+ */
+public class MySQLWriterConnectionTest
+    extends TestCase
+{
+    private static final StatementTemplate RIB = StatementTemplate.intern("INSERT INTO", "rib",
+            "hash_id,peer_hash_id,prefix_len",
+            new ColumnType[] { ColumnType.HEX_BINARY, ColumnType.HEX_BINARY, ColumnType.NUMBER },
+            "ON DUPLICATE KEY UPDATE prefix_len=values(prefix_len)");
+
+    private final List<String> calls = new ArrayList<>();
+    private String failing;                                 // Queries containing this fail, null if none
+    private SQLException error;                             // Error of the failing queries
+
+    public MySQLWriterConnectionTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLWriterConnectionTest.class );
+    }
+
+    /**
+     * A failed transaction is rolled back and split in half, down to single updates run in auto commit
+     */
+    public void testRollbackAndSplit()
+    {
+        MySQLWriterConnection connection = new MySQLWriterConnection(Config.getInstance(), 10,
+                                                                     recordingConnection());
+        failing = "q3";
+        error = new SQLException("Duplicate entry", "23000");
+
+        assertTrue(connection.execute(queries("q1", "q2", "q3", "q4")));
+
+        List<String> expected = new ArrayList<>(Arrays.asList(
+                "setAutoCommit(false)", "q1", "q2", "q3", "rollback()", "setAutoCommit(true)",
+                "setAutoCommit(false)", "q1", "q2", "commit()", "setAutoCommit(true)",
+                "setAutoCommit(false)", "q3", "rollback()", "setAutoCommit(true)"));
+
+        // Single update in auto commit with the query retries, skipped on a permanent error
+        for (int i = 0; i < 3; i++)
+            expected.add("q3");
+
+        expected.add("q4");
+
+        assertEquals(expected, calls);
+        assertEquals(1, connection.getSkippedCount());
+        assertFalse(connection.isTransactionPending());
+    }
+
+    /**
+     * Transient errors are not skipped, the batch fails
+     */
+    public void testTransientFailure()
+    {
+        MySQLWriterConnection connection = new MySQLWriterConnection(Config.getInstance(), 10,
+                                                                     recordingConnection());
+        failing = "q2";
+        error = new SQLException("Lock wait timeout exceeded; try restarting transaction", "HY000");
+
+        assertFalse(connection.execute(queries("q1", "q2")));
+        assertEquals(0, connection.getSkippedCount());
+
+        assertEquals(Arrays.asList("setAutoCommit(false)", "q1", "q2", "rollback()", "setAutoCommit(true)",
+                                   "q1", "q2", "q2", "q2"), calls);
+    }
+
+    /**
+     * A LOAD DATA that fails in the transaction falls back to inserts once it's run on its own
+     */
+    public void testLoadDataFallback()
+    {
+        Config cfg = new Config() {
+            @Override
+            Boolean getDb_load_data() {
+                return true;
+            }
+
+            @Override
+            Integer getDb_load_data_min_rows() {
+                return 1;
+            }
+        };
+
+        MySQLWriterConnection connection = new MySQLWriterConnection(cfg, 10, recordingConnection());
+        failing = "load_rib";
+        error = new SQLException("Table 'load_rib' doesn't exist", "42S02");
+
+        List<Object[]> rows = new ArrayList<>();
+        rows.add(new Object[] { "0A", "0B", 8 });
+        rows.add(new Object[] { "0C", "0B", 16 });
+
+        MySQLWriterBatch batch = queries("q1");
+        batch.add(RIB, rows);
+
+        connection.prepare(batch);
+        assertTrue(batch.getStatements().isEmpty());
+
+        assertTrue(connection.execute(batch));
+
+        // Transaction is rolled back, the LOAD DATA is retried on its own in auto commit, then the inserts
+        int rollback = calls.indexOf("rollback()");
+        int insert = calls.size() - 2;
+
+        assertEquals(Arrays.asList("setAutoCommit(false)", "DROP TEMPORARY TABLE IF EXISTS load_rib",
+                                   "rollback()", "setAutoCommit(true)"), calls.subList(0, rollback + 2));
+
+        for (int i = rollback + 2; i < insert; i++)
+            assertEquals("DROP TEMPORARY TABLE IF EXISTS load_rib", calls.get(i));
+
+        assertEquals(cfg.getDb_retries().intValue(), insert - rollback - 2);
+        assertEquals("INSERT INTO rib (hash_id,peer_hash_id,prefix_len) VALUES  (X'0A',X'0B',8),(X'0C',X'0B',16) " +
+                     "ON DUPLICATE KEY UPDATE prefix_len=values(prefix_len)", calls.get(insert).trim());
+
+        // Query runs after the rows
+        assertEquals("q1", calls.get(calls.size() - 1));
+        assertEquals(0, connection.getSkippedCount());
+    }
+
+    private static MySQLWriterBatch queries(String... queries)
+    {
+        MySQLWriterBatch batch = new MySQLWriterBatch();
+
+        for (String query : queries)
+            batch.addQuery(query);
+
+        return batch;
+    }
+
+    /*
+     * Connection that records the transaction calls and the queries, queries that contain the
+     *    failing string throw the error
+     */
+    private Connection recordingConnection()
+    {
+        final Statement stmt = (Statement) Proxy.newProxyInstance(
+                Statement.class.getClassLoader(), new Class<?>[] { Statement.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("executeUpdate")) {
+                        String query = (String) args[0];
+                        calls.add(query);
+
+                        if (failing != null && query.contains(failing))
+                            throw error;
+
+                        return 0;
+                    }
+
+                    return null;
+                });
+
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "createStatement":
+                            return stmt;
+
+                        case "setAutoCommit":
+                        case "commit":
+                        case "rollback":
+                            calls.add(method.getName() + "(" + (args != null ? args[0] : "") + ")");
+                            return null;
+
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
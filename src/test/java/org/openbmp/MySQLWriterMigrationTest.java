@@ -0,0 +1,313 @@
+package org.openbmp;
+
+import org.openbmp.mysqlquery.StatementTemplate;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Unit test for the live key migration between writers
+ */
+public class MySQLWriterMigrationTest
+    extends TestCase
+{
+    private static final int BUCKETS = 64;
+
+    /**
+     * Writer with a fake queue, committed up to the sequence set by the test
+     */
+    private static class Writer {
+        final int id;
+        final List<String> received = new ArrayList<>();
+        long writeSequence;
+        long committedSequence;
+        boolean failed;
+        boolean shutdown;
+
+        Writer(int id) {
+            this.id = id;
+        }
+    }
+
+    private static final MySQLWriterMigration.Writers<Writer> WRITERS =
+            new MySQLWriterMigration.Writers<Writer>() {
+        public int id(Writer writer) { return writer.id; }
+        public long writeSequence(Writer writer) { return writer.writeSequence; }
+        public long committedSequence(Writer writer) { return writer.committedSequence; }
+        public boolean isFailed(Writer writer) { return writer.failed; }
+        public void shutdown(Writer writer) { writer.shutdown = true; }
+    };
+
+    /**
+     * Sender that adds the queries to the writer queues, idle runs the action if any
+     */
+    private static class Sender implements MySQLWriterMigration.Sender<Writer> {
+        Runnable onIdle;
+        int idleCount;
+
+        public void send(Writer writer, StatementTemplate template, List<Object[]> rows, String query) {
+            writer.received.add(query);
+            ++writer.writeSequence;
+        }
+
+        public void idle() {
+            ++idleCount;
+
+            if (onIdle != null)
+                onIdle.run();
+        }
+    }
+
+    private final Writer a = new Writer(1);
+    private final Writer b = new Writer(2);
+    private final Sender sender = new Sender();
+    private MySQLWriterRing<Writer> ring;
+    private MySQLWriterMigration<Writer> migration;
+
+    public MySQLWriterMigrationTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLWriterMigrationTest.class );
+    }
+
+    @Override
+    protected void setUp()
+    {
+        ring = new MySQLWriterRing<>(BUCKETS);
+        migration = new MySQLWriterMigration<>(ring, WRITERS);
+        migration.add(a);
+
+        assertFalse(migration.isMigrating());
+    }
+
+    public void testHeldUntilCommitted()
+    {
+        for (int i = 0; i < 100; i++)
+            migration.send("key-" + i, null, null, "before-" + i, sender);
+
+        assertEquals(100, a.received.size());
+        long fence = a.writeSequence;
+
+        migration.add(b);
+        assertTrue(migration.isMigrating());
+
+        List<String> moving = new ArrayList<>();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 100; i++) {
+                String key = "key-" + i;
+                String query = "after-" + i + "-" + round;
+
+                migration.send(key, null, null, query, sender);
+
+                if (ownerOf(key) == b)
+                    moving.add(query);
+                else
+                    assertEquals(query, a.received.get(a.received.size() - 1));
+            }
+        }
+
+        assertFalse(moving.isEmpty());
+        assertEquals(200 - moving.size(), a.received.size() - 100);
+
+        // Held until the old writer has committed everything before the fence
+        assertTrue(b.received.isEmpty());
+
+        a.committedSequence = fence - 1;
+        migration.release(sender);
+        assertTrue(b.received.isEmpty());
+        assertTrue(migration.isMigrating());
+
+        a.committedSequence = fence;
+        migration.release(sender);
+        assertFalse(migration.isMigrating());
+        assertEquals(moving.size(), migration.getHeldCount());
+
+        // Messages of each key are released in order
+        assertEquals(new HashSet<>(moving), new HashSet<>(b.received));
+        assertEquals(moving.size(), b.received.size());
+
+        for (String query : moving) {
+            if (query.endsWith("-0")) {
+                String next = query.substring(0, query.length() - 1) + "1";
+                assertTrue(b.received.indexOf(query) < b.received.indexOf(next));
+            }
+        }
+
+        // Released keys go straight to the new writer
+        String key = keyOf(b);
+        migration.send(key, null, null, "released", sender);
+        assertEquals("released", b.received.get(b.received.size() - 1));
+    }
+
+    public void testBucketsNotMovingAreNeverHeld()
+    {
+        migration.add(b);
+
+        for (int i = 0; i < 1000; i++) {
+            String key = "key-" + i;
+
+            migration.send(key, null, null, key, sender);
+
+            if (ownerOf(key) == a)
+                assertEquals(key, a.received.get(a.received.size() - 1));
+        }
+
+        assertEquals(migration.getHeldCount(), 1000 - a.received.size());
+        assertTrue(b.received.isEmpty());
+    }
+
+    public void testMaxHeldWaitsForCommit()
+    {
+        migration.send("x", null, null, "before", sender);
+        final long fence = a.writeSequence;
+
+        migration.add(b);
+        String key = keyOf(b);
+
+        // Old writer commits while the sender waits
+        sender.onIdle = () -> {
+            if (sender.idleCount >= 3)
+                a.committedSequence = fence;
+        };
+
+        for (int i = 0; i < MySQLWriterMigration.MAX_HELD_PER_BUCKET - 1; i++)
+            migration.send(key, null, null, "held-" + i, sender);
+
+        assertEquals(0, sender.idleCount);
+        assertTrue(b.received.isEmpty());
+
+        migration.send(key, null, null, "held-" + (MySQLWriterMigration.MAX_HELD_PER_BUCKET - 1), sender);
+
+        assertTrue(sender.idleCount >= 3);
+        assertEquals(MySQLWriterMigration.MAX_HELD_PER_BUCKET, b.received.size());
+
+        for (int i = 0; i < MySQLWriterMigration.MAX_HELD_PER_BUCKET; i++)
+            assertEquals("held-" + i, b.received.get(i));
+
+        migration.send(key, null, null, "next", sender);
+        assertEquals("next", b.received.get(b.received.size() - 1));
+    }
+
+    public void testFailedWriterIsNotAwaited()
+    {
+        migration.send("x", null, null, "before", sender);
+        migration.add(b);
+
+        a.failed = true;
+        String key = keyOf(b);
+
+        for (int i = 0; i < MySQLWriterMigration.MAX_HELD_PER_BUCKET; i++)
+            migration.send(key, null, null, "held-" + i, sender);
+
+        assertEquals(0, sender.idleCount);
+    }
+
+    public void testSendToOwnersOncePerWriter()
+    {
+        migration.add(b);
+        a.committedSequence = a.writeSequence;
+        migration.release(sender);
+        assertFalse(migration.isMigrating());
+
+        String[] keys = new String[64];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = "shard-" + i;
+
+        migration.sendToOwners(keys, "withdraw", sender);
+        assertEquals(1, a.received.size());
+        assertEquals(1, b.received.size());
+
+        // Moving buckets hold the query once per bucket, after the messages already held
+        Writer c = new Writer(3);
+        long fenceA = a.writeSequence;
+        long fenceB = b.writeSequence;
+        migration.add(c);
+
+        Set<Integer> movingBuckets = new HashSet<>();
+        for (String key : keys) {
+            if (ring.owner(ring.bucket(key)) == c)
+                movingBuckets.add(ring.bucket(key));
+        }
+
+        assertFalse(movingBuckets.isEmpty());
+
+        migration.sendToOwners(keys, "withdraw-2", sender);
+        assertEquals(2, a.received.size());
+        assertEquals(2, b.received.size());
+        assertTrue(c.received.isEmpty());
+
+        a.committedSequence = fenceA;
+        b.committedSequence = fenceB;
+        migration.release(sender);
+
+        assertEquals(movingBuckets.size(), c.received.size());
+        for (String query : c.received)
+            assertEquals("withdraw-2", query);
+    }
+
+    public void testRetiringWriterShutdown()
+    {
+        migration.add(b);
+        a.committedSequence = a.writeSequence;
+        migration.release(sender);
+
+        String key = keyOf(b);
+        migration.send(key, null, null, "on-b", sender);
+
+        migration.remove(b);
+        assertTrue(migration.isMigrating());
+
+        // Removed writer keeps running until it has committed all of its messages
+        migration.send(key, null, null, "moved-to-a", sender);
+        migration.release(sender);
+        assertFalse(b.shutdown);
+        assertFalse(a.received.contains("moved-to-a"));
+
+        b.committedSequence = b.writeSequence;
+        migration.release(sender);
+        assertTrue(b.shutdown);
+        assertEquals("moved-to-a", a.received.get(a.received.size() - 1));
+        assertFalse(migration.isMigrating());
+
+        // Shutdown doesn't wait for removed writers
+        Writer c = new Writer(3);
+        migration.add(c);
+        migration.send(keyOf(c), null, null, "on-c", sender);
+        a.committedSequence = a.writeSequence;
+        migration.release(sender);
+
+        migration.remove(c);
+        migration.shutdown();
+        assertTrue(c.shutdown);
+    }
+
+    /*
+     * Current writer of the key, without sending
+     */
+    private Writer ownerOf(String key)
+    {
+        return ring.owner(ring.bucket(key));
+    }
+
+    /*
+     * Key owned by the writer
+     */
+    private String keyOf(Writer writer)
+    {
+        for (int i = 0; ; i++) {
+            if (ownerOf("key-" + i) == writer)
+                return "key-" + i;
+        }
+    }
+}
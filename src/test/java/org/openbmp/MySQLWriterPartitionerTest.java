@@ -0,0 +1,204 @@
+package org.openbmp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.openbmp.mysqlquery.StatementTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.openbmp.mysqlquery.StatementTemplate.ColumnType.NUMBER;
+import static org.openbmp.mysqlquery.StatementTemplate.ColumnType.STRING;
+
+
+/**
+ * Unit test for the writer partitioner
+ */
+public class MySQLWriterPartitionerTest
+    extends TestCase
+{
+    private static final StatementTemplate RIB = StatementTemplate.intern(
+            "INSERT IGNORE INTO", "rib", "hash_id,peer_hash_id,prefix",
+            new StatementTemplate.ColumnType[] { STRING, STRING, STRING }, "");
+
+    private static final StatementTemplate AS_PATH = StatementTemplate.intern(
+            "INSERT IGNORE INTO", "as_path_analysis", "asn,asn_left,asn_right",
+            new StatementTemplate.ColumnType[] { NUMBER, NUMBER, NUMBER }, "");
+
+    private static final StatementTemplate PEERS = StatementTemplate.intern(
+            "REPLACE INTO", "bgp_peers", "hash_id,router_hash_id",
+            new StatementTemplate.ColumnType[] { STRING, STRING }, "");
+
+    public MySQLWriterPartitionerTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLWriterPartitionerTest.class );
+    }
+
+    public void testPartition()
+    {
+        MySQLWriterPartitioner partitioner = new MySQLWriterPartitioner(null);
+        Set<Integer> used = new HashSet<>();
+
+        for (int i = 0; i < 1000; i++) {
+            int p = partitioner.partition("rib", "peer-" + i);
+
+            assertTrue(p >= 0 && p < MySQLWriterPartitioner.DEFAULT_PARTITIONS);
+            assertEquals(p, partitioner.partition("rib", new String("peer-" + i)));
+            used.add(p);
+        }
+
+        assertEquals(MySQLWriterPartitioner.DEFAULT_PARTITIONS, used.size());
+        assertEquals(partitioner.partition("as_path_analysis", 65001),
+                     partitioner.partition("as_path_analysis", 65001L));
+
+        assertFalse(partitioner.isPartitioned("bgp_peers"));
+        assertEquals(-1, partitioner.partition("bgp_peers", "x"));
+        assertNull(partitioner.key("bgp_peers", "x"));
+    }
+
+    public void testPartitionsConfig()
+    {
+        MySQLWriterPartitioner partitioner = new MySQLWriterPartitioner(
+                Collections.singletonMap("path_attrs", 0));
+
+        assertFalse(partitioner.isPartitioned("path_attrs"));
+        assertTrue(partitioner.isPartitioned("rib"));
+
+        partitioner = new MySQLWriterPartitioner(Collections.singletonMap("rib", 4));
+
+        for (int i = 0; i < 100; i++)
+            assertTrue(partitioner.partition("rib", "peer-" + i) < 4);
+    }
+
+    public void testResolvedPartitions()
+    {
+        MySQLWriterPartitioner partitioner = new MySQLWriterPartitioner(null);
+        final List<Object> resolved = new ArrayList<>();
+
+        // Stand-in for MySQL, peers resolve to 5 and ASNs to their value modulo 48
+        partitioner.setResolver((table, column, value) -> {
+            resolved.add(value);
+
+            if (value.equals("peer-down"))
+                return -1;
+
+            return value instanceof Long ? (int) ((Long) value % 48) : 5;
+        });
+
+        assertEquals(5, partitioner.partition("rib", "peer-1"));
+        assertEquals(5, partitioner.partition("rib", new String("peer-1")));
+        assertEquals("rib#5", partitioner.key("rib", "peer-1"));
+        assertEquals(65001 % 48, partitioner.partition("as_path_analysis", 65001));
+        assertEquals(65001 % 48, partitioner.partition("as_path_analysis", 65001L));
+
+        // Resolved once per value, unresolved values are hashed and kept
+        int hashed = partitioner.partition("rib", "peer-down");
+        assertTrue(hashed >= 0 && hashed < MySQLWriterPartitioner.DEFAULT_PARTITIONS);
+        assertEquals(hashed, partitioner.partition("rib", "peer-down"));
+        assertEquals(3, resolved.size());
+
+        // Row shards are not MySQL partitions, not resolved
+        partitioner.addTable("rib", "hash_id", 16);
+        partitioner.partition("rib", "h1");
+        assertEquals(3, resolved.size());
+    }
+
+    public void testParsePartition()
+    {
+        assertEquals(7, MySQLPartitionResolver.parsePartition("p7"));
+        assertEquals(47, MySQLPartitionResolver.parsePartition("p47"));
+        assertEquals(-1, MySQLPartitionResolver.parsePartition("p1,p2"));
+        assertEquals(-1, MySQLPartitionResolver.parsePartition(null));
+        assertEquals(-1, MySQLPartitionResolver.parsePartition("p"));
+    }
+
+    public void testSplitSinglePartition()
+    {
+        MySQLWriterPartitioner partitioner = new MySQLWriterPartitioner(null);
+        List<Object[]> rows = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++)
+            rows.add(new Object[] { "h" + i, "peer-1", "10.0.0." + i });
+
+        Map<String, List<Object[]>> split = partitioner.split(RIB, rows);
+
+        assertEquals(1, split.size());
+        assertSame(rows, split.get(partitioner.key("rib", "peer-1")));
+
+        assertNull(partitioner.split(PEERS, rows));
+    }
+
+    public void testSplitRows()
+    {
+        MySQLWriterPartitioner partitioner = new MySQLWriterPartitioner(null);
+        List<Object[]> rows = new ArrayList<>();
+
+        for (int i = 0; i < 200; i++)
+            rows.add(new Object[] { (long) (i % 7) + 64512, 1L, (long) i });
+
+        Map<String, List<Object[]>> split = partitioner.split(AS_PATH, rows);
+
+        int total = 0;
+        for (Map.Entry<String, List<Object[]>> entry : split.entrySet()) {
+            long prev = -1;
+
+            for (Object[] row : entry.getValue()) {
+                // Partition is owned by the key, rows stay in order
+                assertEquals(entry.getKey(), partitioner.key("as_path_analysis", row[0]));
+                assertTrue((Long) row[2] > prev);
+                prev = (Long) row[2];
+            }
+
+            total += entry.getValue().size();
+        }
+
+        assertEquals(rows.size(), total);
+        assertTrue(split.size() <= 7);
+    }
+
+    public void testRowShards()
+    {
+        MySQLWriterPartitioner partitioner = new MySQLWriterPartitioner();
+        assertTrue(partitioner.isEmpty());
+
+        partitioner.addTable("rib", "hash_id", 16);
+        assertFalse(partitioner.isPartitioned("path_attrs"));
+
+        // One peer's rows are spread over the shards, a prefix hash stays in one shard
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            rows.add(new Object[] { "h" + (i % 500), "peer-1", "10.0.0." + i });
+
+        Map<String, List<Object[]>> split = partitioner.split(RIB, rows);
+        assertEquals(16, split.size());
+
+        Set<Object> seen = new HashSet<>();
+        for (List<Object[]> group : split.values()) {
+            Set<Object> hashes = new HashSet<>();
+
+            for (Object[] row : group)
+                hashes.add(row[0]);
+
+            for (Object hash : hashes)
+                assertTrue(seen.add(hash));
+        }
+
+        // Rows of a peer can be in any shard
+        assertEquals(16, partitioner.keys("rib", "peer_hash_id", "peer-1").length);
+        assertEquals(1, partitioner.keys("rib", "hash_id", "h1").length);
+        assertNull(partitioner.keys("bgp_peers", "hash_id", "h1"));
+
+        partitioner.addTable("rib", "hash_id", 0);
+        assertTrue(partitioner.isEmpty());
+    }
+}
@@ -0,0 +1,95 @@
+package org.openbmp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit test for the writer ring buffer queue
+ */
+public class MySQLWriterQueueTest
+    extends TestCase
+{
+    public MySQLWriterQueueTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLWriterQueueTest.class );
+    }
+
+    public void testCapacityIsPowerOfTwo()
+    {
+        assertEquals(16384, new MySQLWriterQueue(16384).getCapacity());
+        assertEquals(32768, new MySQLWriterQueue(20000).getCapacity());
+    }
+
+    public void testFullAndRelease()
+    {
+        MySQLWriterQueue queue = new MySQLWriterQueue(4);
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(queue.offer(null, null, String.valueOf(i)));
+
+        assertFalse(queue.offer(null, null, "full"));
+        assertEquals(4, queue.available());
+
+        long seq = queue.readSequence();
+        assertEquals("0", queue.query(seq));
+        assertEquals("1", queue.query(seq + 1));
+
+        queue.release(2);
+
+        assertTrue(queue.offer(null, null, "4"));
+        assertEquals(3, queue.size());
+        assertEquals("2", queue.query(queue.readSequence()));
+        assertNull(queue.template(queue.readSequence() + 2));
+    }
+
+    public void testProducerConsumerOrder() throws Exception
+    {
+        final MySQLWriterQueue queue = new MySQLWriterQueue(64);
+        final int count = 200000;
+        final long[] errors = { 0 };
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                int expected = 0;
+
+                while (expected < count) {
+                    int available = queue.available();
+
+                    if (available <= 0) {
+                        queue.awaitData(0);
+                        continue;
+                    }
+
+                    long seq = queue.readSequence();
+                    for (int i = 0; i < available; i++) {
+                        if (Integer.parseInt(queue.query(seq + i)) != expected)
+                            errors[0]++;
+                        expected++;
+                    }
+
+                    queue.release(available);
+                }
+            }
+        });
+        writer.start();
+
+        for (int i = 0; i < count; i++) {
+            while (!queue.offer(null, null, String.valueOf(i))) {
+                queue.awaitSpace(100);
+            }
+        }
+
+        writer.join(30000);
+
+        assertFalse(writer.isAlive());
+        assertEquals(0, errors[0]);
+        assertTrue(queue.awaitEmpty(100));
+    }
+}
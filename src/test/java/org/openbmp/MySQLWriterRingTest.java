@@ -0,0 +1,139 @@
+package org.openbmp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * Unit test for the writer ring
+ */
+public class MySQLWriterRingTest
+    extends TestCase
+{
+    private static final int BUCKETS = 4096;
+
+    public MySQLWriterRingTest(String testName)
+    {
+        super(testName);
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MySQLWriterRingTest.class );
+    }
+
+    public void testEmpty()
+    {
+        MySQLWriterRing<String> ring = new MySQLWriterRing<>(BUCKETS);
+
+        assertEquals(BUCKETS, ring.size());
+        assertNull(ring.get("abc"));
+    }
+
+    public void testSameKeySameWriter()
+    {
+        MySQLWriterRing<String> ring = newRing(3);
+
+        for (int i = 0; i < 1000; i++) {
+            String key = "peer-" + i;
+            assertSame(ring.get(key), ring.get(new String(key)));
+            assertSame(ring.owner(ring.bucket(key)), ring.get(key));
+        }
+
+        assertNotNull(ring.get(null));
+    }
+
+    public void testBoundedLoad()
+    {
+        for (int n = 1; n <= 8; n++) {
+            MySQLWriterRing<String> ring = newRing(n);
+
+            int total = 0;
+            for (String w : ring.getMembers()) {
+                int count = ring.bucketCount(w);
+
+                assertTrue(n + " writers, " + w + " has " + count + " buckets",
+                           count <= Math.ceil(MySQLWriterRing.LOAD_FACTOR * BUCKETS / n));
+                total += count;
+            }
+
+            assertEquals(BUCKETS, total);
+        }
+    }
+
+    public void testMinimalMovement()
+    {
+        MySQLWriterRing<String> ring = newRing(3);
+        String[] before = owners(ring);
+
+        ring.add("w3", 3);
+        String[] after = owners(ring);
+
+        int moved = 0;
+        int movedOther = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            if (!before[b].equals(after[b])) {
+                ++moved;
+
+                if (!after[b].equals("w3"))
+                    ++movedOther;
+            }
+        }
+
+        // Ideal is 1/4 of the buckets, all to the new writer apart from the few that overflow
+        assertTrue("moved " + moved, moved < BUCKETS / 2);
+        assertTrue("moved to other writers " + movedOther, movedOther < BUCKETS / 8);
+
+        // Removing it again restores the placement
+        ring.remove("w3");
+        String[] restored = owners(ring);
+
+        int diff = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            if (!before[b].equals(restored[b]))
+                ++diff;
+        }
+
+        assertEquals(0, diff);
+    }
+
+    public void testRebalanceHotBuckets()
+    {
+        MySQLWriterRing<String> ring = newRing(2);
+
+        // Make the buckets of w0 hot
+        for (int i = 0; i < 200000; i++) {
+            String key = "k" + (i % 5000);
+            if (ring.owner(ring.bucket(key)).equals("w0"))
+                ring.get(key);
+            else
+                ring.bucket(key);
+        }
+
+        int before = ring.bucketCount("w0");
+        ring.rebalance();
+
+        assertTrue(ring.bucketCount("w0") < before);
+    }
+
+    private static MySQLWriterRing<String> newRing(int writers)
+    {
+        MySQLWriterRing<String> ring = new MySQLWriterRing<>(BUCKETS);
+
+        for (int i = 0; i < writers; i++)
+            ring.add("w" + i, i);
+
+        return ring;
+    }
+
+    private static String[] owners(MySQLWriterRing<String> ring)
+    {
+        String[] owners = new String[ring.size()];
+
+        for (int b = 0; b < owners.length; b++)
+            owners[b] = ring.owner(b);
+
+        return owners;
+    }
+}